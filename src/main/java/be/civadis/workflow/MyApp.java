@@ -1,6 +1,6 @@
 package be.civadis.workflow;
 
-import be.civadis.workflow.activiti.ActivitiProcessImporter;
+import be.civadis.workflow.activiti.TenantProvisioner;
 import be.civadis.workflow.security.TenantUtils;
 import org.activiti.engine.IdentityService;
 import org.activiti.engine.RepositoryService;
@@ -9,13 +9,15 @@ import org.activiti.engine.identity.User;
 import org.activiti.engine.repository.Deployment;
 import org.activiti.engine.repository.DeploymentBuilder;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.servlet.MultipartConfigFactory;
 import org.springframework.context.annotation.Bean;
 
+import javax.servlet.MultipartConfigElement;
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.Arrays;
 
 
 @SpringBootApplication
@@ -35,31 +37,43 @@ public class MyApp {
      *  Par défaut,
      *      spring boot importe tous les fichiers à la racine de processes, mais sans les associés aux tenants,
      *      celà ne convient donc que dans un environnement single tenant
-     * @param importer
+     * @param provisioner
      * @return
      */
 
     @Bean
-    InitializingBean deploy(final ActivitiProcessImporter importer) {
+    InitializingBean deploy(final TenantProvisioner provisioner) {
 
         return new InitializingBean() {
             public void afterPropertiesSet() throws Exception {
 
                 if (TenantUtils.getTenants()!= null){
 
-                    // import des processus généraux (sous le répertoire /all)
-                    importer.importFiles("processes/all", TenantUtils.getTenants());
-
-                    //import des processus spécifiques (sous les répertoires associés à des tenants)
-                    for (String tenant : TenantUtils.getTenants()){
-                        importer.importFiles("processes/" + tenant, Arrays.asList(tenant));
-                    }
+                    // import des processus généraux (sous le répertoire /all) et spécifiques (sous les répertoires associés à des tenants),
+                    // les tenants sont importés en parallèle (workflow.deploy.parallelism)
+                    // en mode lazy (workflow.deploy.mode), les tenants sont importés à leur première utilisation
+                    provisioner.provisionAtStartup(TenantUtils.getTenants());
                 }
             }
         };
     }
 
 
+    /**
+     * Limites des requêtes multipart alignées sur la taille maximum des uploads de deployments (cf DeploymentUploader),
+     * les valeurs par défaut de spring (spring.http.multipart.*, 1MB par fichier) refuseraient les archives avant leur validation
+     * La taille de la requête admet en plus les autres champs du formulaire
+     * @param maxSize workflow.upload.max-size
+     * @return
+     */
+    @Bean
+    MultipartConfigElement multipartConfigElement(@Value("${workflow.upload.max-size:52428800}") long maxSize) {
+        MultipartConfigFactory factory = new MultipartConfigFactory();
+        factory.setMaxFileSize(maxSize);
+        factory.setMaxRequestSize(maxSize + 1048576);
+        return factory.createMultipartConfig();
+    }
+
     // pour demo
     //@Bean
     InitializingBean deployHiring(final RepositoryService repositoryService) {
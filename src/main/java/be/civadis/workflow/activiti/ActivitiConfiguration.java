@@ -1,5 +1,6 @@
 package be.civadis.workflow.activiti;
 
+import be.civadis.workflow.activiti.datasource.InstrumentedPoolDataSource;
 import be.civadis.workflow.security.TenantUtils;
 import org.activiti.engine.IdentityService;
 import org.activiti.engine.RepositoryService;
@@ -12,8 +13,8 @@ import org.activiti.spring.SpringProcessEngineConfiguration;
 import org.activiti.spring.boot.AbstractProcessEngineAutoConfiguration;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
@@ -26,22 +27,20 @@ import java.io.IOException;
 import java.util.Arrays;
 
 //désactivé dans ce projet car on travail avec un seul datasource pour la DB H2
+//les personnalisations du moteur (caches, stockage des ressources) sont appliquées par WorkflowEngineConfigurer, quelle que soit la config active
 //@Configuration
 public class ActivitiConfiguration extends AbstractProcessEngineAutoConfiguration {
 
     /**
      * Definition du datasource pour workflow
+     * Pool propre au moteur, dimensionné par les propriétés workflow.datasource.engine.* (propriétés du pool tomcat-jdbc),
+     * le moteur et l'application ne se disputent pas les mêmes connexions
      * @return
      */
     @Bean(name = "activitiDataSource")
+    @ConfigurationProperties(prefix = "workflow.datasource.engine")
     public DataSource activitiDataSource(DataSourceProperties dataSourceProperties){
-        return DataSourceBuilder
-                .create()
-                .url(dataSourceProperties.getUrl())
-                .username(dataSourceProperties .getUsername())
-                .password(dataSourceProperties .getPassword())
-                .type(dataSourceProperties .getType())
-                .build();
+        return pooledDataSource(dataSourceProperties, "activiti-pool");
     }
 
     /**
@@ -65,19 +64,40 @@ public class ActivitiConfiguration extends AbstractProcessEngineAutoConfiguratio
 
     /**
      * Définir un datasource général pour le service, afin de ne pas utilisé celui spécifique à workflow
+     * Pool dimensionné par les propriétés workflow.datasource.main.*
      * @param dataSourceProperties
      * @return
      */
     @Bean(name = "mainDataSource")
     @Primary
+    @ConfigurationProperties(prefix = "workflow.datasource.main")
     public DataSource dataSource(DataSourceProperties dataSourceProperties ){
-        return DataSourceBuilder
-            .create()
-            .url(dataSourceProperties.getUrl())
-            .username(dataSourceProperties .getUsername())
-            .password(dataSourceProperties .getPassword())
-            .type(dataSourceProperties .getType())
-            .build();
+        return pooledDataSource(dataSourceProperties, "main-pool");
+    }
+
+    /**
+     * Pool de connexions instrumenté (temps d'attente, cf DataSourcePoolMetrics), avec cache des prepared statements
+     * Les valeurs par défaut peuvent être surchargées par les propriétés du bean (maxActive, minIdle, maxWait, statementCacheSize...),
+     * les jdbcInterceptors configurés sont complétés par le cache des prepared statements
+     * @param dataSourceProperties
+     * @param poolName
+     * @return
+     */
+    private InstrumentedPoolDataSource pooledDataSource(DataSourceProperties dataSourceProperties, String poolName){
+        InstrumentedPoolDataSource dataSource = new InstrumentedPoolDataSource();
+        dataSource.setName(poolName);
+        dataSource.setUrl(dataSourceProperties.determineUrl());
+        dataSource.setUsername(dataSourceProperties.determineUsername());
+        dataSource.setPassword(dataSourceProperties.determinePassword());
+        dataSource.setDriverClassName(dataSourceProperties.determineDriverClassName());
+        dataSource.setMaxActive(20);
+        dataSource.setMinIdle(5);
+        dataSource.setMaxWait(10000);
+        dataSource.setTestOnBorrow(true);
+        dataSource.setValidationInterval(30000);
+        dataSource.setJmxEnabled(true);
+        dataSource.setStatementCacheSize(50);
+        return dataSource;
     }
 
 }
@@ -1,67 +1,319 @@
 package be.civadis.workflow.activiti;
 
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiException;
 import org.activiti.engine.RepositoryService;
-import org.activiti.engine.repository.DeploymentBuilder;
+import org.activiti.engine.repository.Deployment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.net.URL;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+/**
+ * Import des définitions de processus au démarrage
+ * Chaque fichier est déployé dans sa propre deployment, clé = chemin du fichier, catégorie = hash SHA-256 du contenu
+ * Un fichier dont le hash correspond à la dernière deployment du tenant pour cette clé n'est pas redéployé :
+ * un redémarrage sans changement ne crée ni deployment, ni nouvelle version de process
+ * Les deployments d'un tenant sont effectuées dans une seule transaction : si un fichier échoue, aucun fichier du tenant n'est déployé
+ *
+ * Config :
+ *  workflow.deploy.parallelism (4) : nombre de tenants importés en parallèle, 1 pour un import séquentiel
+ *  workflow.deploy.fail-on-error (false) : si true, l'import lève une exception reprenant les erreurs de tous les tenants
+ */
 @Component
 public class ActivitiProcessImporter {
 
+    private static final Logger log = LoggerFactory.getLogger(ActivitiProcessImporter.class);
+
+    public static final String PROCESSES_FOLDER = "processes/";
+    public static final String COMMON_FOLDER = PROCESSES_FOLDER + "all";
+
+    private static final String CHECKSUM_PREFIX = "sha256:";
+
     private RepositoryService repositoryService;
 
-    public ActivitiProcessImporter(RepositoryService repositoryService) {
+    private TransactionTemplate transactionTemplate;
+
+    private final ResourcePatternResolver resourceResolver = new PathMatchingResourcePatternResolver(getClass().getClassLoader());
+
+    @Value("${workflow.deploy.parallelism:4}")
+    private int parallelism = 4;
+
+    @Value("${workflow.deploy.fail-on-error:false}")
+    private boolean failOnError;
+
+    public ActivitiProcessImporter(RepositoryService repositoryService, PlatformTransactionManager transactionManager) {
         this.repositoryService = repositoryService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     /**
-     * Importer les processus du répertoire donné pour les tenants donnés
-     * @param folderPath
+     * Importe pour chaque tenant les processus communs (processes/all) et ses processus spécifiques (processes/<tenant>)
+     * Les tenants sont importés en parallèle (workflow.deploy.parallelism), chaque tenant dans sa propre transaction
+     * Les erreurs ne bloquent pas les autres tenants, elles sont rassemblées dans les résultats
      * @param tenantList
+     * @return résultat par tenant, dans l'ordre des tenants
      */
-    public void importFiles(String folderPath, List<String> tenantList){
-
-        DeploymentBuilder deploymentBuilder = repositoryService.createDeployment();
+    public List<TenantImportResult> importTenants(List<String> tenantList){
 
-        for (String tenantId : tenantList){
+        long start = System.currentTimeMillis();
 
-            for (File file : listFiles(folderPath)){
+        //fichiers communs lus une seule fois pour tous les tenants
+        List<ProcessFile> commonFiles = loadFiles(COMMON_FOLDER);
 
-                try {
-                    if (file.isFile()){
-                        deploymentBuilder.addInputStream(file.getName(), new FileInputStream(file));
-                        deploymentBuilder.name(file.getName());
-                        deploymentBuilder.tenantId(tenantId);
-                        System.out.println("*************************** Deploying " + file.getName() + "to " + tenantId + " *****************************");
-                        deploymentBuilder.deploy();
+        List<TenantImportResult> results = new ArrayList<>();
+        int threads = Math.max(1, Math.min(parallelism, tenantList.size()));
+        if (threads == 1){
+            for (String tenantId : tenantList){
+                results.add(importTenant(tenantId, commonFiles));
+            }
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    runnable -> new Thread(runnable, "process-import-" + count.incrementAndGet()));
+            try {
+                List<Future<TenantImportResult>> futures = new ArrayList<>();
+                for (String tenantId : tenantList){
+                    futures.add(executor.submit(() -> importTenant(tenantId, commonFiles)));
+                }
+                for (int i = 0; i < futures.size(); i++){
+                    try {
+                        results.add(futures.get(i).get());
+                    } catch (ExecutionException e){
+                        TenantImportResult result = new TenantImportResult(tenantList.get(i));
+                        result.failed(String.valueOf(e.getCause()));
+                        results.add(result);
                     }
-                } catch (Exception ex){
-                    ex.printStackTrace();
                 }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new ActivitiException("Process import interrupted", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        List<TenantImportResult> failed = results.stream().filter(TenantImportResult::isFailed).collect(Collectors.toList());
+        log.info("Process import of {} tenants done in {} ms ({} threads), {} deployments, {} tenants in error",
+                tenantList.size(), System.currentTimeMillis() - start, threads,
+                results.stream().mapToInt(TenantImportResult::getDeployed).sum(), failed.size());
+
+        if (!failed.isEmpty()){
+            String message = "Process import failed for tenants " + failed;
+            if (failOnError){
+                throw new ActivitiException(message);
+            }
+            log.error(message);
+        }
+
+        return results;
+    }
+
+    /**
+     * Importe les processus communs (processes/all) et spécifiques (processes/<tenant>) d'un tenant
+     * @param tenantId
+     * @return
+     */
+    public TenantImportResult importTenant(String tenantId){
+        return importTenant(tenantId, loadFiles(COMMON_FOLDER));
+    }
+
+    /**
+     * Importe les processus communs et spécifiques d'un tenant, pour le tenant (schéma du tenant en mode schéma par tenant)
+     * @param tenantId
+     * @param commonFiles fichiers communs déjà chargés
+     * @return
+     */
+    private TenantImportResult importTenant(String tenantId, List<ProcessFile> commonFiles){
+        return TenantUtils.callAs(tenantId, () -> doImportTenant(tenantId, commonFiles));
+    }
+
+    private TenantImportResult doImportTenant(String tenantId, List<ProcessFile> commonFiles){
+        long start = System.currentTimeMillis();
+        TenantImportResult result = new TenantImportResult(tenantId);
+        try {
+            List<ProcessFile> files = new ArrayList<>(commonFiles);
+            files.addAll(loadFiles(PROCESSES_FOLDER + tenantId));
+            deployInTransaction(files, tenantId, result);
+        } catch (Exception ex){
+            log.error("Unable to import processes of tenant {}", tenantId, ex);
+            result.failed(ex.getMessage());
+        }
+        result.setDurationMillis(System.currentTimeMillis() - start);
+        log.info("Process import for tenant {} done in {} ms, {} deployed, {} skipped",
+                tenantId, result.getDurationMillis(), result.getDeployed(), result.getSkipped());
+        return result;
+    }
+
+    /**
+     * Déploie les fichiers du tenant dans une seule transaction, annulée au premier fichier en erreur
+     * Les commandes du moteur rejoignent la transaction (propagation REQUIRED)
+     */
+    private void deployInTransaction(List<ProcessFile> files, String tenantId, TenantImportResult result){
+        try {
+            transactionTemplate.execute(status -> {
+                deploy(files, tenantId, result);
+                return null;
+            });
+        } catch (RuntimeException ex){
+            result.rolledBack();
+            throw ex;
+        }
+    }
+
+    private void deploy(List<ProcessFile> files, String tenantId, TenantImportResult result){
+
+        for (ProcessFile file : files){
+
+            if (file.checksum.equals(deployedChecksum(file.key, tenantId))){
+                log.info("Skipping {} for tenant {}, already deployed", file.name, tenantId);
+                result.skipped();
+                continue;
+            }
+
+            log.info("Deploying {} to tenant {}", file.name, tenantId);
+            try {
+                repositoryService.createDeployment()
+                        .addBytes(file.name, file.content)
+                        .name(file.name)
+                        .key(file.key)
+                        .category(file.checksum)
+                        .tenantId(tenantId)
+                        .deploy();
+            } catch (RuntimeException ex){
+                throw new ActivitiException("Unable to deploy " + file.name + " : " + ex.getMessage(), ex);
+            }
+            result.deployed();
+        }
+    }
+
+    /**
+     * Hash du contenu de la dernière deployment de la clé pour le tenant, null si aucune
+     */
+    private String deployedChecksum(String key, String tenantId){
+        List<Deployment> deployments = repositoryService.createDeploymentQuery()
+                .deploymentKey(key)
+                .deploymentTenantId(tenantId)
+                .orderByDeploymenTime().desc()
+                .listPage(0, 1);
+        return deployments.isEmpty() ? null : deployments.get(0).getCategory();
+    }
+
+    /**
+     * Lit les fichiers du répertoire et calcule leur hash
+     */
+    private List<ProcessFile> loadFiles(String folderPath){
+        List<ProcessFile> files = new ArrayList<>();
+        for (Resource resource : listResources(folderPath)){
+            try {
+                byte[] content = read(resource);
+                files.add(new ProcessFile(resource.getFilename(), folderPath + "/" + resource.getFilename(), content, checksum(content)));
+            } catch (Exception ex){
+                throw new ActivitiException("Unable to read process file " + resource, ex);
+            }
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Lit le contenu de la ressource en une seule allocation lorsque sa taille est connue, le flux est toujours fermé
+     * Le tableau est transmis tel quel à la deployment (addBytes), sans autre copie
+     */
+    private byte[] read(Resource resource) throws IOException {
+        long length = resource.contentLength();
+        try (InputStream in = resource.getInputStream()){
+            if (length < 0 || length > Integer.MAX_VALUE){
+                return StreamUtils.copyToByteArray(in);
+            }
+            byte[] content = new byte[(int) length];
+            int offset = 0;
+            while (offset < content.length){
+                int read = in.read(content, offset, content.length - offset);
+                if (read < 0){
+                    throw new EOFException("Unexpected end of " + resource);
+                }
+                offset += read;
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Hash SHA-256 du contenu, préfixé de l'algorithme
+     */
+    public static String checksum(byte[] content){
+        try {
+            StringBuilder sb = new StringBuilder(CHECKSUM_PREFIX);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)){
+                sb.append(String.format("%02x", b));
             }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
         }
     }
 
     /**
-     * Recherche les files dans un répertoire donné
+     * Recherche les fichiers d'un répertoire du classpath, triés par nom
+     * Fonctionne depuis un répertoire (IDE, tests) comme depuis le jar exécutable spring boot (jar imbriqué)
      * @param folderPath
      * @return
      */
-    public File[] listFiles(String folderPath){
-        ClassLoader classLoader = getClass().getClassLoader();
-        URL url = classLoader.getResource(folderPath);
-        if (url != null){
-            String path = url.getPath();
-            File folder = new File(path);
-            if (folder != null){
-                return folder.listFiles();
+    public List<Resource> listResources(String folderPath){
+        try {
+            List<Resource> resources = new ArrayList<>();
+            for (Resource resource : resourceResolver.getResources(ResourceLoader.CLASSPATH_URL_PREFIX + folderPath + "/*")){
+                //les sous-répertoires ne sont pas lisibles
+                if (resource.isReadable() && resource.getFilename() != null && !resource.getFilename().isEmpty()){
+                    resources.add(resource);
+                }
             }
+            resources.sort(Comparator.comparing(Resource::getFilename));
+            return resources;
+        } catch (FileNotFoundException ex){
+            return Collections.emptyList();
+        } catch (IOException ex){
+            throw new ActivitiException("Unable to list process files of " + folderPath, ex);
+        }
+    }
+
+    private static class ProcessFile {
+
+        private final String name;
+        private final String key;
+        private final byte[] content;
+        private final String checksum;
+
+        ProcessFile(String name, String key, byte[] content, String checksum) {
+            this.name = name;
+            this.key = key;
+            this.content = content;
+            this.checksum = checksum;
         }
-        return new File[]{};
     }
 
 }
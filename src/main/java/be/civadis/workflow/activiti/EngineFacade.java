@@ -1,16 +1,48 @@
 package be.civadis.workflow.activiti;
 
+import be.civadis.workflow.activiti.batch.BatchExecutor;
+import be.civadis.workflow.activiti.batch.ProcessStartReport;
+import be.civadis.workflow.activiti.batch.ProcessStartResult;
+import be.civadis.workflow.activiti.batch.TaskCompletion;
+import be.civadis.workflow.activiti.batch.TaskCompletionResult;
+import be.civadis.workflow.activiti.cache.CandidateTaskIndex;
+import be.civadis.workflow.activiti.cache.ProcessDefinitionIdCache;
+import be.civadis.workflow.activiti.cmd.ClaimTaskIfCandidateCmd;
+import be.civadis.workflow.activiti.cmd.CompleteTaskIfActionableCmd;
+import be.civadis.workflow.activiti.cmd.CompleteTasksCmd;
+import be.civadis.workflow.activiti.cmd.FindActionableTaskCmd;
+import be.civadis.workflow.activiti.cmd.StartProcessesCmd;
 import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ActivitiObjectNotFoundException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.RepositoryService;
 import org.activiti.engine.RuntimeService;
 import org.activiti.engine.TaskService;
+import org.activiti.engine.repository.ProcessDefinition;
 import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.task.NativeTaskQuery;
 import org.activiti.engine.task.Task;
 import org.activiti.engine.task.TaskQuery;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Facade exposant les opérations courantes sur l'API workflow
@@ -27,6 +59,33 @@ public class EngineFacade {
     @Autowired
     private TaskService taskService;
 
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private ManagementService managementService;
+
+    @Autowired
+    private CandidateTaskIndex candidateTaskIndex;
+
+    @Autowired
+    private TenantProvisioner tenantProvisioner;
+
+    @Autowired
+    private ProcessDefinitionIdCache processDefinitionIdCache;
+
+    @Value("${workflow.batch.chunk-size:100}")
+    private int batchChunkSize;
+
+    @Value("${workflow.batch.max-parallelism:8}")
+    private int batchMaxParallelism;
+
+    @Value("${workflow.batch.max-start-size:100000}")
+    private int batchMaxStartSize;
+
+    @Autowired
+    private BatchExecutor batchExecutor;
+
     public EngineFacade() {
     }
 
@@ -52,12 +111,164 @@ public class EngineFacade {
 
     /**
      * Démarrer un processus
+     * La dernière version du processus est résolue via le cache {@link ProcessDefinitionIdCache}, puis démarrée par id
      * @param processName nom du processus
      * @param variables variables d'initialisation
      * @return
      */
     public ProcessInstance startProcess(String processName, Map<String, Object> variables){
-        return runtimeService.startProcessInstanceByKeyAndTenantId(processName, variables, getCurrentTenant());
+        String tenantId = getCurrentTenant();
+        String processDefinitionId = processDefinitionIdCache.getLatestId(tenantId, processName);
+        if (processDefinitionId != null){
+            try {
+                return runtimeService.startProcessInstanceById(processDefinitionId, variables);
+            } catch (ActivitiObjectNotFoundException ex){
+                //deployment supprimée depuis la mise en cache (par une autre instance du service), la version courante est recherchée par clé
+                //si la définition en cache existe, l'erreur concerne une autre définition (sous-processus...)
+                if (!ProcessDefinition.class.equals(ex.getObjectClass()) || processDefinitionExists(processDefinitionId)){
+                    throw ex;
+                }
+                processDefinitionIdCache.invalidate(tenantId, processName);
+            }
+        }
+        return runtimeService.startProcessInstanceByKeyAndTenantId(processName, variables, tenantId);
+    }
+
+    private boolean processDefinitionExists(String processDefinitionId){
+        return repositoryService.createProcessDefinitionQuery().processDefinitionId(processDefinitionId).count() > 0;
+    }
+
+    /**
+     * Démarrer un lot d'instances d'un processus pour un tenant donné, dans une seule transaction
+     * Si le lot échoue, les instances sont redémarrées une à une afin d'isoler celles en erreur
+     * @param tenantId tenant pour lequel démarrer les instances (les traitements asynchrones n'ont pas de tenant courant)
+     * @param processName nom du processus
+     * @param variablesList variables d'initialisation de chaque instance
+     * @return résultat par instance, dans l'ordre du lot
+     */
+    public List<ProcessStartResult> startProcesses(String tenantId, String processName, List<Map<String, Object>> variablesList){
+        tenantProvisioner.ensureProvisioned(tenantId);
+        //routage vers le schéma du tenant (mode schéma par tenant), l'appelant peut être un thread sans tenant courant
+        return TenantUtils.callAs(tenantId, () -> doStartProcesses(tenantId, processName, variablesList));
+    }
+
+    private List<ProcessStartResult> doStartProcesses(String tenantId, String processName, List<Map<String, Object>> variablesList){
+        List<ProcessStartResult> results = new ArrayList<>();
+        try {
+            List<String> processInstanceIds = managementService.executeCommand(new StartProcessesCmd(tenantId, processName, variablesList));
+            for (int i = 0; i < processInstanceIds.size(); i++){
+                results.add(ProcessStartResult.started(i, processInstanceIds.get(i)));
+            }
+        } catch (Exception ex){
+            for (int i = 0; i < variablesList.size(); i++){
+                try {
+                    List<String> processInstanceIds = managementService.executeCommand(new StartProcessesCmd(tenantId, processName, Collections.singletonList(variablesList.get(i))));
+                    results.add(ProcessStartResult.started(i, processInstanceIds.get(0)));
+                } catch (Exception itemEx){
+                    results.add(ProcessStartResult.failed(i, itemEx));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Démarrer un grand nombre d'instances d'un processus (migrations, imports) pour le tenant courant
+     * Les instances sont démarrées par paquets, chaque paquet dans sa propre transaction (cf startProcesses),
+     * éventuellement en parallèle sur le pool partagé {@link BatchExecutor}. Les variables sont lues au fur et à mesure,
+     * au plus 2 paquets par worker sont en mémoire
+     * Un paquet en erreur n'interrompt pas le lot : ses instances sont rapportées en erreur. Si la lecture des variables échoue
+     * ou si la demande dépasse workflow.batch.max-start-size instances, la lecture s'arrête et le rapport partiel des paquets déjà
+     * démarrés est retourné avec le motif de l'arrêt
+     * @param processName nom du processus
+     * @param variables variables d'initialisation de chaque instance
+     * @param chunkSize taille des paquets, workflow.batch.chunk-size si <= 0
+     * @param parallelism nombre de paquets démarrés en parallèle, borné par workflow.batch.max-parallelism
+     * @return résultat par instance (index dans la demande) et débit
+     */
+    public ProcessStartReport startProcesses(String processName, Iterator<Map<String, Object>> variables, int chunkSize, int parallelism){
+
+        String tenantId = getCurrentTenant();
+        int size = chunkSize > 0 ? chunkSize : Math.max(1, batchChunkSize);
+        int threads = Math.max(1, Math.min(parallelism, batchMaxParallelism));
+        long start = System.currentTimeMillis();
+
+        List<ProcessStartResult> results = Collections.synchronizedList(new ArrayList<>());
+        Semaphore permits = new Semaphore(threads * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        String interruption = null;
+        int offset = 0;
+
+        try {
+            while (interruption == null){
+                List<Map<String, Object>> chunk = new ArrayList<>(size);
+                try {
+                    while (chunk.size() < size && variables.hasNext()){
+                        if (offset + chunk.size() >= batchMaxStartSize){
+                            interruption = "Batch exceeds the maximum of " + batchMaxStartSize + " instances";
+                            break;
+                        }
+                        chunk.add(variables.next());
+                    }
+                } catch (RuntimeException ex){
+                    interruption = "Unable to read instance " + (offset + chunk.size()) + " : " + ex.getMessage();
+                }
+                if (chunk.isEmpty()){
+                    break;
+                }
+                int chunkOffset = offset;
+                offset += chunk.size();
+
+                Runnable startChunk = () -> {
+                    for (ProcessStartResult result : startChunk(tenantId, processName, chunk)){
+                        result.setIndex(result.getIndex() + chunkOffset);
+                        results.add(result);
+                    }
+                };
+
+                if (threads == 1){
+                    startChunk.run();
+                } else {
+                    permits.acquire();
+                    futures.add(batchExecutor.submit(() -> {
+                        try {
+                            startChunk.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures){
+                future.get();
+            }
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new ActivitiException("Batch start of " + processName + " interrupted", ex);
+        } catch (ExecutionException ex){
+            throw new ActivitiException("Batch start of " + processName + " failed", ex.getCause());
+        }
+
+        List<ProcessStartResult> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingInt(ProcessStartResult::getIndex));
+        ProcessStartReport report = new ProcessStartReport(sorted, System.currentTimeMillis() - start);
+        report.setInterruption(interruption);
+        return report;
+    }
+
+    /**
+     * Démarre un paquet, les instances d'un paquet en erreur (tenant non provisionné, base indisponible...) sont rapportées en erreur
+     */
+    private List<ProcessStartResult> startChunk(String tenantId, String processName, List<Map<String, Object>> chunk){
+        try {
+            return startProcesses(tenantId, processName, chunk);
+        } catch (RuntimeException ex){
+            List<ProcessStartResult> failed = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++){
+                failed.add(ProcessStartResult.failed(i, ex));
+            }
+            return failed;
+        }
     }
 
     /**
@@ -109,6 +320,58 @@ public class EngineFacade {
 
     }
 
+    /**
+     * Recherche une page de tasks claimables (cf findClaimableTasks) via l'index en mémoire des candidats,
+     * seule la page est lue en DB, par id, triée par date de création puis id
+     * @param user
+     * @param groups
+     * @param offset
+     * @param size
+     * @return null si l'index n'est pas disponible, utiliser alors findClaimableTasks
+     */
+    public List<Task> findClaimableTasksFromIndex(String user, List<String> groups, int offset, int size){
+
+        //sans user ni groupes, toutes les tasks non assignées sont concernées, y compris celles sans candidats
+        if (user == null && (groups == null || groups.isEmpty())){
+            return null;
+        }
+
+        List<String> ids = candidateTaskIndex.findClaimableTaskIds(getCurrentTenant(), user, groups);
+        if (ids == null){
+            return null;
+        }
+        if (offset >= ids.size()){
+            return new ArrayList<>();
+        }
+        List<String> pageIds = ids.subList(offset, Math.min(offset + size, ids.size()));
+
+        StringBuilder sql = new StringBuilder("select * from ")
+                .append(managementService.getTableName(Task.class))
+                .append(" where ASSIGNEE_ is null and TENANT_ID_ = #{tenantId} and ID_ in (");
+        for (int i = 0; i < pageIds.size(); i++){
+            sql.append(i > 0 ? ", " : "").append("#{id").append(i).append("}");
+        }
+        sql.append(")");
+        NativeTaskQuery query = taskService.createNativeTaskQuery().sql(sql.toString())
+                .parameter("tenantId", getCurrentTenant());
+        for (int i = 0; i < pageIds.size(); i++){
+            query.parameter("id" + i, pageIds.get(i));
+        }
+
+        //ordre de l'index
+        Map<String, Task> tasksById = new HashMap<>();
+        for (Task task : query.list()){
+            tasksById.put(task.getId(), task);
+        }
+        List<Task> tasks = new ArrayList<>();
+        for (String id : pageIds){
+            if (tasksById.containsKey(id)){
+                tasks.add(tasksById.get(id));
+            }
+        }
+        return tasks;
+    }
+
     /**
      * Recherche la liste des tasks déjà assignées à un user
      * @param user
@@ -135,6 +398,56 @@ public class EngineFacade {
 
     }
 
+    /**
+     * Pagination par curseur (keyset) : retourne la page de tasks suivant le curseur, triée par createTime puis id
+     * La page est lue sans OFFSET, en une requête bornée à la taille de la page, positionnée après le couple (createTime, id)
+     * du curseur (cf SeekTaskQuery)
+     * @param querySupplier fournit une nouvelle query filtrée à chaque appel (ex : () -> findClaimableTasks(...))
+     * @param cursor position de la dernière task lue, null pour la première page
+     * @param ascending sens du tri, ignoré si un curseur est fourni
+     * @param pageSize taille de la page
+     * @return
+     */
+    public List<Task> seekTasks(Supplier<TaskQuery> querySupplier, TaskCursor cursor, boolean ascending, int pageSize){
+
+        if (cursor == null){
+            return orderForSeek(querySupplier.get(), ascending).listPage(0, pageSize);
+        }
+        return SeekTaskQuery.after(orderForSeek(querySupplier.get(), cursor.isAscending()), cursor).listPage(0, pageSize);
+    }
+
+    /**
+     * Parcourt toutes les tasks d'une query par paquets de taille fixe, via la pagination par curseur (cf seekTasks)
+     * Chaque paquet est lu par une requête courte, seul le paquet courant est gardé en mémoire
+     * @param querySupplier fournit une nouvelle query (filtres uniquement, sans tri ni pagination)
+     * @param chunkSize taille des paquets
+     * @param consumer traitement de chaque paquet
+     * @return nombre de tasks parcourues
+     */
+    public long forEachTaskChunk(Supplier<TaskQuery> querySupplier, int chunkSize, Consumer<List<Task>> consumer){
+        int size = Math.max(1, chunkSize);
+        long count = 0;
+        TaskCursor cursor = null;
+        while (true){
+            List<Task> chunk = seekTasks(querySupplier, cursor, true, size);
+            if (!chunk.isEmpty()){
+                consumer.accept(chunk);
+                count += chunk.size();
+            }
+            if (chunk.size() < size){
+                return count;
+            }
+            cursor = TaskCursor.after(chunk.get(chunk.size() - 1), true);
+        }
+    }
+
+    private TaskQuery orderForSeek(TaskQuery query, boolean ascending){
+        if (ascending){
+            return query.orderByTaskCreateTime().asc().orderByTaskId().asc();
+        }
+        return query.orderByTaskCreateTime().desc().orderByTaskId().desc();
+    }
+
     /**
      * Recherche une tâche non-assignée selon son id et vérifie que la task respecte une des conditions ci-dessous :
      *  - le user transmis est un des candidate-users
@@ -189,6 +502,45 @@ public class EngineFacade {
         return query.singleResult();
     }
 
+    /**
+     * Recherche une tâche selon son id et vérifie que le user peut la traiter, en une seule commande workflow :
+     *  - la task n'est pas assignée et le user transmis est un des candidate-users ou un des groupes transmis est parmis les candidate-groups
+     *  - ou la task est assignée au user transmis
+     * @param taskId id de la tâche, requis
+     * @param user
+     * @param groups
+     * @return la task, null si elle n'existe pas ou si le user ne peut pas la traiter
+     */
+    public Task findActionableTask(String taskId, String user, List<String> groups){
+        return managementService.executeCommand(new FindActionableTaskCmd(getCurrentTenant(), taskId, user, groups));
+    }
+
+    /**
+     * Assigne une task à un user si elle n'est pas assignée et que user / groups en sont candidats
+     * La vérification et le claim sont effectués dans une seule commande workflow
+     * @param taskId
+     * @param user user candidat, null si non vérifié
+     * @param groups groupes candidats, null si non vérifiés
+     * @param assignee user auquel la task est assignée
+     * @return true si la task a été assignée, false si elle n'est pas accessible
+     */
+    public boolean claimIfCandidate(String taskId, String user, List<String> groups, String assignee){
+        return managementService.executeCommand(new ClaimTaskIfCandidateCmd(getCurrentTenant(), taskId, user, groups, assignee));
+    }
+
+    /**
+     * Complete une task si user / groups en sont candidats ou si elle est assignée au user
+     * La vérification et le complete sont effectués dans une seule commande workflow
+     * @param taskId
+     * @param user
+     * @param groups
+     * @param params
+     * @return true si la task a été complétée, false si elle n'est pas accessible
+     */
+    public boolean completeIfActionable(String taskId, String user, List<String> groups, Map<String, Object> params){
+        return managementService.executeCommand(new CompleteTaskIfActionableCmd(getCurrentTenant(), taskId, user, groups, params));
+    }
+
     /**
      * Indique si une tâche est assignée à un user
      * @param task
@@ -228,8 +580,73 @@ public class EngineFacade {
         taskService.complete(taskId, params);
     }
 
+    /**
+     * Complete un lot de tasks
+     * Les tasks sont complétées par paquets (workflow.batch.chunk-size), chaque paquet dans sa propre transaction
+     * Si un paquet échoue, ses tasks sont rejouées une à une afin d'isoler celles en erreur
+     * Attention, ne pas oublier de vérifier en amont que l'on peut effectuer le complete, dépend des roles et de la secu de l'application
+     * @param completions tasks à compléter et leurs variables
+     * @return résultat par task, dans l'ordre de la demande
+     */
+    public List<TaskCompletionResult> completeTasks(List<TaskCompletion> completions){
+
+        List<TaskCompletionResult> results = new ArrayList<>();
+        if (completions == null || completions.isEmpty()){
+            return results;
+        }
+
+        //vérification des demandes
+        Map<String, TaskCompletionResult> resultsByTask = new LinkedHashMap<>();
+        List<TaskCompletion> valid = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (TaskCompletion completion : completions){
+            if (completion == null || completion.getTaskId() == null || completion.getTaskId().isEmpty()){
+                continue;
+            }
+            if (seen.add(completion.getTaskId())){
+                valid.add(completion);
+            }
+        }
+
+        //complétion par paquets
+        String tenantId = getCurrentTenant();
+        int chunkSize = Math.max(1, batchChunkSize);
+        for (int i = 0; i < valid.size(); i += chunkSize){
+            List<TaskCompletion> chunk = valid.subList(i, Math.min(i + chunkSize, valid.size()));
+            try {
+                resultsByTask.putAll(managementService.executeCommand(new CompleteTasksCmd(tenantId, chunk)));
+            } catch (Exception ex){
+                for (TaskCompletion completion : chunk){
+                    try {
+                        resultsByTask.putAll(managementService.executeCommand(new CompleteTasksCmd(tenantId, Collections.singletonList(completion))));
+                    } catch (Exception taskEx){
+                        resultsByTask.put(completion.getTaskId(), TaskCompletionResult.failed(completion.getTaskId(), taskEx));
+                    }
+                }
+            }
+        }
+
+        //résultats dans l'ordre de la demande
+        Set<String> reported = new HashSet<>();
+        for (TaskCompletion completion : completions){
+            if (completion == null || completion.getTaskId() == null || completion.getTaskId().isEmpty()){
+                results.add(TaskCompletionResult.of(completion != null ? completion.getTaskId() : null, TaskCompletionResult.Status.INVALID));
+            } else if (!reported.add(completion.getTaskId())){
+                results.add(TaskCompletionResult.of(completion.getTaskId(), TaskCompletionResult.Status.DUPLICATE));
+            } else {
+                results.add(resultsByTask.get(completion.getTaskId()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Tenant courant, ses définitions de processus sont déployées à la première utilisation en mode lazy (cf TenantProvisioner)
+     */
     private String getCurrentTenant(){
-        return TenantUtils.getCurrentTenant();
+        String tenantId = TenantUtils.getCurrentTenant();
+        tenantProvisioner.ensureProvisioned(tenantId);
+        return tenantId;
     }
 
 }
@@ -0,0 +1,94 @@
+package be.civadis.workflow.activiti;
+
+import be.civadis.workflow.activiti.cache.ProcessDefinitionIdCache;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.repository.ProcessDefinitionQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Préchargement des dernières versions des définitions de processus des tenants et processus les plus utilisés,
+ * avant que l'application soit déclarée prête (ApplicationRunner, exécuté avant l'ApplicationReadyEvent)
+ * Les premières requêtes ne paient alors ni le parsing BPMN, ni la recherche de la dernière version
+ *
+ * Config :
+ *  workflow.process-cache.warm-up () : tenants (tenant) ou processus d'un tenant (tenant:processKey) à précharger, séparés par des virgules
+ */
+@Component
+public class ProcessDefinitionWarmUp implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessDefinitionWarmUp.class);
+
+    private final RepositoryService repositoryService;
+    private final ProcessDefinitionIdCache processDefinitionIdCache;
+    private final TenantProvisioner tenantProvisioner;
+    private final List<String[]> targets = new ArrayList<>();
+
+    public ProcessDefinitionWarmUp(RepositoryService repositoryService,
+                                   ProcessDefinitionIdCache processDefinitionIdCache,
+                                   TenantProvisioner tenantProvisioner,
+                                   @Value("${workflow.process-cache.warm-up:}") String warmUp) {
+        this.repositoryService = repositoryService;
+        this.processDefinitionIdCache = processDefinitionIdCache;
+        this.tenantProvisioner = tenantProvisioner;
+        for (String target : warmUp.split(",")){
+            if (!target.trim().isEmpty()){
+                this.targets.add(target.trim().split(":", 2));
+            }
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!targets.isEmpty()){
+            warmUp();
+        }
+    }
+
+    /**
+     * Charge dans les caches du moteur la dernière version des processus configurés
+     * @return nombre de définitions chargées
+     */
+    public int warmUp(){
+        long start = System.currentTimeMillis();
+        int loaded = 0;
+        for (String[] target : targets){
+            String tenantId = target[0];
+            try {
+                tenantProvisioner.ensureProvisioned(tenantId);
+                loaded += TenantUtils.callAs(tenantId, () -> warmUp(tenantId, target.length > 1 ? target[1] : null));
+            } catch (Exception e){
+                log.error("Warm-up of process definitions {} failed", String.join(":", target), e);
+            }
+        }
+        log.info("Process definition warm-up done in {} ms, {} definitions loaded", System.currentTimeMillis() - start, loaded);
+        return loaded;
+    }
+
+    private int warmUp(String tenantId, String key){
+        ProcessDefinitionQuery query = repositoryService.createProcessDefinitionQuery()
+                .processDefinitionTenantId(tenantId)
+                .latestVersion();
+        if (key != null){
+            query.processDefinitionKey(key);
+        }
+        int loaded = 0;
+        for (ProcessDefinition processDefinition : query.list()){
+            //charge (parse si besoin) la définition dans le cache du moteur
+            repositoryService.getProcessDefinition(processDefinition.getId());
+            processDefinitionIdCache.getLatestId(tenantId, processDefinition.getKey());
+            loaded++;
+        }
+        return loaded;
+    }
+
+}
@@ -0,0 +1,60 @@
+package be.civadis.workflow.activiti;
+
+import org.activiti.engine.impl.Page;
+import org.activiti.engine.impl.TaskQueryImpl;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.task.Task;
+import org.activiti.engine.task.TaskQuery;
+import org.springframework.util.ReflectionUtils;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Query de tasks positionnée après un curseur (createTime, id), lue en une seule requête bornée (cf mappings/task-seek.xml)
+ * Reprend les critères et le tri d'une TaskQuery du moteur, la position est ajoutée dans la requête et non filtrée en mémoire
+ */
+public class SeekTaskQuery extends TaskQueryImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String MAPPER = "mappings/task-seek.xml";
+
+    private Date seekCreateTime;
+    private String seekTaskId;
+    private boolean seekAscending;
+
+    /**
+     * @param query query du moteur (TaskService), filtres et tri
+     * @param cursor position de la dernière task lue
+     * @return
+     */
+    public static SeekTaskQuery after(TaskQuery query, TaskCursor cursor){
+        SeekTaskQuery seekQuery = new SeekTaskQuery();
+        ReflectionUtils.shallowCopyFieldState(query, seekQuery);
+        seekQuery.seekCreateTime = cursor.getCreateTime();
+        seekQuery.seekTaskId = cursor.getTaskId();
+        seekQuery.seekAscending = cursor.isAscending();
+        return seekQuery;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Task> executeList(CommandContext commandContext, Page page) {
+        ensureVariablesInitialized();
+        checkQueryOk();
+        return commandContext.getDbSqlSession().selectList("selectTaskBySeekCriteria", this);
+    }
+
+    public Date getSeekCreateTime() {
+        return seekCreateTime;
+    }
+
+    public String getSeekTaskId() {
+        return seekTaskId;
+    }
+
+    public boolean isSeekAscending() {
+        return seekAscending;
+    }
+}
@@ -0,0 +1,73 @@
+package be.civadis.workflow.activiti;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.task.Task;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Position dans une liste de tasks triée par (createTime, id), utilisée pour la pagination par curseur
+ * Le curseur est transmis au client sous forme d'un token opaque, la page suivante reprend après la dernière task lue
+ * sans OFFSET, le coût d'une page ne dépend donc pas de sa profondeur
+ */
+public class TaskCursor {
+
+    private static final String VERSION = "c1";
+
+    private final Date createTime;
+    private final String taskId;
+    private final boolean ascending;
+
+    public TaskCursor(Date createTime, String taskId, boolean ascending) {
+        this.createTime = createTime;
+        this.taskId = taskId;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Curseur positionné sur la task donnée
+     * @param task dernière task de la page
+     * @param ascending sens du tri
+     * @return
+     */
+    public static TaskCursor after(Task task, boolean ascending) {
+        return new TaskCursor(task.getCreateTime(), task.getId(), ascending);
+    }
+
+    /**
+     * Décode un token produit par {@link #encode()}
+     * @param token
+     * @return
+     */
+    public static TaskCursor decode(String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = value.split(":", 4);
+            if (parts.length != 4 || !VERSION.equals(parts[0])) {
+                throw new ActivitiIllegalArgumentException("Invalid cursor " + token);
+            }
+            return new TaskCursor(new Date(Long.parseLong(parts[1])), parts[3], "a".equals(parts[2]));
+        } catch (IllegalArgumentException ex) {
+            throw new ActivitiIllegalArgumentException("Invalid cursor " + token, ex);
+        }
+    }
+
+    public String encode() {
+        String value = VERSION + ":" + createTime.getTime() + ":" + (ascending ? "a" : "d") + ":" + taskId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+}
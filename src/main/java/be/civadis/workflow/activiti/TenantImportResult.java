@@ -0,0 +1,78 @@
+package be.civadis.workflow.activiti;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Résultat de l'import des définitions de processus d'un tenant (cf {@link ActivitiProcessImporter})
+ */
+public class TenantImportResult {
+
+    private final String tenantId;
+    private int deployed;
+    private int skipped;
+    private long durationMillis;
+    private final List<String> failures = new ArrayList<>();
+
+    public TenantImportResult(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public int getDeployed() {
+        return deployed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public boolean isFailed() {
+        return !failures.isEmpty();
+    }
+
+    void deployed() {
+        deployed++;
+    }
+
+    void skipped() {
+        skipped++;
+    }
+
+    /**
+     * Transaction du tenant annulée : aucune deployment n'a été conservée
+     */
+    void rolledBack() {
+        deployed = 0;
+    }
+
+    void failed(String failure) {
+        failures.add(failure);
+    }
+
+    void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "TenantImportResult{" +
+                "tenantId='" + tenantId + '\'' +
+                ", deployed=" + deployed +
+                ", skipped=" + skipped +
+                ", durationMillis=" + durationMillis +
+                ", failures=" + failures +
+                '}';
+    }
+}
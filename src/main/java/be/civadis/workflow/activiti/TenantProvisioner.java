@@ -0,0 +1,170 @@
+package be.civadis.workflow.activiti;
+
+import org.activiti.engine.ActivitiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Déploiement des définitions de processus des tenants (cf {@link ActivitiProcessImporter})
+ *
+ * Deux modes :
+ *  eager : tous les tenants sont importés au démarrage (MyApp.deploy)
+ *  lazy : rien n'est importé au démarrage, un tenant est importé (ou vérifié) la première fois que la facade le rencontre,
+ *         les appels concurrents pour un même tenant attendent la fin de ce premier import
+ *         les tenants listés dans workflow.deploy.warm-tenants sont importés en tâche de fond une fois l'application démarrée
+ *
+ * Config :
+ *  workflow.deploy.mode (eager) : eager ou lazy
+ *  workflow.deploy.warm-tenants () : tenants à importer en tâche de fond en mode lazy, séparés par des virgules
+ */
+@Component
+public class TenantProvisioner {
+
+    private static final Logger log = LoggerFactory.getLogger(TenantProvisioner.class);
+
+    private final ActivitiProcessImporter importer;
+    private final TenantSchemaManager schemaManager;
+    private final boolean lazy;
+    private final List<String> warmTenants = new ArrayList<>();
+
+    private final Map<String, CompletableFuture<TenantImportResult>> provisioned = new ConcurrentHashMap<>();
+    private final AtomicLong provisionings = new AtomicLong();
+
+    public TenantProvisioner(ActivitiProcessImporter importer,
+                             TenantSchemaManager schemaManager,
+                             @Value("${workflow.deploy.mode:eager}") String mode,
+                             @Value("${workflow.deploy.warm-tenants:}") String warmTenants) {
+        this.importer = importer;
+        this.schemaManager = schemaManager;
+        this.lazy = "lazy".equalsIgnoreCase(mode);
+        for (String tenantId : warmTenants.split(",")){
+            if (!tenantId.trim().isEmpty()){
+                this.warmTenants.add(tenantId.trim());
+            }
+        }
+    }
+
+    /**
+     * Import au démarrage de l'application, uniquement en mode eager
+     * @param tenantList
+     */
+    public void provisionAtStartup(List<String> tenantList){
+        if (lazy){
+            log.info("Lazy process deployment, {} tenants will be provisioned on first use", tenantList.size());
+            return;
+        }
+        for (TenantImportResult result : importer.importTenants(tenantList)){
+            //un tenant en erreur n'est pas marqué provisionné
+            if (!result.isFailed()){
+                provisioned.put(result.getTenantId(), CompletableFuture.completedFuture(result));
+            }
+        }
+    }
+
+    /**
+     * Garantit que les définitions de processus du tenant sont déployées, sans effet en mode eager
+     * Le premier appel pour un tenant effectue l'import, les appels concurrents l'attendent, les suivants retournent immédiatement
+     * Si l'import échoue (exception ou fichier en erreur, cf TenantImportResult), l'appel lève une exception et l'import sera retenté au prochain appel
+     * @param tenantId
+     */
+    public void ensureProvisioned(String tenantId){
+        if (!lazy || tenantId == null){
+            return;
+        }
+
+        CompletableFuture<TenantImportResult> future = provisioned.get(tenantId);
+        if (future == null){
+            CompletableFuture<TenantImportResult> created = new CompletableFuture<>();
+            future = provisioned.putIfAbsent(tenantId, created);
+            if (future == null){
+                future = created;
+                provision(tenantId, created);
+            }
+        }
+
+        try {
+            future.join();
+        } catch (CompletionException e){
+            throw new ActivitiException("Process deployment failed for tenant " + tenantId, e.getCause());
+        }
+    }
+
+    /**
+     * Ajoute un tenant en cours d'exécution (schéma préparé en mode schéma par tenant, cf TenantSchemaManager) et importe ses processus
+     * L'import ne redéploie pas les fichiers déjà déployés, l'appel peut être répété
+     * @param tenantId
+     * @return résultat de l'import
+     */
+    public TenantImportResult addTenant(String tenantId){
+        schemaManager.addTenant(tenantId);
+        TenantImportResult result = importer.importTenant(tenantId);
+        if (result.isFailed()){
+            provisioned.remove(tenantId);
+        } else {
+            provisioned.put(tenantId, CompletableFuture.completedFuture(result));
+        }
+        return result;
+    }
+
+    public boolean isProvisioned(String tenantId){
+        CompletableFuture<TenantImportResult> future = provisioned.get(tenantId);
+        return future != null && future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Nombre d'imports effectués en mode lazy
+     */
+    public long getProvisionings() {
+        return provisionings.get();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (lazy && !warmTenants.isEmpty()){
+            Thread warmUp = new Thread(this::warmUp, "tenant-warm-up");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
+    }
+
+    private void warmUp(){
+        for (String tenantId : warmTenants){
+            try {
+                ensureProvisioned(tenantId);
+            } catch (Exception e){
+                log.error("Warm-up of tenant {} failed", tenantId, e);
+            }
+        }
+    }
+
+    private void provision(String tenantId, CompletableFuture<TenantImportResult> future){
+        provisionings.incrementAndGet();
+        try {
+            TenantImportResult result = importer.importTenant(tenantId);
+            if (result.isFailed()){
+                throw new ActivitiException("Process deployment for tenant " + tenantId + " completed with errors : " + result.getFailures());
+            }
+            future.complete(result);
+        } catch (RuntimeException e){
+            provisioned.remove(tenantId, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+}
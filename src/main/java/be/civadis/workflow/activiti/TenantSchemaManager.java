@@ -0,0 +1,175 @@
+package be.civadis.workflow.activiti;
+
+import be.civadis.workflow.activiti.async.TenantRoutingAsyncExecutor;
+import be.civadis.workflow.activiti.datasource.TenantSchemaDataSource;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.db.DbSqlSession;
+import org.activiti.engine.impl.interceptor.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tenants disponibles et, en mode schéma par tenant, schéma de chaque tenant
+ *
+ * Deux modes :
+ *  shared : les tenants partagent les tables du moteur, séparés par leur TENANT_ID_
+ *  schema : les données du moteur de chaque tenant sont dans son propre schéma (tables et index propres à chaque tenant),
+ *           les connexions sont routées vers le schéma du tenant courant (cf TenantSchemaDataSource),
+ *           le schéma et les tables du moteur d'un tenant sont créés s'ils n'existent pas, puis l'async executor acquiert ses jobs
+ *           le tenant par défaut utilise le schéma par défaut, ses tables sont gérées par le moteur (databaseSchemaUpdate)
+ *
+ * Config :
+ *  workflow.tenancy.mode (shared) : shared ou schema
+ *  workflow.tenancy.tenants (public) : tenants disponibles, séparés par des virgules
+ */
+@Component
+public class TenantSchemaManager {
+
+    private static final Logger log = LoggerFactory.getLogger(TenantSchemaManager.class);
+
+    private final ProcessEngine processEngine;
+    private final ManagementService managementService;
+    private final boolean schemaPerTenant;
+
+    public TenantSchemaManager(ProcessEngine processEngine,
+                               ManagementService managementService,
+                               @Value("${workflow.tenancy.mode:shared}") String mode,
+                               @Value("${workflow.tenancy.tenants:" + TenantUtils.DEFAULT_TENANT + "}") String tenants) {
+        this.processEngine = processEngine;
+        this.managementService = managementService;
+        this.schemaPerTenant = "schema".equalsIgnoreCase(mode);
+        List<String> tenantList = new ArrayList<>();
+        for (String tenantId : tenants.split(",")){
+            if (!tenantId.trim().isEmpty()){
+                tenantList.add(tenantId.trim());
+            }
+        }
+        TenantUtils.setTenants(tenantList);
+        TenantUtils.setSchemaPerTenant(schemaPerTenant);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (schemaPerTenant){
+            for (String tenantId : TenantUtils.getTenants()){
+                prepare(tenantId);
+            }
+        }
+    }
+
+    /**
+     * Ajoute un tenant disponible, son schéma est préparé en mode schéma par tenant
+     * @param tenantId
+     * @return false si le tenant était déjà connu
+     */
+    public boolean addTenant(String tenantId){
+        if (schemaPerTenant){
+            //valide l'id avant l'ajout
+            TenantSchemaDataSource.schemaFor(tenantId);
+        }
+        if (!TenantUtils.addTenant(tenantId)){
+            return false;
+        }
+        if (schemaPerTenant){
+            try {
+                prepare(tenantId);
+            } catch (RuntimeException e){
+                TenantUtils.removeTenant(tenantId);
+                throw e;
+            }
+        }
+        log.info("Tenant {} added", tenantId);
+        return true;
+    }
+
+    public boolean isSchemaPerTenant() {
+        return schemaPerTenant;
+    }
+
+    /**
+     * Crée si besoin le schéma et les tables du moteur du tenant, puis démarre l'acquisition de ses jobs
+     */
+    private synchronized void prepare(String tenantId){
+        String schema = TenantSchemaDataSource.schemaFor(tenantId);
+        ProcessEngineConfigurationImpl configuration = (ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration();
+        if (schema != null){
+            long start = System.currentTimeMillis();
+            boolean created = TenantUtils.callAs(TenantUtils.DEFAULT_TENANT, () -> createSchema(configuration, schema));
+            if (created){
+                //les tables sont créées dans le schéma courant de la connexion, celui du tenant
+                TenantUtils.runAs(tenantId, () -> managementService.executeCommand((Command<Void>) commandContext -> {
+                    DbSqlSession dbSqlSession = commandContext.getDbSqlSession();
+                    dbSqlSession.executeMandatorySchemaResource("create", "engine");
+                    if (configuration.isDbHistoryUsed()){
+                        dbSqlSession.executeMandatorySchemaResource("create", "history");
+                    }
+                    if (configuration.isDbIdentityUsed()){
+                        dbSqlSession.executeMandatorySchemaResource("create", "identity");
+                    }
+                    return null;
+                }));
+                log.info("Engine tables of tenant {} created in schema {} in {} ms", tenantId, schema, System.currentTimeMillis() - start);
+            }
+        }
+        if (configuration.getAsyncExecutor() instanceof TenantRoutingAsyncExecutor){
+            ((TenantRoutingAsyncExecutor) configuration.getAsyncExecutor()).addTenant(tenantId);
+        }
+    }
+
+    /**
+     * Crée le schéma s'il n'existe pas
+     * @return true si les tables du moteur doivent être créées
+     */
+    private boolean createSchema(ProcessEngineConfigurationImpl configuration, String schema){
+        try (Connection connection = configuration.getDataSource().getConnection()){
+            DatabaseMetaData metaData = connection.getMetaData();
+            String existing = findSchema(metaData, schema);
+            if (existing == null){
+                try (Statement statement = connection.createStatement()){
+                    statement.execute("create schema " + schema);
+                }
+                if (!connection.getAutoCommit()){
+                    connection.commit();
+                }
+                log.info("Schema {} created", schema);
+                return true;
+            }
+            return !tableExists(metaData, existing, "ACT_RU_EXECUTION") && !tableExists(metaData, existing, "act_ru_execution");
+        } catch (SQLException e){
+            throw new ActivitiException("Unable to create schema " + schema, e);
+        }
+    }
+
+    private String findSchema(DatabaseMetaData metaData, String schema) throws SQLException {
+        try (ResultSet rs = metaData.getSchemas()){
+            while (rs.next()){
+                if (schema.equalsIgnoreCase(rs.getString("TABLE_SCHEM"))){
+                    return rs.getString("TABLE_SCHEM");
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean tableExists(DatabaseMetaData metaData, String schema, String table) throws SQLException {
+        try (ResultSet rs = metaData.getTables(null, schema, table, new String[]{"TABLE"})){
+            return rs.next();
+        }
+    }
+
+}
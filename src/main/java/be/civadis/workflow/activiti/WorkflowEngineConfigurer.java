@@ -0,0 +1,107 @@
+package be.civadis.workflow.activiti;
+
+import be.civadis.workflow.activiti.async.TenantJobScheduler;
+import be.civadis.workflow.activiti.async.TenantRoutingAsyncExecutor;
+import be.civadis.workflow.activiti.cache.ParsedModelCache;
+import be.civadis.workflow.activiti.cache.ProcessDefinitionCache;
+import be.civadis.workflow.activiti.deployer.SharedModelParsedDeploymentBuilderFactory;
+import be.civadis.workflow.activiti.history.AsyncHistoryDbSqlSessionFactory;
+import be.civadis.workflow.activiti.history.AsyncHistoryWriter;
+import be.civadis.workflow.activiti.resource.DeduplicatingResourceDataManager;
+import be.civadis.workflow.activiti.resource.ResourceContentStore;
+import org.activiti.spring.SpringAsyncExecutor;
+import org.activiti.spring.SpringProcessEngineConfiguration;
+import org.activiti.spring.boot.ProcessEngineConfigurationConfigurer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Personnalisation de la config du moteur workflow créée par l'auto-configuration spring boot
+ * (un seul ProcessEngineConfigurationConfigurer est pris en compte, toutes les personnalisations sont regroupées ici)
+ */
+@Component
+public class WorkflowEngineConfigurer implements ProcessEngineConfigurationConfigurer {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkflowEngineConfigurer.class);
+
+    private ParsedModelCache parsedModelCache;
+    private ResourceContentStore resourceContentStore;
+    private ProcessDefinitionCache processDefinitionCache;
+    private TenantJobScheduler tenantJobScheduler;
+    private AsyncHistoryWriter asyncHistoryWriter;
+    private boolean schemaPerTenant;
+
+    public WorkflowEngineConfigurer(ParsedModelCache parsedModelCache, ResourceContentStore resourceContentStore,
+                                    ProcessDefinitionCache processDefinitionCache, TenantJobScheduler tenantJobScheduler,
+                                    AsyncHistoryWriter asyncHistoryWriter, @Value("${workflow.tenancy.mode:shared}") String tenancyMode) {
+        this.parsedModelCache = parsedModelCache;
+        this.resourceContentStore = resourceContentStore;
+        this.processDefinitionCache = processDefinitionCache;
+        this.tenantJobScheduler = tenantJobScheduler;
+        this.asyncHistoryWriter = asyncHistoryWriter;
+        this.schemaPerTenant = "schema".equalsIgnoreCase(tenancyMode);
+    }
+
+    @Override
+    public void configure(SpringProcessEngineConfiguration configuration) {
+
+        //modèles BPMN parsés partagés entre les deployments d'un même contenu (tenants)
+        configuration.setParsedDeploymentBuilderFactory(new SharedModelParsedDeploymentBuilderFactory(parsedModelCache));
+
+        //contenu des ressources de deployment stocké une seule fois (référence par hash)
+        resourceContentStore.setDataSource(engineDataSource(configuration));
+        configuration.setResourceDataManager(new DeduplicatingResourceDataManager(configuration, resourceContentStore));
+
+        //pagination par curseur des tasks (cf SeekTaskQuery)
+        Set<String> mappers = new HashSet<>();
+        if (configuration.getCustomMybatisXMLMappers() != null){
+            mappers.addAll(configuration.getCustomMybatisXMLMappers());
+        }
+        mappers.add(SeekTaskQuery.MAPPER);
+        configuration.setCustomMybatisXMLMappers(mappers);
+
+        //cache des définitions de processus borné (LRU) et instrumenté
+        configuration.setProcessDefinitionCache(processDefinitionCache);
+
+        if (schemaPerTenant){
+            //un schéma par tenant (cf TenantSchemaManager) : les ids générés par table ACT_GE_PROPERTY seraient identiques d'un schéma à l'autre,
+            //or les caches du moteur et de l'application sont partagés entre les tenants
+            configuration.setIdGenerator(() -> UUID.randomUUID().toString());
+        }
+
+        //acquisition et exécution des jobs équitables entre les tenants (en mode schéma, dans le schéma de chaque tenant)
+        SpringAsyncExecutor asyncExecutor = (SpringAsyncExecutor) configuration.getAsyncExecutor();
+        configuration.setAsyncExecutor(new TenantRoutingAsyncExecutor(asyncExecutor.getTaskExecutor(), asyncExecutor.getRejectedJobsHandler(),
+                tenantJobScheduler, schemaPerTenant));
+
+        //historique écrit en différé, par lots (cf AsyncHistoryWriter)
+        if (asyncHistoryWriter.isEnabled()){
+            if (schemaPerTenant){
+                log.warn("Async history is not available with one schema per tenant, history is written synchronously");
+            } else {
+                asyncHistoryWriter.setDataSource(engineDataSource(configuration));
+                configuration.setDbSqlSessionFactory(new AsyncHistoryDbSqlSessionFactory(asyncHistoryWriter));
+            }
+        }
+    }
+
+    /**
+     * Datasource du moteur, sans le proxy transactionnel ajouté par SpringProcessEngineConfiguration
+     * (les connexions obtenues rejoignent la transaction spring en cours comme celles du moteur)
+     */
+    private DataSource engineDataSource(SpringProcessEngineConfiguration configuration){
+        DataSource dataSource = configuration.getDataSource();
+        if (dataSource instanceof TransactionAwareDataSourceProxy){
+            return ((TransactionAwareDataSourceProxy) dataSource).getTargetDataSource();
+        }
+        return dataSource;
+    }
+}
@@ -0,0 +1,150 @@
+package be.civadis.workflow.activiti.async;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.impl.JobQueryImpl;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.runtime.Job;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Acquisition (verrouillage) des jobs asynchrones dus, tenant par tenant, dans la limite de la place de chaque tenant dans la file
+ * (remplace AcquireJobsCmd qui lit les jobs de tous les tenants dans l'ordre de la table)
+ * Sans tenant donné (mode schéma par tenant), les jobs lus sont ceux du schéma du tenant courant
+ * Les jobs des tenants non listés et les jobs sans tenant sont lus ensuite, hors tenants listés, dans la limite de la place restante
+ */
+public class AcquireTenantJobsCmd implements Command<List<JobEntity>> {
+
+    private final AsyncExecutor asyncExecutor;
+    private final Collection<String> tenantIds;
+    private final ToIntFunction<String> room;
+    private final String defaultTenantId;
+
+    /**
+     * @param asyncExecutor
+     * @param tenantIds tenants dont les jobs sont lus, null pour les jobs du schéma courant, attribués au tenant par défaut
+     * @param room place disponible dans la file pour un tenant
+     * @param defaultTenantId tenant des jobs sans tenant
+     */
+    public AcquireTenantJobsCmd(AsyncExecutor asyncExecutor, Collection<String> tenantIds, ToIntFunction<String> room, String defaultTenantId) {
+        this.asyncExecutor = asyncExecutor;
+        this.tenantIds = tenantIds;
+        this.room = room;
+        this.defaultTenantId = defaultTenantId;
+    }
+
+    @Override
+    public List<JobEntity> execute(CommandContext commandContext) {
+        int pageSize = asyncExecutor.getMaxAsyncJobsDuePerAcquisition();
+        List<JobEntity> acquired = new ArrayList<>();
+        if (tenantIds == null){
+            int limit = Math.min(pageSize, room.applyAsInt(defaultTenantId));
+            if (limit > 0){
+                lock(commandContext, new JobQueryImpl(commandContext).unlocked().listPage(0, limit), acquired);
+            }
+            return acquired;
+        }
+
+        Map<String, Integer> rooms = new HashMap<>();
+        for (String tenantId : tenantIds){
+            int limit = Math.min(pageSize, room.applyAsInt(tenantId));
+            if (limit > 0){
+                int count = lock(commandContext, new JobQueryImpl(commandContext).unlocked().jobTenantId(tenantId).listPage(0, limit), acquired);
+                rooms.put(tenantId, limit - count);
+            } else {
+                rooms.put(tenantId, 0);
+            }
+        }
+
+        //jobs des autres tenants et jobs sans tenant, les tenants listés sont exclus de la requête : leur backlog n'occupe pas la page
+        List<Job> others = new ArrayList<>();
+        for (String jobId : findUnlistedJobIds(commandContext, pageSize)){
+            JobEntity job = commandContext.getJobEntityManager().findById(jobId);
+            if (job == null || job.getLockExpirationTime() != null){
+                //exécuté ou verrouillé entre-temps
+                continue;
+            }
+            String tenantId = tenantOf(job);
+            int remaining = rooms.computeIfAbsent(tenantId, id -> Math.min(pageSize, room.applyAsInt(id)));
+            if (remaining > 0){
+                rooms.put(tenantId, remaining - 1);
+                others.add(job);
+            }
+        }
+        lock(commandContext, others, acquired);
+        return acquired;
+    }
+
+    /**
+     * Tenant d'un job, le tenant par défaut pour un job sans tenant
+     * @param job
+     * @return
+     */
+    public String tenantOf(Job job){
+        if (tenantIds == null || job.getTenantId() == null || job.getTenantId().isEmpty()){
+            return defaultTenantId;
+        }
+        return job.getTenantId();
+    }
+
+    /**
+     * Ids des jobs non verrouillés des tenants non listés et des jobs sans tenant, dans l'ordre de JobQueryImpl (ID_)
+     * JobQueryImpl ne permet pas d'exclure des tenants : requête sur la connexion de la commande
+     */
+    private List<String> findUnlistedJobIds(CommandContext commandContext, int pageSize){
+        StringBuilder sql = new StringBuilder("select ID_ from ")
+                .append(commandContext.getProcessEngineConfiguration().getDatabaseTablePrefix())
+                .append("ACT_RU_JOB where LOCK_EXP_TIME_ is null");
+        if (!tenantIds.isEmpty()){
+            sql.append(" and (TENANT_ID_ is null or TENANT_ID_ = '' or TENANT_ID_ not in (")
+                    .append(String.join(", ", Collections.nCopies(tenantIds.size(), "?")))
+                    .append("))");
+        }
+        sql.append(" order by ID_ asc");
+        List<String> ids = new ArrayList<>();
+        Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())){
+            int index = 1;
+            for (String tenantId : tenantIds){
+                statement.setString(index++, tenantId);
+            }
+            statement.setMaxRows(pageSize);
+            try (ResultSet resultSet = statement.executeQuery()){
+                while (resultSet.next()){
+                    ids.add(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException e){
+            throw new ActivitiException("Unable to read the jobs of unlisted tenants", e);
+        }
+        return ids;
+    }
+
+    private int lock(CommandContext commandContext, List<Job> jobs, List<JobEntity> acquired){
+        GregorianCalendar lockExpiration = new GregorianCalendar();
+        lockExpiration.setTime(commandContext.getProcessEngineConfiguration().getClock().getCurrentTime());
+        lockExpiration.add(Calendar.MILLISECOND, asyncExecutor.getAsyncJobLockTimeInMillis());
+        for (Job job : jobs){
+            JobEntity jobEntity = (JobEntity) job;
+            jobEntity.setLockOwner(asyncExecutor.getLockOwner());
+            jobEntity.setLockExpirationTime(lockExpiration.getTime());
+            acquired.add(jobEntity);
+        }
+        return jobs.size();
+    }
+}
@@ -0,0 +1,26 @@
+package be.civadis.workflow.activiti.async;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Endpoint actuator /asyncexecutor : état de l'async executor du moteur (cf {@link AsyncExecutorMonitor#getStatus()})
+ * Les réglages sont modifiables par POST (cf {@link AsyncExecutorMvcEndpoint})
+ */
+@Component
+public class AsyncExecutorEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+    private final AsyncExecutorMonitor monitor;
+
+    public AsyncExecutorEndpoint(AsyncExecutorMonitor monitor) {
+        super("asyncexecutor", true);
+        this.monitor = monitor;
+    }
+
+    @Override
+    public Map<String, Object> invoke() {
+        return monitor.getStatus();
+    }
+}
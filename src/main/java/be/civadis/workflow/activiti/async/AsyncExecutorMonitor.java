@@ -0,0 +1,174 @@
+package be.civadis.workflow.activiti.async;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.spring.SpringAsyncExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Etat et réglage à chaud de l'async executor du moteur (cf TenantRoutingAsyncExecutor), exposés par l'endpoint actuator asyncexecutor
+ * Métriques : workflow.async.executor.* (acquisition, échecs, pool), la file et les exécutions sont mesurées par {@link TenantJobScheduler}
+ */
+@Component
+public class AsyncExecutorMonitor implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncExecutorMonitor.class);
+
+    private final ProcessEngine processEngine;
+    private final TenantJobScheduler scheduler;
+
+    public AsyncExecutorMonitor(ProcessEngine processEngine, TenantJobScheduler scheduler) {
+        this.processEngine = processEngine;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Etat de l'executor : acquisition, pool de threads, file, jobs et statistiques par tenant
+     * @return
+     */
+    public Map<String, Object> getStatus(){
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("active", asyncExecutor.isActive());
+        status.put("lockOwner", asyncExecutor.getLockOwner());
+        status.put("acquisitionPageSize", asyncExecutor.getMaxAsyncJobsDuePerAcquisition());
+        status.put("lockTimeMs", asyncExecutor.getAsyncJobLockTimeInMillis());
+
+        ThreadPoolTaskExecutor pool = getPool();
+        if (pool != null){
+            Map<String, Object> poolStatus = new LinkedHashMap<>();
+            poolStatus.put("corePoolSize", pool.getCorePoolSize());
+            poolStatus.put("maxPoolSize", pool.getMaxPoolSize());
+            poolStatus.put("poolSize", pool.getPoolSize());
+            poolStatus.put("activeThreads", pool.getActiveCount());
+            status.put("pool", poolStatus);
+        }
+
+        Map<String, Object> queue = new LinkedHashMap<>();
+        queue.put("capacity", scheduler.getQueueCapacity());
+        queue.put("queued", scheduler.getQueued());
+        queue.put("running", scheduler.getRunning());
+        queue.put("maxConcurrency", scheduler.getMaxConcurrency());
+        status.put("queue", queue);
+
+        Map<String, Object> jobs = new LinkedHashMap<>();
+        Map<String, Map<String, Number>> tenants = scheduler.getTenantStats();
+        if (asyncExecutor instanceof TenantRoutingAsyncExecutor){
+            TenantRoutingAsyncExecutor tenantExecutor = (TenantRoutingAsyncExecutor) asyncExecutor;
+            jobs.put("acquired", tenantExecutor.getAcquired());
+            jobs.put("failed", tenantExecutor.getFailed());
+            jobs.put("acquisitionLockFailures", tenantExecutor.getAcquisitionLockFailures());
+            jobs.put("executionLockFailures", tenantExecutor.getExecutionLockFailures());
+        }
+        jobs.put("executed", scheduler.getExecuted());
+        jobs.put("rejected", tenants.values().stream().mapToLong(stats -> stats.get("rejected").longValue()).sum());
+        jobs.put("executionTimeMs", scheduler.getExecutionTimeMillis());
+        status.put("jobs", jobs);
+        status.put("tenants", tenants);
+        return status;
+    }
+
+    /**
+     * Modifie les réglages de l'executor, les valeurs null sont inchangées
+     * @param corePoolSize threads gardés actifs
+     * @param maxPoolSize threads maximum, donc jobs exécutés simultanément (cf TenantJobScheduler)
+     * @param queueCapacity jobs en attente d'exécution, tous tenants confondus
+     * @param acquisitionPageSize jobs acquis par requête d'acquisition (et par tenant)
+     */
+    public void tune(Integer corePoolSize, Integer maxPoolSize, Integer queueCapacity, Integer acquisitionPageSize){
+        checkPositive("corePoolSize", corePoolSize);
+        checkPositive("maxPoolSize", maxPoolSize);
+        checkPositive("queueCapacity", queueCapacity);
+        checkPositive("acquisitionPageSize", acquisitionPageSize);
+
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        if (corePoolSize != null || maxPoolSize != null){
+            ThreadPoolTaskExecutor pool = getPool();
+            if (pool == null){
+                throw new ActivitiIllegalArgumentException("The task executor of the async executor is not a thread pool");
+            }
+            synchronized (pool){
+                int core = corePoolSize != null ? corePoolSize : pool.getCorePoolSize();
+                int max = maxPoolSize != null ? maxPoolSize : pool.getMaxPoolSize();
+                if (core > max){
+                    throw new ActivitiIllegalArgumentException("corePoolSize " + core + " is greater than maxPoolSize " + max);
+                }
+                //le pool refuse un maximum inférieur au nombre de threads gardés actifs
+                if (max >= pool.getCorePoolSize()){
+                    pool.setMaxPoolSize(max);
+                    pool.setCorePoolSize(core);
+                } else {
+                    pool.setCorePoolSize(core);
+                    pool.setMaxPoolSize(max);
+                }
+            }
+        }
+        if (queueCapacity != null){
+            scheduler.setQueueCapacity(queueCapacity);
+        }
+        if (acquisitionPageSize != null){
+            asyncExecutor.setMaxAsyncJobsDuePerAcquisition(acquisitionPageSize);
+        }
+        //des threads ont pu se libérer
+        scheduler.dispatch();
+        log.info("Async executor tuned : corePoolSize={}, maxPoolSize={}, queueCapacity={}, acquisitionPageSize={}",
+                corePoolSize, maxPoolSize, queueCapacity, acquisitionPageSize);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        metrics.add(new Metric<>("workflow.async.executor.acquisition-page-size", asyncExecutor.getMaxAsyncJobsDuePerAcquisition()));
+        if (asyncExecutor instanceof TenantRoutingAsyncExecutor){
+            TenantRoutingAsyncExecutor tenantExecutor = (TenantRoutingAsyncExecutor) asyncExecutor;
+            metrics.add(new Metric<>("workflow.async.executor.acquired", tenantExecutor.getAcquired()));
+            metrics.add(new Metric<>("workflow.async.executor.failed", tenantExecutor.getFailed()));
+            metrics.add(new Metric<>("workflow.async.executor.acquisition-lock-failures", tenantExecutor.getAcquisitionLockFailures()));
+            metrics.add(new Metric<>("workflow.async.executor.execution-lock-failures", tenantExecutor.getExecutionLockFailures()));
+        }
+        ThreadPoolTaskExecutor pool = getPool();
+        if (pool != null){
+            metrics.add(new Metric<>("workflow.async.executor.pool.core-size", pool.getCorePoolSize()));
+            metrics.add(new Metric<>("workflow.async.executor.pool.max-size", pool.getMaxPoolSize()));
+            metrics.add(new Metric<>("workflow.async.executor.pool.size", pool.getPoolSize()));
+            metrics.add(new Metric<>("workflow.async.executor.pool.active", pool.getActiveCount()));
+        }
+        return metrics;
+    }
+
+    private AsyncExecutor getAsyncExecutor(){
+        return ((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getAsyncExecutor();
+    }
+
+    private ThreadPoolTaskExecutor getPool(){
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        if (asyncExecutor instanceof SpringAsyncExecutor){
+            TaskExecutor taskExecutor = ((SpringAsyncExecutor) asyncExecutor).getTaskExecutor();
+            if (taskExecutor instanceof ThreadPoolTaskExecutor){
+                return (ThreadPoolTaskExecutor) taskExecutor;
+            }
+        }
+        return null;
+    }
+
+    private void checkPositive(String name, Integer value){
+        if (value != null && value <= 0){
+            throw new ActivitiIllegalArgumentException(name + " must be positive");
+        }
+    }
+}
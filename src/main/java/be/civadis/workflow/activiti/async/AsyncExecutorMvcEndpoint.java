@@ -0,0 +1,48 @@
+package be.civadis.workflow.activiti.async;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.springframework.boot.actuate.endpoint.mvc.EndpointMvcAdapter;
+import org.springframework.boot.actuate.endpoint.mvc.HypermediaDisabled;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Endpoint actuator /asyncexecutor en MVC : GET retourne l'état de l'executor, POST modifie ses réglages à chaud
+ * Corps du POST (json), propriétés absentes inchangées :
+ *  corePoolSize, maxPoolSize : threads du pool d'exécution des jobs
+ *  queueCapacity : jobs en attente d'exécution, tous tenants confondus
+ *  acquisitionPageSize : jobs acquis par requête d'acquisition
+ * Retourne l'état après modification, ou 400 si un réglage est invalide
+ */
+@Component
+public class AsyncExecutorMvcEndpoint extends EndpointMvcAdapter {
+
+    private final AsyncExecutorMonitor monitor;
+
+    public AsyncExecutorMvcEndpoint(AsyncExecutorEndpoint delegate, AsyncExecutorMonitor monitor) {
+        super(delegate);
+        this.monitor = monitor;
+    }
+
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @HypermediaDisabled
+    public Object tune(@RequestBody Map<String, Integer> settings) {
+        if (!getDelegate().isEnabled()) {
+            return getDisabledResponse();
+        }
+        try {
+            monitor.tune(settings.get("corePoolSize"), settings.get("maxPoolSize"), settings.get("queueCapacity"), settings.get("acquisitionPageSize"));
+        } catch (ActivitiIllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Collections.singletonMap("message", e.getMessage()));
+        }
+        return monitor.getStatus();
+    }
+}
@@ -0,0 +1,70 @@
+package be.civadis.workflow.activiti.async;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Pool de threads d'exécution des jobs asynchrones du moteur (remplace le SimpleAsyncTaskExecutor de l'auto-configuration, un thread par job)
+ * Les jobs attendent dans la file de {@link TenantJobScheduler}, qui ne confie pas plus de jobs que le pool n'a de threads (max-pool-size)
+ * Un job confié est passé à un thread libre, sinon à un nouveau thread tant que le pool n'a pas atteint sa taille maximum.
+ * Au delà, un thread termine son exécution et retourne au pool : le job est mis dans la file du pool, sans attente du thread appelant,
+ * et repris par ce thread dès qu'il est libre
+ * Les tailles du pool sont modifiables à chaud (cf AsyncExecutorMvcEndpoint)
+ *
+ * Config :
+ *  workflow.async-executor.core-pool-size (2)
+ *  workflow.async-executor.max-pool-size (8) : également le nombre maximum de jobs exécutés simultanément, tous tenants confondus
+ *  workflow.async-executor.keep-alive-seconds (60)
+ */
+@Component
+public class AsyncJobTaskExecutor extends ThreadPoolTaskExecutor {
+
+    public AsyncJobTaskExecutor(@Value("${workflow.async-executor.core-pool-size:2}") int corePoolSize,
+                                @Value("${workflow.async-executor.max-pool-size:8}") int maxPoolSize,
+                                @Value("${workflow.async-executor.keep-alive-seconds:60}") int keepAliveSeconds) {
+        setCorePoolSize(corePoolSize);
+        setMaxPoolSize(Math.max(corePoolSize, maxPoolSize));
+        setKeepAliveSeconds(keepAliveSeconds);
+        setThreadNamePrefix("activiti-job-");
+        setRejectedExecutionHandler(AsyncJobTaskExecutor::queue);
+        //les jobs en cours terminent à l'arrêt, les jobs en file sont repris (verrou expiré) au prochain démarrage
+        setWaitForTasksToCompleteOnShutdown(true);
+        setAwaitTerminationSeconds(30);
+    }
+
+    @Override
+    protected BlockingQueue<Runnable> createQueue(int queueCapacity) {
+        return new HandOffQueue();
+    }
+
+    /**
+     * Met en file la tâche refusée car le pool a atteint sa taille maximum, elle est reprise par le prochain thread libéré
+     */
+    private static void queue(Runnable task, ThreadPoolExecutor executor){
+        if (executor.isShutdown() || !((HandOffQueue) executor.getQueue()).queue(task)){
+            throw new RejectedExecutionException("Task " + task + " rejected from " + executor);
+        }
+    }
+
+    /**
+     * File du pool : une tâche proposée n'est acceptée que si un thread libre l'attend, le pool crée sinon un thread
+     * (comme une SynchronousQueue), elle n'est mise en file qu'une fois la taille maximum du pool atteinte
+     */
+    private static class HandOffQueue extends LinkedTransferQueue<Runnable> {
+
+        @Override
+        public boolean offer(Runnable task) {
+            return tryTransfer(task);
+        }
+
+        boolean queue(Runnable task){
+            return super.offer(task);
+        }
+    }
+}
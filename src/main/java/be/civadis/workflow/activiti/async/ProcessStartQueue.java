@@ -0,0 +1,221 @@
+package be.civadis.workflow.activiti.async;
+
+import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.batch.ProcessStartResult;
+import be.civadis.workflow.security.TenantUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File bornée de démarrages de processus asynchrones
+ * Les demandes sont acceptées immédiatement (ticket) puis démarrées par des workers, par lots (une transaction par processus et tenant du lot)
+ * Lorsque la file est pleine, la demande est refusée : l'appelant doit réessayer plus tard (backpressure)
+ * Les demandes encore en file à l'arrêt du service sont perdues, leur ticket reste PENDING
+ *
+ * Config :
+ *  workflow.async-start.queue-capacity (1000)
+ *  workflow.async-start.workers (2)
+ *  workflow.async-start.batch-size (50)
+ *  workflow.async-start.ticket-ttl-ms (3600000) : durée de conservation des tickets terminés
+ */
+@Component
+public class ProcessStartQueue implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessStartQueue.class);
+
+    private final EngineFacade engineFacade;
+    private final int workers;
+    private final int batchSize;
+    private final long ticketTtlMillis;
+
+    private final BlockingQueue<Request> queue;
+    private final Map<String, ProcessStartTicket> tickets = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    private volatile boolean running;
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public ProcessStartQueue(EngineFacade engineFacade,
+                             @Value("${workflow.async-start.queue-capacity:1000}") int queueCapacity,
+                             @Value("${workflow.async-start.workers:2}") int workers,
+                             @Value("${workflow.async-start.batch-size:50}") int batchSize,
+                             @Value("${workflow.async-start.ticket-ttl-ms:3600000}") long ticketTtlMillis) {
+        this.engineFacade = engineFacade;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.ticketTtlMillis = ticketTtlMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "process-start-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workers; i++){
+            executor.submit(this::work);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+        if (!queue.isEmpty()){
+            log.warn("{} process start requests not processed at shutdown", queue.size());
+        }
+    }
+
+    /**
+     * Place une demande de démarrage en file pour le tenant courant
+     * @param processName nom du processus
+     * @param variables variables d'initialisation
+     * @return le ticket de suivi, null si la file est pleine
+     */
+    public ProcessStartTicket submit(String processName, Map<String, Object> variables) {
+        String tenantId = TenantUtils.getCurrentTenant();
+        ProcessStartTicket ticket = new ProcessStartTicket(UUID.randomUUID().toString(), processName, tenantId);
+        //enregistré avant la mise en file : un worker peut terminer la demande avant le retour de offer
+        tickets.put(ticket.getId(), ticket);
+        if (!running || !queue.offer(new Request(ticket, tenantId, variables))){
+            tickets.remove(ticket.getId());
+            rejected.incrementAndGet();
+            return null;
+        }
+        accepted.incrementAndGet();
+        return ticket;
+    }
+
+    /**
+     * @param ticketId
+     * @return le ticket, null s'il n'existe pas (ou plus) ou s'il a été soumis par un autre tenant que le tenant courant
+     */
+    public ProcessStartTicket getTicket(String ticketId) {
+        ProcessStartTicket ticket = tickets.get(ticketId);
+        if (ticket == null || !TenantUtils.getCurrentTenant().equals(ticket.getTenantId())){
+            return null;
+        }
+        return ticket;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.async.start.queue.size", queue.size()));
+        metrics.add(new Metric<>("workflow.async.start.queue.remaining", queue.remainingCapacity()));
+        metrics.add(new Metric<>("workflow.async.start.accepted", accepted.get()));
+        metrics.add(new Metric<>("workflow.async.start.rejected", rejected.get()));
+        metrics.add(new Metric<>("workflow.async.start.started", started.get()));
+        metrics.add(new Metric<>("workflow.async.start.failed", failed.get()));
+        return metrics;
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()){
+            try {
+                purgeTickets();
+                Request first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null){
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                process(batch);
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex){
+                log.error("Process start batch failed", ex);
+                for (Request request : batch){
+                    if (request.ticket.getStatus() == ProcessStartTicket.Status.PENDING){
+                        request.ticket.failed(ex.getMessage());
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<Request> batch) {
+
+        //un lot par tenant et processus
+        Map<String, List<Request>> groups = new LinkedHashMap<>();
+        for (Request request : batch){
+            groups.computeIfAbsent(request.tenantId + "|" + request.ticket.getProcessName(), k -> new ArrayList<>()).add(request);
+        }
+
+        for (List<Request> group : groups.values()){
+            List<Map<String, Object>> variablesList = new ArrayList<>();
+            for (Request request : group){
+                variablesList.add(request.variables);
+            }
+            Request first = group.get(0);
+            List<ProcessStartResult> results = engineFacade.startProcesses(first.tenantId, first.ticket.getProcessName(), variablesList);
+            for (ProcessStartResult result : results){
+                ProcessStartTicket ticket = group.get(result.getIndex()).ticket;
+                if (result.getStatus() == ProcessStartResult.Status.STARTED){
+                    started.incrementAndGet();
+                    ticket.started(result.getProcessInstanceId());
+                } else {
+                    failed.incrementAndGet();
+                    ticket.failed(result.getMessage());
+                }
+            }
+        }
+    }
+
+    private void purgeTickets() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < 60000){
+            return;
+        }
+        lastPurge = now;
+        long limit = now - ticketTtlMillis;
+        tickets.values().removeIf(ticket -> ticket.getEndTime() != null && ticket.getEndTime().getTime() < limit);
+    }
+
+    private static class Request {
+
+        private final ProcessStartTicket ticket;
+        private final String tenantId;
+        private final Map<String, Object> variables;
+
+        Request(ProcessStartTicket ticket, String tenantId, Map<String, Object> variables) {
+            this.ticket = ticket;
+            this.tenantId = tenantId;
+            this.variables = variables;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package be.civadis.workflow.activiti.async;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Suivi d'une demande de démarrage asynchrone de processus
+ */
+public class ProcessStartTicket implements Serializable {
+
+    public enum Status {
+        /** en attente dans la file */
+        PENDING,
+        /** instance démarrée */
+        STARTED,
+        /** erreur lors du démarrage */
+        FAILED
+    }
+
+    private String id;
+
+    private String processName;
+
+    //tenant ayant soumis la demande, non exposé
+    private String tenantId;
+
+    private volatile Status status = Status.PENDING;
+
+    private volatile String processInstanceId;
+
+    private volatile String message;
+
+    private Date submitTime;
+
+    private volatile Date endTime;
+
+    public ProcessStartTicket() {
+    }
+
+    public ProcessStartTicket(String id, String processName, String tenantId) {
+        this.id = id;
+        this.processName = processName;
+        this.tenantId = tenantId;
+        this.submitTime = new Date();
+    }
+
+    void started(String processInstanceId) {
+        this.processInstanceId = processInstanceId;
+        this.endTime = new Date();
+        this.status = Status.STARTED;
+    }
+
+    void failed(String message) {
+        this.message = message;
+        this.endTime = new Date();
+        this.status = Status.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getProcessName() {
+        return processName;
+    }
+
+    String getTenantId() {
+        return tenantId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Date getSubmitTime() {
+        return submitTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+}
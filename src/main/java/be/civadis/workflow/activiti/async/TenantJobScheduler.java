@@ -0,0 +1,367 @@
+package be.civadis.workflow.activiti.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Ordonnancement équitable entre tenants des jobs asynchrones du moteur (cf TenantRoutingAsyncExecutor)
+ * Les jobs acquis sont mis en file par tenant, puis confiés au TaskExecutor du moteur en round-robin pondéré (smooth weighted round-robin)
+ * parmi les tenants qui ont des jobs en attente et n'ont pas atteint leur limite d'exécutions simultanées
+ * Un tenant ne peut occuper plus d'une part de la file (max-queue-share) : au delà, ses jobs sont refusés
+ * et restent en base, l'acquisition ne lit que la place disponible pour chaque tenant (cf {@link #room(String)})
+ *
+ * Le nombre maximum de jobs exécutés simultanément, tous tenants confondus, est la taille maximum du pool de threads du TaskExecutor
+ * (workflow.async-executor.max-pool-size, cf AsyncJobTaskExecutor), lue à chaque ordonnancement : elle suit les réglages à chaud du pool
+ *
+ * Config :
+ *  workflow.async-executor.queue-capacity (100) : nombre maximum de jobs en attente d'exécution, tous tenants confondus
+ *  workflow.async-executor.max-queue-share (0.5) : part maximum de la file occupée par un tenant
+ *  workflow.async-executor.tenant-max-concurrency (0) : nombre maximum de jobs d'un tenant exécutés simultanément, 0 pour la seule limite globale
+ *  workflow.async-executor.tenant-weights () : poids des tenants, ex : tenantA:2,tenantB:3 (1 par défaut)
+ */
+@Component
+public class TenantJobScheduler implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(TenantJobScheduler.class);
+
+    private final double maxQueueShare;
+    private final int tenantMaxConcurrencyLimit;
+    private int maxConcurrency = Integer.MAX_VALUE;
+    private int queueCapacity;
+    private int tenantQueueLimit;
+    private final Map<String, Integer> weights = new HashMap<>();
+
+    private final Map<String, TenantQueue> tenants = new LinkedHashMap<>();
+    private Executor taskExecutor;
+    private int queued;
+    private int running;
+    private long executed;
+    private long executionMillis;
+
+    public TenantJobScheduler(@Value("${workflow.async-executor.queue-capacity:100}") int queueCapacity,
+                              @Value("${workflow.async-executor.max-queue-share:0.5}") double maxQueueShare,
+                              @Value("${workflow.async-executor.tenant-max-concurrency:0}") int tenantMaxConcurrency,
+                              @Value("${workflow.async-executor.tenant-weights:}") String tenantWeights) {
+        this.maxQueueShare = Math.min(1d, maxQueueShare);
+        this.tenantMaxConcurrencyLimit = tenantMaxConcurrency;
+        setQueueCapacity(queueCapacity);
+        for (String entry : tenantWeights.split(",")){
+            int separator = entry.lastIndexOf(':');
+            if (separator > 0){
+                try {
+                    weights.put(entry.substring(0, separator).trim(), Math.max(1, Integer.parseInt(entry.substring(separator + 1).trim())));
+                } catch (NumberFormatException e){
+                    log.warn("Invalid tenant weight {} ignored", entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executor auquel les jobs sont confiés, celui de l'async executor du moteur
+     * @param taskExecutor
+     */
+    public synchronized void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Modifie la taille de la file, les jobs déjà en file y restent
+     * @param queueCapacity
+     */
+    public synchronized void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.tenantQueueLimit = Math.max(1, (int) Math.ceil(this.queueCapacity * maxQueueShare));
+    }
+
+    public synchronized int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Modifie le nombre maximum de jobs exécutés simultanément lorsque le TaskExecutor n'est pas un pool de threads,
+     * les jobs en attente sont confiés au TaskExecutor si la limite augmente
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        synchronized (this){
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+        }
+        dispatch();
+    }
+
+    /**
+     * @return nombre maximum de jobs exécutés simultanément : la taille maximum du pool de threads du TaskExecutor
+     */
+    public synchronized int getMaxConcurrency() {
+        if (taskExecutor instanceof ThreadPoolTaskExecutor){
+            return ((ThreadPoolTaskExecutor) taskExecutor).getMaxPoolSize();
+        }
+        if (taskExecutor instanceof ThreadPoolExecutor){
+            return ((ThreadPoolExecutor) taskExecutor).getMaximumPoolSize();
+        }
+        return maxConcurrency;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return durée moyenne d'exécution des jobs, tous tenants confondus
+     */
+    public synchronized long getExecutionTimeMillis() {
+        return executed > 0 ? executionMillis / executed : 0;
+    }
+
+    /**
+     * Statistiques par tenant : queued, running, executed, rejected, wait-time-ms, max-wait-time-ms, execution-time-ms (moyennes)
+     * @return
+     */
+    public synchronized Map<String, Map<String, Number>> getTenantStats() {
+        Map<String, Map<String, Number>> stats = new LinkedHashMap<>();
+        for (TenantQueue tenant : tenants.values()){
+            Map<String, Number> tenantStats = new LinkedHashMap<>();
+            tenantStats.put("queued", tenant.jobs.size());
+            tenantStats.put("running", tenant.running);
+            tenantStats.put("executed", tenant.executed);
+            tenantStats.put("rejected", tenant.rejected);
+            tenantStats.put("wait-time-ms", tenant.executed > 0 ? tenant.waitMillis / tenant.executed : 0);
+            tenantStats.put("max-wait-time-ms", tenant.maxWaitMillis);
+            tenantStats.put("execution-time-ms", tenant.executed > 0 ? tenant.executionMillis / tenant.executed : 0);
+            stats.put(tenant.tenantId, tenantStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Nombre de jobs du tenant que la file peut encore accepter
+     * @param tenantId
+     * @return
+     */
+    public synchronized int room(String tenantId){
+        TenantQueue tenant = tenants.get(tenantId);
+        int tenantQueued = tenant != null ? tenant.jobs.size() : 0;
+        return Math.max(0, Math.min(queueCapacity - queued, tenantQueueLimit - tenantQueued));
+    }
+
+    /**
+     * Met un job du tenant en file, il est exécuté dès que son tour vient
+     * @param tenantId
+     * @param job
+     * @return false si la file est pleine, pour ce tenant ou tous tenants confondus
+     */
+    public boolean offer(String tenantId, Runnable job){
+        synchronized (this){
+            TenantQueue tenant = tenants.computeIfAbsent(tenantId, TenantQueue::new);
+            if (room(tenantId) <= 0){
+                tenant.rejected++;
+                return false;
+            }
+            tenant.jobs.addLast(new QueuedJob(job));
+            queued++;
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Confie au TaskExecutor les jobs en attente, tant que les limites d'exécutions simultanées le permettent
+     */
+    void dispatch(){
+        while (true){
+            ScheduledJob job;
+            Executor executor;
+            synchronized (this){
+                job = poll();
+                if (job == null){
+                    return;
+                }
+                executor = taskExecutor;
+            }
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e){
+                //TaskExecutor arrêté ou saturé (AsyncJobTaskExecutor met en file au delà de sa taille maximum) : le job reprend sa place
+                synchronized (this){
+                    job.tenant.jobs.addFirst(job.job);
+                    queued++;
+                    job.tenant.running--;
+                    running--;
+                }
+                log.debug("Task executor rejected a job of tenant {}, job kept in queue", job.tenant.tenantId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Retire de la file le job suivant, compté comme en cours d'exécution
+     * @return null si aucun job ne peut être exécuté
+     */
+    private synchronized ScheduledJob poll(){
+        TenantQueue tenant = next();
+        if (tenant == null){
+            return null;
+        }
+        QueuedJob job = tenant.jobs.pollFirst();
+        queued--;
+        tenant.running++;
+        running++;
+        return new ScheduledJob(tenant, job);
+    }
+
+    /**
+     * Tenant suivant (smooth weighted round-robin), parmi ceux qui ont des jobs en attente et n'ont pas atteint leur limite
+     */
+    private TenantQueue next(){
+        if (taskExecutor == null){
+            return null;
+        }
+        int maxConcurrency = getMaxConcurrency();
+        if (running >= maxConcurrency){
+            return null;
+        }
+        int tenantMaxConcurrency = tenantMaxConcurrencyLimit > 0 ? Math.min(tenantMaxConcurrencyLimit, maxConcurrency) : maxConcurrency;
+        TenantQueue selected = null;
+        int totalWeight = 0;
+        for (TenantQueue tenant : tenants.values()){
+            if (tenant.jobs.isEmpty() || tenant.running >= tenantMaxConcurrency){
+                continue;
+            }
+            tenant.currentWeight += tenant.weight;
+            totalWeight += tenant.weight;
+            if (selected == null || tenant.currentWeight > selected.currentWeight){
+                selected = tenant;
+            }
+        }
+        if (selected != null){
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+    private synchronized void completed(TenantQueue tenant, long waitMillis, long executionMillis){
+        tenant.running--;
+        running--;
+        tenant.executed++;
+        tenant.waitMillis += waitMillis;
+        tenant.maxWaitMillis = Math.max(tenant.maxWaitMillis, waitMillis);
+        tenant.executionMillis += executionMillis;
+        executed++;
+        this.executionMillis += executionMillis;
+    }
+
+    @Override
+    public synchronized Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        long rejected = 0;
+        for (Map.Entry<String, Map<String, Number>> tenant : getTenantStats().entrySet()){
+            for (Map.Entry<String, Number> stat : tenant.getValue().entrySet()){
+                metrics.add(new Metric<>("workflow.async.jobs.tenant." + tenant.getKey() + "." + stat.getKey(), stat.getValue()));
+            }
+            rejected += tenant.getValue().get("rejected").longValue();
+        }
+        metrics.add(new Metric<>("workflow.async.jobs.queued", queued));
+        metrics.add(new Metric<>("workflow.async.jobs.running", running));
+        metrics.add(new Metric<>("workflow.async.jobs.executed", executed));
+        metrics.add(new Metric<>("workflow.async.jobs.rejected", rejected));
+        metrics.add(new Metric<>("workflow.async.jobs.execution-time-ms", getExecutionTimeMillis()));
+        metrics.add(new Metric<>("workflow.async.jobs.queue-capacity", queueCapacity));
+        metrics.add(new Metric<>("workflow.async.jobs.max-concurrency", getMaxConcurrency()));
+        return metrics;
+    }
+
+    /**
+     * File et statistiques d'un tenant
+     */
+    private class TenantQueue {
+
+        private final String tenantId;
+        private final int weight;
+        private final Deque<QueuedJob> jobs = new ArrayDeque<>();
+        private int currentWeight;
+        private int running;
+        private long executed;
+        private long rejected;
+        private long waitMillis;
+        private long maxWaitMillis;
+        private long executionMillis;
+
+        TenantQueue(String tenantId) {
+            this.tenantId = tenantId;
+            this.weight = weights.getOrDefault(tenantId, 1);
+        }
+    }
+
+    private static class QueuedJob {
+
+        private final Runnable job;
+        private final long queuedAt = System.currentTimeMillis();
+
+        QueuedJob(Runnable job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * Exécution d'un job, puis des jobs suivants de la file dans le même thread
+     * Le thread n'est rendu au pool qu'une fois la file vide (ou les limites atteintes) : un job suivant confié au TaskExecutor
+     * pendant l'exécution serait refusé, le thread courant y occupant encore sa place
+     */
+    private class ScheduledJob implements Runnable {
+
+        private final TenantQueue tenant;
+        private final QueuedJob job;
+
+        ScheduledJob(TenantQueue tenant, QueuedJob job) {
+            this.tenant = tenant;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            ScheduledJob current = this;
+            while (current != null){
+                current.execute();
+                current = poll();
+            }
+        }
+
+        private void execute() {
+            long start = System.currentTimeMillis();
+            try {
+                job.job.run();
+            } catch (RuntimeException e){
+                log.error("Async job of tenant {} failed", tenant.tenantId, e);
+            } finally {
+                completed(tenant, start - job.queuedAt, System.currentTimeMillis() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package be.civadis.workflow.activiti.async;
+
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiOptimisticLockingException;
+import org.activiti.engine.impl.asyncexecutor.AcquireAsyncJobsDueRunnable;
+import org.activiti.engine.impl.asyncexecutor.AcquireTimerJobsRunnable;
+import org.activiti.engine.impl.asyncexecutor.ResetExpiredJobsRunnable;
+import org.activiti.engine.impl.asyncexecutor.multitenant.TenantAwareAcquireTimerJobsRunnable;
+import org.activiti.engine.impl.asyncexecutor.multitenant.TenantAwareExecuteAsyncRunnable;
+import org.activiti.engine.impl.asyncexecutor.multitenant.TenantAwareResetExpiredJobsRunnable;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.cfg.multitenant.TenantInfoHolder;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.interceptor.CommandExecutor;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.runtime.Job;
+import org.activiti.spring.SpringAsyncExecutor;
+import org.activiti.spring.SpringRejectedJobsHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Async executor multi-tenant : les jobs sont acquis tenant par tenant et exécutés équitablement entre les tenants (cf {@link TenantJobScheduler}),
+ * un tenant qui crée beaucoup de jobs ne retarde pas les timers et tâches asynchrones des autres
+ * L'acquisition ne lit pour chaque tenant que la place qui lui reste dans la file (cf {@link AcquireTenantJobsCmd}),
+ * les jobs refusés (file pleine) sont déverrouillés et seront acquis plus tard
+ *
+ * Mode shared : un seul thread d'acquisition lit les jobs de chaque tenant (TENANT_ID_), les timers et jobs expirés sont gérés par le moteur
+ * Mode schéma par tenant (workflow.tenancy.mode=schema) : le thread d'acquisition lit les jobs du schéma de chaque tenant enregistré,
+ * chaque tenant a ses threads d'acquisition des timers et des jobs expirés, exécutés avec le tenant courant positionné.
+ * Les tenants sont enregistrés par TenantSchemaManager une fois leur schéma prêt, y compris après le démarrage
+ */
+public class TenantRoutingAsyncExecutor extends SpringAsyncExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(TenantRoutingAsyncExecutor.class);
+
+    private final TenantInfoHolder tenantInfoHolder = new TenantUtilsInfoHolder();
+    private final Map<String, TenantAcquisition> acquisitions = new LinkedHashMap<>();
+    private final TenantJobScheduler scheduler;
+    private final boolean schemaPerTenant;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong acquisitionLockFailures = new AtomicLong();
+    private final AtomicLong executionLockFailures = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public TenantRoutingAsyncExecutor(TaskExecutor taskExecutor, SpringRejectedJobsHandler rejectedJobsHandler,
+                                      TenantJobScheduler scheduler, boolean schemaPerTenant) {
+        super(taskExecutor, rejectedJobsHandler);
+        this.scheduler = scheduler;
+        this.schemaPerTenant = schemaPerTenant;
+        scheduler.setTaskExecutor(taskExecutor);
+    }
+
+    @Override
+    public boolean executeAsyncJob(Job job) {
+        //en mode schéma, le job est acquis par le thread d'acquisition pour son tenant, ou créé (hint après commit) par un thread du tenant
+        String tenantId;
+        if (schemaPerTenant){
+            tenantId = TenantUtils.getCurrentTenant();
+        } else {
+            tenantId = job.getTenantId() == null || job.getTenantId().isEmpty() ? TenantUtils.DEFAULT_TENANT : job.getTenantId();
+        }
+        if (scheduler.offer(tenantId, new ExecuteTenantJobRunnable(job, processEngineConfiguration, tenantInfoHolder, tenantId))){
+            return true;
+        }
+        TenantUtils.runAs(tenantId, () -> unacquire(job));
+        return false;
+    }
+
+    /**
+     * Job refusé, déverrouillé pour une acquisition ultérieure (comme DefaultAsyncJobExecutor)
+     */
+    private void unacquire(Job job){
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null){
+            commandContext.getJobManager().unacquire(job);
+        } else {
+            processEngineConfiguration.getCommandExecutor().execute((Command<Void>) context -> {
+                context.getJobManager().unacquire(job);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Démarre l'acquisition équitable et, en mode schéma, l'acquisition des timers des tenants déjà enregistrés
+     */
+    @Override
+    public synchronized void start() {
+        if (isActive){
+            return;
+        }
+        asyncJobsDueRunnable = new AcquireTenantJobsRunnable();
+        if (!schemaPerTenant){
+            super.start();
+            return;
+        }
+        log.info("Starting up the tenant routing async job executor");
+        isActive = true;
+        startJobAcquisitionThread();
+        for (TenantAcquisition acquisition : acquisitions.values()){
+            acquisition.start();
+        }
+    }
+
+    /**
+     * Enregistre un tenant, en mode schéma son acquisition démarre immédiatement si l'executor est actif
+     * @param tenantId
+     */
+    public synchronized void addTenant(String tenantId){
+        if (acquisitions.containsKey(tenantId)){
+            return;
+        }
+        TenantAcquisition acquisition = new TenantAcquisition(tenantId);
+        acquisitions.put(tenantId, acquisition);
+        if (isActive && schemaPerTenant){
+            acquisition.start();
+        }
+    }
+
+    public synchronized Collection<String> getTenantIds(){
+        return new ArrayList<>(acquisitions.keySet());
+    }
+
+    public TenantJobScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return nombre de jobs acquis (verrouillés) par le thread d'acquisition
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * @return nombre de tours d'acquisition en conflit avec une autre acquisition (autre noeud)
+     */
+    public long getAcquisitionLockFailures() {
+        return acquisitionLockFailures.get();
+    }
+
+    /**
+     * @return nombre de jobs exclusifs non exécutés faute d'avoir pu verrouiller leur instance de processus, ou en conflit à l'exécution
+     */
+    public long getExecutionLockFailures() {
+        return executionLockFailures.get();
+    }
+
+    /**
+     * @return nombre d'exécutions de jobs en échec
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    protected void stopJobAcquisitionThread() {
+        super.stopJobAcquisitionThread();
+        List<TenantAcquisition> stopped;
+        synchronized (this){
+            stopped = new ArrayList<>(acquisitions.values());
+        }
+        for (TenantAcquisition acquisition : stopped){
+            acquisition.stop();
+        }
+    }
+
+    /**
+     * Un tour d'acquisition, pour tous les tenants
+     * @return true si au moins un tenant a rempli sa page : des jobs restent probablement à acquérir
+     */
+    private boolean acquire(){
+        CommandExecutor commandExecutor = processEngineConfiguration.getCommandExecutor();
+        int pageSize = getMaxAsyncJobsDuePerAcquisition();
+        boolean more = false;
+        if (schemaPerTenant){
+            for (String tenantId : getTenantIds()){
+                more |= TenantUtils.callAs(tenantId, () -> offer(commandExecutor.execute(
+                        new AcquireTenantJobsCmd(this, null, scheduler::room, tenantId)), pageSize));
+            }
+        } else {
+            more = offer(commandExecutor.execute(new AcquireTenantJobsCmd(this, TenantUtils.getTenants(), scheduler::room, TenantUtils.DEFAULT_TENANT)), pageSize);
+        }
+        return more;
+    }
+
+    private boolean offer(List<JobEntity> jobs, int pageSize){
+        acquired.addAndGet(jobs.size());
+        boolean offered = true;
+        for (JobEntity job : jobs){
+            offered &= executeAsyncJob(job);
+        }
+        return offered && jobs.size() >= pageSize;
+    }
+
+    /**
+     * Thread d'acquisition des jobs asynchrones, attend entre deux tours s'il n'y a plus de job à acquérir ou si la file est pleine
+     */
+    private class AcquireTenantJobsRunnable extends AcquireAsyncJobsDueRunnable {
+
+        AcquireTenantJobsRunnable() {
+            super(TenantRoutingAsyncExecutor.this);
+        }
+
+        @Override
+        public synchronized void run() {
+            Thread.currentThread().setName("activiti-acquire-tenant-jobs");
+            log.info("Tenant job acquisition starting");
+            while (!isInterrupted){
+                try {
+                    millisToWait = acquire() ? 0 : getDefaultAsyncJobAcquireWaitTimeInMillis();
+                } catch (ActivitiOptimisticLockingException e){
+                    //job acquis par un autre noeud entre la lecture et le verrouillage
+                    log.debug("Optimistic locking exception during tenant job acquisition: {}", e.getMessage());
+                    acquisitionLockFailures.incrementAndGet();
+                    millisToWait = 0;
+                } catch (Throwable e){
+                    log.error("Exception during tenant job acquisition: {}", e.getMessage(), e);
+                    millisToWait = getDefaultAsyncJobAcquireWaitTimeInMillis();
+                }
+                if (millisToWait > 0){
+                    try {
+                        synchronized (MONITOR){
+                            if (!isInterrupted){
+                                isWaiting.set(true);
+                                MONITOR.wait(millisToWait);
+                            }
+                        }
+                    } catch (InterruptedException e){
+                        log.debug("Tenant job acquisition wait interrupted");
+                    } finally {
+                        isWaiting.set(false);
+                    }
+                }
+            }
+            log.info("Tenant job acquisition stopped");
+        }
+    }
+
+    /**
+     * Exécution d'un job pour son tenant, les échecs et conflits de verrouillage sont comptés
+     */
+    private class ExecuteTenantJobRunnable extends TenantAwareExecuteAsyncRunnable {
+
+        ExecuteTenantJobRunnable(Job job, ProcessEngineConfigurationImpl processEngineConfiguration, TenantInfoHolder tenantInfoHolder, String tenantId) {
+            super(job, processEngineConfiguration, tenantInfoHolder, tenantId);
+        }
+
+        @Override
+        protected boolean lockJobIfNeeded() {
+            boolean locked = super.lockJobIfNeeded();
+            if (!locked){
+                executionLockFailures.incrementAndGet();
+            }
+            return locked;
+        }
+
+        @Override
+        protected void handleFailedJob(Throwable exception) {
+            if (exception instanceof ActivitiOptimisticLockingException){
+                executionLockFailures.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            super.handleFailedJob(exception);
+        }
+    }
+
+    /**
+     * Threads d'acquisition des timers et des jobs expirés d'un tenant (mode schéma)
+     */
+    private class TenantAcquisition {
+
+        private final String tenantId;
+        private AcquireTimerJobsRunnable timerJobsRunnable;
+        private ResetExpiredJobsRunnable resetExpiredJobsRunnable;
+        private final List<Thread> threads = new ArrayList<>();
+
+        TenantAcquisition(String tenantId) {
+            this.tenantId = tenantId;
+        }
+
+        void start(){
+            timerJobsRunnable = new TenantAwareAcquireTimerJobsRunnable(TenantRoutingAsyncExecutor.this, tenantInfoHolder, tenantId);
+            resetExpiredJobsRunnable = new TenantAwareResetExpiredJobsRunnable(TenantRoutingAsyncExecutor.this, tenantInfoHolder, tenantId);
+            threads.add(new Thread(timerJobsRunnable));
+            threads.add(new Thread(resetExpiredJobsRunnable));
+            for (Thread thread : threads){
+                thread.start();
+            }
+        }
+
+        void stop(){
+            if (threads.isEmpty()){
+                return;
+            }
+            timerJobsRunnable.stop();
+            resetExpiredJobsRunnable.stop();
+            for (Thread thread : threads){
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while waiting for the job acquisition threads of tenant {} to terminate", tenantId);
+                }
+            }
+            threads.clear();
+        }
+    }
+
+    /**
+     * Tenant courant des threads du moteur, porté par TenantUtils
+     */
+    private static class TenantUtilsInfoHolder implements TenantInfoHolder {
+
+        @Override
+        public Collection<String> getAllTenants() {
+            return TenantUtils.getTenants();
+        }
+
+        @Override
+        public void setCurrentTenantId(String tenantid) {
+            TenantUtils.setCurrentTenant(tenantid);
+        }
+
+        @Override
+        public String getCurrentTenantId() {
+            return TenantUtils.getCurrentTenant();
+        }
+
+        @Override
+        public void clearCurrentTenantId() {
+            TenantUtils.clearCurrentTenant();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package be.civadis.workflow.activiti.batch;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool de threads partagé des traitements par lot (démarrages de processus par paquets, validation des uploads)
+ * Le nombre de threads et la file sont bornés quel que soit le nombre de demandes simultanées :
+ * lorsque le pool est saturé, la tâche est exécutée par le thread de la demande (backpressure)
+ * Ce n'est pas un TaskExecutor Spring, celui du moteur (jobs asynchrones) reste l'unique bean de ce type
+ *
+ * Config :
+ *  workflow.batch.pool-size (8)
+ *  workflow.batch.queue-capacity (32)
+ */
+@Component
+public class BatchExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    public BatchExecutor(@Value("${workflow.batch.pool-size:8}") int poolSize,
+                         @Value("${workflow.batch.queue-capacity:32}") int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "workflow-batch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> Future<T> submit(Callable<T> task){
+        return executor.submit(task);
+    }
+
+    public Future<?> submit(Runnable task){
+        return executor.submit(task);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
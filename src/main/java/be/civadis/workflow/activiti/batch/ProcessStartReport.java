@@ -0,0 +1,77 @@
+package be.civadis.workflow.activiti.batch;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Rapport d'un démarrage de processus par lot : résultat par instance et débit
+ */
+public class ProcessStartReport implements Serializable {
+
+    private int total;
+
+    private int started;
+
+    private int failed;
+
+    private long durationMillis;
+
+    private double throughputPerSecond;
+
+    private List<ProcessStartResult> results;
+
+    private String interruption;
+
+    public ProcessStartReport() {
+    }
+
+    public ProcessStartReport(List<ProcessStartResult> results, long durationMillis) {
+        this.results = results;
+        this.durationMillis = durationMillis;
+        this.total = results.size();
+        for (ProcessStartResult result : results){
+            if (result.getStatus() == ProcessStartResult.Status.STARTED){
+                started++;
+            } else {
+                failed++;
+            }
+        }
+        this.throughputPerSecond = durationMillis > 0 ? total * 1000d / durationMillis : total;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getStarted() {
+        return started;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public double getThroughputPerSecond() {
+        return throughputPerSecond;
+    }
+
+    public List<ProcessStartResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return motif de l'arrêt de la lecture de la demande (données invalides, taille maximum dépassée),
+     * null si toutes les instances demandées ont été traitées
+     */
+    public String getInterruption() {
+        return interruption;
+    }
+
+    public void setInterruption(String interruption) {
+        this.interruption = interruption;
+    }
+}
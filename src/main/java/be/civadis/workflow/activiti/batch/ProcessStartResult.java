@@ -0,0 +1,77 @@
+package be.civadis.workflow.activiti.batch;
+
+import java.io.Serializable;
+
+/**
+ * Résultat du démarrage d'une instance de processus dans un traitement par lot
+ */
+public class ProcessStartResult implements Serializable {
+
+    public enum Status {
+        /** instance démarrée */
+        STARTED,
+        /** erreur lors du démarrage */
+        FAILED
+    }
+
+    private int index;
+
+    private Status status;
+
+    private String processInstanceId;
+
+    private String message;
+
+    public ProcessStartResult() {
+    }
+
+    public ProcessStartResult(int index, Status status, String processInstanceId, String message) {
+        this.index = index;
+        this.status = status;
+        this.processInstanceId = processInstanceId;
+        this.message = message;
+    }
+
+    public static ProcessStartResult started(int index, String processInstanceId) {
+        return new ProcessStartResult(index, Status.STARTED, processInstanceId, null);
+    }
+
+    public static ProcessStartResult failed(int index, Exception ex) {
+        return new ProcessStartResult(index, Status.FAILED, null, ex.getMessage());
+    }
+
+    /**
+     * @return position de la demande dans le lot
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public void setProcessInstanceId(String processInstanceId) {
+        this.processInstanceId = processInstanceId;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
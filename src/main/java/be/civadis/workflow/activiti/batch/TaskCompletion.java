@@ -0,0 +1,38 @@
+package be.civadis.workflow.activiti.batch;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Demande de complétion d'une task dans un traitement par lot : id de la task et variables à transmettre
+ */
+public class TaskCompletion implements Serializable {
+
+    private String taskId;
+
+    private Map<String, Object> variables;
+
+    public TaskCompletion() {
+    }
+
+    public TaskCompletion(String taskId, Map<String, Object> variables) {
+        this.taskId = taskId;
+        this.variables = variables;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public Map<String, Object> getVariables() {
+        return variables;
+    }
+
+    public void setVariables(Map<String, Object> variables) {
+        this.variables = variables;
+    }
+}
@@ -0,0 +1,71 @@
+package be.civadis.workflow.activiti.batch;
+
+import java.io.Serializable;
+
+/**
+ * Résultat de la complétion d'une task dans un traitement par lot
+ */
+public class TaskCompletionResult implements Serializable {
+
+    public enum Status {
+        /** task complétée */
+        COMPLETED,
+        /** id de task absent */
+        INVALID,
+        /** task déjà présente plus haut dans le lot, ignorée */
+        DUPLICATE,
+        /** task inexistante pour le tenant courant */
+        NOT_FOUND,
+        /** task suspendue, ne peut être complétée */
+        SUSPENDED,
+        /** erreur lors de la complétion */
+        FAILED
+    }
+
+    private String taskId;
+
+    private Status status;
+
+    private String message;
+
+    public TaskCompletionResult() {
+    }
+
+    public TaskCompletionResult(String taskId, Status status, String message) {
+        this.taskId = taskId;
+        this.status = status;
+        this.message = message;
+    }
+
+    public static TaskCompletionResult of(String taskId, Status status) {
+        return new TaskCompletionResult(taskId, status, null);
+    }
+
+    public static TaskCompletionResult failed(String taskId, Exception ex) {
+        return new TaskCompletionResult(taskId, Status.FAILED, ex.getMessage());
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,455 @@
+package be.civadis.workflow.activiti.cache;
+
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.IdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+import org.activiti.engine.task.IdentityLink;
+import org.activiti.engine.task.IdentityLinkType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Index en mémoire des tasks non assignées par candidate-group / candidate-user, par tenant
+ * Permet de résoudre les tasks claimables d'un user sans la jointure ACT_RU_TASK / ACT_RU_IDENTITYLINK,
+ * seule la page de tasks demandée est ensuite lue en DB par id
+ *
+ * L'index est chargé au démarrage (en tâche de fond) puis tenu à jour par les événements workflow,
+ * appliqués après commit de la transaction qui les a produits
+ * Tant qu'il n'est pas chargé (ou s'il est désactivé), {@link #findClaimableTaskIds} retourne null et l'appelant doit utiliser la query SQL
+ * Attention, l'index ne voit que les changements effectués par cette instance du service : à n'activer qu'avec une seule instance
+ *
+ * Config :
+ *  workflow.candidate-index.enabled (false)
+ */
+@Component
+public class CandidateTaskIndex implements ActivitiEventListener, PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(CandidateTaskIndex.class);
+
+    private static final String PENDING_ATTRIBUTE = CandidateTaskIndex.class.getName() + ".pending";
+    private static final int MAX_RELOADS = 10;
+    private static final int ID_BATCH_SIZE = 500;
+
+    private final boolean enabled;
+    private final RuntimeService runtimeService;
+    private final ManagementService managementService;
+    private final ProcessEngine processEngine;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, IndexedTask> tasks = new HashMap<>();
+    private final Map<String, Map<String, Set<String>>> tasksByGroup = new HashMap<>();
+    private final Map<String, Map<String, Set<String>>> tasksByUser = new HashMap<>();
+
+    //tasks modifiées pendant le chargement initial, relues en DB après le snapshot
+    private Set<String> changedDuringLoad = new HashSet<>();
+    private volatile boolean warm;
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    public CandidateTaskIndex(@Value("${workflow.candidate-index.enabled:false}") boolean enabled,
+                              RuntimeService runtimeService, ManagementService managementService, ProcessEngine processEngine) {
+        this.enabled = enabled;
+        this.runtimeService = runtimeService;
+        this.managementService = managementService;
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * Chargement de l'index en tâche de fond, une fois l'application démarrée
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled){
+            Thread loader = new Thread(this::load, "candidate-index-loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+    /**
+     * Enregistre l'index auprès du moteur puis charge les tasks non assignées et leurs candidats
+     * Les tasks modifiées pendant le chargement sont ensuite relues en DB (leur état dans le snapshot peut être antérieur au changement),
+     * jusqu'à ce qu'aucune ne soit plus modifiée pendant la relecture
+     */
+    public void load() {
+        runtimeService.addEventListener(this,
+                ActivitiEventType.TASK_ASSIGNED,
+                ActivitiEventType.TASK_COMPLETED,
+                ActivitiEventType.ENTITY_CREATED,
+                ActivitiEventType.ENTITY_DELETED);
+
+        long start = System.currentTimeMillis();
+        Map<String, IndexedTask> snapshot = readCandidates(null);
+
+        Set<String> changed;
+        lock.writeLock().lock();
+        try {
+            for (IndexedTask task : snapshot.values()){
+                if (!changedDuringLoad.contains(task.id) && !tasks.containsKey(task.id)){
+                    tasks.put(task.id, task);
+                    indexTask(task);
+                }
+            }
+            changed = changedDuringLoad;
+            changedDuringLoad = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int reloads = 0;
+        while (!changed.isEmpty()){
+            Map<String, IndexedTask> reread = readCandidates(changed);
+            lock.writeLock().lock();
+            try {
+                //une task encore modifiée pendant la relecture est relue au tour suivant, l'état relu est conservé après MAX_RELOADS tours
+                boolean last = ++reloads >= MAX_RELOADS;
+                Set<String> next = new HashSet<>();
+                for (String taskId : changed){
+                    if (!last && changedDuringLoad.contains(taskId)){
+                        next.add(taskId);
+                    } else {
+                        removeTask(taskId);
+                        IndexedTask task = reread.get(taskId);
+                        if (task != null){
+                            tasks.put(taskId, task);
+                            indexTask(task);
+                        }
+                    }
+                }
+                changed = next;
+                changedDuringLoad = new HashSet<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            changedDuringLoad = null;
+            warm = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Candidate task index loaded : {} tasks in {} ms ({} reloads)", snapshot.size(), System.currentTimeMillis() - start, reloads);
+    }
+
+    /**
+     * Désenregistre l'index du moteur
+     */
+    @PreDestroy
+    public void close() {
+        runtimeService.removeEventListener(this);
+    }
+
+    /**
+     * Lecture en DB des tasks non assignées et de leurs candidats
+     * @param taskIds tasks à lire, null pour toutes
+     */
+    private Map<String, IndexedTask> readCandidates(Collection<String> taskIds){
+        String sql = "select T.ID_, T.TENANT_ID_, T.CREATE_TIME_, I.USER_ID_, I.GROUP_ID_"
+                + " from " + managementService.getTableName(TaskEntity.class) + " T"
+                + " inner join " + managementService.getTableName(IdentityLinkEntity.class) + " I on I.TASK_ID_ = T.ID_"
+                + " where T.ASSIGNEE_ is null and I.TYPE_ = ?";
+
+        Map<String, IndexedTask> snapshot = new HashMap<>();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getDataSource());
+        jdbcTemplate.setFetchSize(1000);
+        RowCallbackHandler handler = rs -> {
+            IndexedTask task = snapshot.computeIfAbsent(rs.getString(1), id -> new IndexedTask(id, null, 0));
+            task.tenantId = rs.getString(2);
+            task.createTime = rs.getTimestamp(3) != null ? rs.getTimestamp(3).getTime() : 0;
+            if (rs.getString(4) != null){
+                task.users.add(rs.getString(4));
+            }
+            if (rs.getString(5) != null){
+                task.groups.add(rs.getString(5));
+            }
+        };
+
+        List<List<Object>> queries = new ArrayList<>();
+        if (taskIds == null){
+            queries.add(Collections.singletonList(IdentityLinkType.CANDIDATE));
+        } else {
+            List<String> ids = new ArrayList<>(taskIds);
+            for (int i = 0; i < ids.size(); i += ID_BATCH_SIZE){
+                List<Object> args = new ArrayList<>();
+                args.add(IdentityLinkType.CANDIDATE);
+                args.addAll(ids.subList(i, Math.min(i + ID_BATCH_SIZE, ids.size())));
+                queries.add(args);
+            }
+        }
+        Runnable read = () -> {
+            for (List<Object> args : queries){
+                String query = taskIds == null ? sql
+                        : sql + " and T.ID_ in (" + String.join(",", Collections.nCopies(args.size() - 1, "?")) + ")";
+                jdbcTemplate.query(query, handler, args.toArray());
+            }
+        };
+        if (TenantUtils.isSchemaPerTenant()){
+            //tables du moteur propres à chaque tenant
+            for (String tenantId : TenantUtils.getTenants()){
+                TenantUtils.runAs(tenantId, read);
+            }
+        } else {
+            read.run();
+        }
+        return snapshot;
+    }
+
+    public boolean isWarm() {
+        return enabled && warm;
+    }
+
+    /**
+     * Ids des tasks non assignées dont le user ou un des groupes est candidat, triés par date de création puis id
+     * @param tenantId
+     * @param user
+     * @param groups
+     * @return null si l'index n'est pas disponible
+     */
+    public List<String> findClaimableTaskIds(String tenantId, String user, Collection<String> groups) {
+        if (!isWarm()){
+            return null;
+        }
+        lookups.incrementAndGet();
+
+        List<IndexedTask> found = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            Consumer<Set<String>> collect = ids -> {
+                for (String id : ids){
+                    if (seen.add(id)){
+                        found.add(tasks.get(id));
+                    }
+                }
+            };
+            if (user != null){
+                collect.accept(tasksByUser.getOrDefault(tenantId, new HashMap<>()).getOrDefault(user, new HashSet<>()));
+            }
+            if (groups != null){
+                Map<String, Set<String>> byGroup = tasksByGroup.getOrDefault(tenantId, new HashMap<>());
+                for (String group : groups){
+                    collect.accept(byGroup.getOrDefault(group, new HashSet<>()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        found.sort(Comparator.<IndexedTask>comparingLong(t -> t.createTime).thenComparing(t -> t.id));
+        List<String> ids = new ArrayList<>(found.size());
+        for (IndexedTask task : found){
+            ids.add(task.id);
+        }
+        return ids;
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!enabled || !(event instanceof ActivitiEntityEvent)){
+            return;
+        }
+        Object entity = ((ActivitiEntityEvent) event).getEntity();
+
+        //les données sont capturées lors de l'événement, l'index n'est modifié qu'après commit
+        if (entity instanceof TaskEntity){
+            TaskEntity task = (TaskEntity) entity;
+            String taskId = task.getId();
+            if (event.getType() == ActivitiEventType.TASK_COMPLETED || event.getType() == ActivitiEventType.ENTITY_DELETED){
+                afterCommit(taskId, () -> removeTask(taskId));
+            } else if (event.getType() == ActivitiEventType.TASK_ASSIGNED && task.getAssignee() != null){
+                afterCommit(taskId, () -> removeTask(taskId));
+            } else if (event.getType() == ActivitiEventType.TASK_ASSIGNED){
+                IndexedTask indexed = new IndexedTask(taskId, task.getTenantId(), createTime(task));
+                for (IdentityLink link : task.getIdentityLinks()){
+                    if (IdentityLinkType.CANDIDATE.equals(link.getType())){
+                        indexed.add(link.getUserId(), link.getGroupId());
+                    }
+                }
+                afterCommit(taskId, () -> putTask(indexed));
+            }
+        } else if (entity instanceof IdentityLinkEntity){
+            IdentityLinkEntity link = (IdentityLinkEntity) entity;
+            if (link.getTaskId() == null || !IdentityLinkType.CANDIDATE.equals(link.getType())){
+                return;
+            }
+            String taskId = link.getTaskId();
+            if (event.getType() == ActivitiEventType.ENTITY_CREATED){
+                TaskEntity task = Context.getCommandContext().getTaskEntityManager().findById(taskId);
+                if (task == null || task.getAssignee() != null){
+                    return;
+                }
+                IndexedTask indexed = new IndexedTask(taskId, task.getTenantId(), createTime(task));
+                indexed.add(link.getUserId(), link.getGroupId());
+                afterCommit(taskId, () -> mergeTask(indexed));
+            } else {
+                String userId = link.getUserId();
+                String groupId = link.getGroupId();
+                afterCommit(taskId, () -> removeCandidate(taskId, userId, groupId));
+            }
+        }
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.candidate.index.warm", isWarm() ? 1 : 0));
+        lock.readLock().lock();
+        try {
+            metrics.add(new Metric<>("workflow.candidate.index.tasks", tasks.size()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        metrics.add(new Metric<>("workflow.candidate.index.lookups", lookups.get()));
+        return metrics;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void afterCommit(String taskId, Runnable change){
+        CommandContext commandContext = Context.getCommandContext();
+        List<Runnable> pending = (List<Runnable>) commandContext.getAttribute(PENDING_ATTRIBUTE);
+        if (pending == null){
+            List<Runnable> changes = new ArrayList<>();
+            commandContext.addAttribute(PENDING_ATTRIBUTE, changes);
+            Context.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, context -> apply(changes));
+            pending = changes;
+        }
+        pending.add(() -> {
+            if (changedDuringLoad != null){
+                changedDuringLoad.add(taskId);
+            }
+            change.run();
+        });
+    }
+
+    private void apply(List<Runnable> changes){
+        lock.writeLock().lock();
+        try {
+            changes.forEach(Runnable::run);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void putTask(IndexedTask task){
+        removeTask(task.id);
+        tasks.put(task.id, task);
+        indexTask(task);
+    }
+
+    private void mergeTask(IndexedTask task){
+        IndexedTask existing = tasks.get(task.id);
+        if (existing == null){
+            tasks.put(task.id, task);
+            indexTask(task);
+        } else {
+            existing.users.addAll(task.users);
+            existing.groups.addAll(task.groups);
+            indexTask(existing);
+        }
+    }
+
+    private void removeCandidate(String taskId, String userId, String groupId){
+        IndexedTask task = tasks.get(taskId);
+        if (task != null){
+            unindexTask(task);
+            task.users.remove(userId);
+            task.groups.remove(groupId);
+            indexTask(task);
+        }
+    }
+
+    private void removeTask(String taskId){
+        IndexedTask task = tasks.remove(taskId);
+        if (task != null){
+            unindexTask(task);
+        }
+    }
+
+    private void indexTask(IndexedTask task){
+        for (String user : task.users){
+            tasksByUser.computeIfAbsent(task.tenantId, t -> new HashMap<>()).computeIfAbsent(user, u -> new HashSet<>()).add(task.id);
+        }
+        for (String group : task.groups){
+            tasksByGroup.computeIfAbsent(task.tenantId, t -> new HashMap<>()).computeIfAbsent(group, g -> new HashSet<>()).add(task.id);
+        }
+    }
+
+    private void unindexTask(IndexedTask task){
+        for (String user : task.users){
+            tasksByUser.getOrDefault(task.tenantId, new HashMap<>()).getOrDefault(user, new HashSet<>()).remove(task.id);
+        }
+        for (String group : task.groups){
+            tasksByGroup.getOrDefault(task.tenantId, new HashMap<>()).getOrDefault(group, new HashSet<>()).remove(task.id);
+        }
+    }
+
+    private long createTime(TaskEntity task){
+        return task.getCreateTime() != null ? task.getCreateTime().getTime() : 0;
+    }
+
+    private static class IndexedTask {
+
+        private final String id;
+        private String tenantId;
+        private long createTime;
+        private final Set<String> users = new HashSet<>();
+        private final Set<String> groups = new HashSet<>();
+
+        IndexedTask(String id, String tenantId, long createTime) {
+            this.id = id;
+            this.tenantId = tenantId;
+            this.createTime = createTime;
+        }
+
+        void add(String userId, String groupId){
+            if (userId != null){
+                users.add(userId);
+            }
+            if (groupId != null){
+                groups.add(groupId);
+            }
+        }
+    }
+}
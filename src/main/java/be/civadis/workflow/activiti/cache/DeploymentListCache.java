@@ -0,0 +1,190 @@
+package be.civadis.workflow.activiti.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.repository.Deployment;
+import org.activiti.rest.common.api.DataResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache des réponses de la liste des deployments, clé = paramètres de la requête
+ * Chaque réponse est associée à un ETag (hash de son contenu), les clients qui le renvoient (If-None-Match) reçoivent un 304
+ * Les deployments (création, modification, suppression) incrémentent un compteur de génération qui invalide toutes les réponses,
+ * immédiatement puis en fin de transaction
+ * Un TTL borne la durée de vie des réponses (deployments effectuées par d'autres instances du service),
+ * une réponse rechargée à l'identique garde le même ETag
+ *
+ * Config :
+ *  workflow.deployment-cache.enabled (true)
+ *  workflow.deployment-cache.ttl-ms (30000)
+ *  workflow.deployment-cache.max-entries (200)
+ */
+@Component
+public class DeploymentListCache implements ActivitiEventListener, PublicMetrics {
+
+    private static final ObjectMapper ETAG_MAPPER = new ObjectMapper();
+
+    private final RuntimeService runtimeService;
+    private final boolean enabled;
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public DeploymentListCache(RuntimeService runtimeService,
+                               @Value("${workflow.deployment-cache.enabled:true}") boolean enabled,
+                               @Value("${workflow.deployment-cache.ttl-ms:30000}") long ttlMillis,
+                               @Value("${workflow.deployment-cache.max-entries:200}") final int maxEntries) {
+        this.runtimeService = runtimeService;
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    @PostConstruct
+    public void register() {
+        runtimeService.addEventListener(this,
+                ActivitiEventType.ENTITY_CREATED,
+                ActivitiEventType.ENTITY_UPDATED,
+                ActivitiEventType.ENTITY_DELETED);
+    }
+
+    /**
+     * Retourne la réponse en cache pour ces paramètres, ou la charge
+     * @param key paramètres de la requête
+     * @param loader exécution de la requête
+     * @return
+     */
+    public Entry get(String key, Supplier<DataResponse> loader){
+        long now = System.currentTimeMillis();
+        long loadGeneration = generation.get();
+
+        Entry entry = entries.get(key);
+        if (enabled && entry != null && entry.generation == loadGeneration && entry.expiresAt > now){
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        DataResponse response = loader.get();
+        Entry loaded = new Entry(loadGeneration, now + ttlMillis, response, etag(response));
+        if (enabled){
+            entries.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Génération courante des deployments, incrémentée à chaque changement
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public void invalidate(){
+        invalidations.incrementAndGet();
+        generation.incrementAndGet();
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!(event instanceof ActivitiEntityEvent) || !(((ActivitiEntityEvent) event).getEntity() instanceof Deployment)){
+            return;
+        }
+
+        invalidate();
+        if (Context.getCommandContext() != null){
+            //une lecture entre l'événement et le commit a pu remettre l'ancienne liste en cache
+            Context.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, context -> invalidate());
+        }
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.deployment.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.deployment.cache.misses", misses.get()));
+        metrics.add(new Metric<>("workflow.deployment.cache.invalidations", invalidations.get()));
+        metrics.add(new Metric<>("workflow.deployment.cache.size", entries.size()));
+        metrics.add(new Metric<>("workflow.deployment.cache.generation", generation.get()));
+        return metrics;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private String etag(DataResponse response){
+        try {
+            return DigestUtils.md5DigestAsHex(ETAG_MAPPER.writeValueAsBytes(response));
+        } catch (JsonProcessingException e){
+            throw new ActivitiException("Unable to compute deployment list etag", e);
+        }
+    }
+
+    /**
+     * Réponse en cache et son ETag
+     */
+    public static class Entry {
+
+        private final long generation;
+        private final long expiresAt;
+        private final DataResponse response;
+        private final String etag;
+
+        Entry(long generation, long expiresAt, DataResponse response, String etag) {
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+            this.response = response;
+            this.etag = etag;
+        }
+
+        public DataResponse getResponse() {
+            return response;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package be.civadis.workflow.activiti.cache;
+
+import org.activiti.bpmn.model.BpmnModel;
+import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache des modèles BPMN parsés, clé = hash du contenu de la ressource
+ * Une même ressource déployée pour plusieurs tenants n'est parsée et validée qu'une fois,
+ * les définitions de processus de chaque tenant partagent alors le même BpmnModel (lecture seule après le parsing)
+ * Seules les données propres à la deployment (id, tenant, version) diffèrent
+ *
+ * Config :
+ *  workflow.parse-cache.enabled (true)
+ *  workflow.parse-cache.max-entries (500)
+ */
+@Component
+public class ParsedModelCache implements PublicMetrics {
+
+    private final boolean enabled;
+    private final Map<String, ParsedModel> models;
+
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong savedParseNanos = new AtomicLong();
+    private final AtomicLong sharedBytes = new AtomicLong();
+
+    public ParsedModelCache(@Value("${workflow.parse-cache.enabled:true}") boolean enabled,
+                            @Value("${workflow.parse-cache.max-entries:500}") final int maxEntries) {
+        this.enabled = enabled;
+        this.models = Collections.synchronizedMap(new LinkedHashMap<String, ParsedModel>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedModel> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Modèle déjà parsé pour ce contenu
+     * @param checksum hash du contenu de la ressource
+     * @return null si le contenu n'a pas encore été parsé
+     */
+    public ParsedModel get(String checksum){
+        if (!enabled){
+            return null;
+        }
+        ParsedModel model = models.get(checksum);
+        if (model != null){
+            hits.incrementAndGet();
+            savedParseNanos.addAndGet(model.parseNanos);
+            sharedBytes.addAndGet(model.size);
+        }
+        return model;
+    }
+
+    /**
+     * Enregistre le résultat d'un parsing
+     * @param checksum hash du contenu de la ressource
+     * @param size taille de la ressource
+     * @param bpmnModel modèle parsé
+     * @param processDefinitions définitions créées par le parsing, seules les données issues du modèle sont conservées
+     * @param elapsedNanos durée du parsing
+     */
+    public void put(String checksum, int size, BpmnModel bpmnModel, List<ProcessDefinitionEntity> processDefinitions, long elapsedNanos){
+        parses.incrementAndGet();
+        parseNanos.addAndGet(elapsedNanos);
+        if (enabled){
+            List<DefinitionTemplate> definitions = new ArrayList<>();
+            for (ProcessDefinitionEntity processDefinition : processDefinitions){
+                definitions.add(new DefinitionTemplate(processDefinition));
+            }
+            models.put(checksum, new ParsedModel(bpmnModel, definitions, elapsedNanos, size));
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.parse.cache.parses", parses.get()));
+        metrics.add(new Metric<>("workflow.parse.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.parse.cache.models", models.size()));
+        metrics.add(new Metric<>("workflow.parse.cache.parse-time-ms", TimeUnit.NANOSECONDS.toMillis(parseNanos.get())));
+        metrics.add(new Metric<>("workflow.parse.cache.saved-parse-time-ms", TimeUnit.NANOSECONDS.toMillis(savedParseNanos.get())));
+        metrics.add(new Metric<>("workflow.parse.cache.shared-bytes", sharedBytes.get()));
+        return metrics;
+    }
+
+    public long getParses() {
+        return parses.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Modèle parsé et données des définitions de processus qui en sont issues
+     */
+    public static class ParsedModel {
+
+        private final BpmnModel bpmnModel;
+        private final List<DefinitionTemplate> definitions;
+        private final long parseNanos;
+        private final int size;
+
+        ParsedModel(BpmnModel bpmnModel, List<DefinitionTemplate> definitions, long parseNanos, int size) {
+            this.bpmnModel = bpmnModel;
+            this.definitions = Collections.unmodifiableList(definitions);
+            this.parseNanos = parseNanos;
+            this.size = size;
+        }
+
+        public BpmnModel getBpmnModel() {
+            return bpmnModel;
+        }
+
+        public List<DefinitionTemplate> getDefinitions() {
+            return definitions;
+        }
+    }
+
+    /**
+     * Données d'une définition de processus issues du modèle (indépendantes du tenant et de la deployment)
+     */
+    public static class DefinitionTemplate {
+
+        private final String key;
+        private final String name;
+        private final String category;
+        private final String description;
+        private final boolean graphicalNotationDefined;
+        private final boolean startFormKey;
+
+        DefinitionTemplate(ProcessDefinitionEntity processDefinition) {
+            this.key = processDefinition.getKey();
+            this.name = processDefinition.getName();
+            this.category = processDefinition.getCategory();
+            this.description = processDefinition.getDescription();
+            this.graphicalNotationDefined = processDefinition.isGraphicalNotationDefined();
+            this.startFormKey = processDefinition.getHasStartFormKey();
+        }
+
+        public void copyTo(ProcessDefinitionEntity processDefinition){
+            processDefinition.setKey(key);
+            processDefinition.setName(name);
+            processDefinition.setCategory(category);
+            processDefinition.setDescription(description);
+            processDefinition.setGraphicalNotationDefined(graphicalNotationDefined);
+            processDefinition.setStartFormKey(startFormKey);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package be.civadis.workflow.activiti.cache;
+
+import org.activiti.engine.impl.persistence.deploy.DeploymentCache;
+import org.activiti.engine.impl.persistence.deploy.ProcessDefinitionCacheEntry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache des définitions de processus déployées du moteur (remplace le cache par défaut, sans limite)
+ * Une entrée par définition, donc par tenant, les entrées d'un même contenu partagent le modèle BPMN (cf {@link ParsedModelCache})
+ * Au delà de la limite, les définitions les moins récemment utilisées sont évincées, le moteur les recharge à leur prochaine utilisation
+ *
+ * Config :
+ *  workflow.process-cache.limit (1000) : nombre maximum de définitions, 0 ou moins pour un cache sans limite
+ */
+@Component
+public class ProcessDefinitionCache implements DeploymentCache<ProcessDefinitionCacheEntry>, PublicMetrics {
+
+    private final int limit;
+    private final Map<String, ProcessDefinitionCacheEntry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ProcessDefinitionCache(@Value("${workflow.process-cache.limit:1000}") final int limit) {
+        this.limit = limit;
+        if (limit <= 0){
+            this.entries = Collections.synchronizedMap(new HashMap<>());
+        } else {
+            this.entries = Collections.synchronizedMap(new LinkedHashMap<String, ProcessDefinitionCacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ProcessDefinitionCacheEntry> eldest) {
+                    boolean remove = size() > limit;
+                    if (remove){
+                        evictions.incrementAndGet();
+                    }
+                    return remove;
+                }
+            });
+        }
+    }
+
+    @Override
+    public ProcessDefinitionCacheEntry get(String id) {
+        ProcessDefinitionCacheEntry entry = entries.get(id);
+        if (entry != null){
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    @Override
+    public void add(String id, ProcessDefinitionCacheEntry object) {
+        entries.put(id, object);
+    }
+
+    @Override
+    public void remove(String id) {
+        entries.remove(id);
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.process.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.process.cache.misses", misses.get()));
+        metrics.add(new Metric<>("workflow.process.cache.evictions", evictions.get()));
+        metrics.add(new Metric<>("workflow.process.cache.size", entries.size()));
+        metrics.add(new Metric<>("workflow.process.cache.limit", limit));
+        return metrics;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,166 @@
+package be.civadis.workflow.activiti.cache;
+
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache tenant + clé de processus -> id de la dernière version de la définition de processus
+ * Evite la requête sur ACT_RE_PROCDEF effectuée à chaque démarrage par clé (startProcessInstanceByKeyAndTenantId),
+ * le démarrage par id s'appuie ensuite sur le cache des définitions du moteur
+ *
+ * Le déploiement d'une nouvelle version (upload REST, import au démarrage...) ou la suppression d'une deployment
+ * invalide l'entrée (événements ENTITY_CREATED, ENTITY_DELETED), immédiatement puis en fin de transaction
+ * Un TTL borne la durée de vie des entrées (deployments effectuées par d'autres instances du service),
+ * l'appelant invalide l'entrée lorsque la définition en cache n'existe plus (cf {@link #invalidate(String, String)})
+ *
+ * Config :
+ *  workflow.definition-cache.enabled (true)
+ *  workflow.definition-cache.ttl-ms (60000)
+ */
+@Component
+public class ProcessDefinitionIdCache implements ActivitiEventListener, PublicMetrics {
+
+    private final RuntimeService runtimeService;
+    private final RepositoryService repositoryService;
+    private final boolean enabled;
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ProcessDefinitionIdCache(RuntimeService runtimeService,
+                                    RepositoryService repositoryService,
+                                    @Value("${workflow.definition-cache.enabled:true}") boolean enabled,
+                                    @Value("${workflow.definition-cache.ttl-ms:60000}") long ttlMillis) {
+        this.runtimeService = runtimeService;
+        this.repositoryService = repositoryService;
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @PostConstruct
+    public void register() {
+        runtimeService.addEventListener(this, ActivitiEventType.ENTITY_CREATED, ActivitiEventType.ENTITY_DELETED);
+    }
+
+    /**
+     * Id de la dernière version de la définition de processus du tenant
+     * @param tenantId
+     * @param processKey
+     * @return null si le processus n'est pas déployé pour ce tenant
+     */
+    public String getLatestId(String tenantId, String processKey){
+        String key = key(tenantId, processKey);
+        long now = System.currentTimeMillis();
+
+        Entry entry = enabled ? entries.get(key) : null;
+        if (entry != null && entry.expiresAt > now){
+            hits.incrementAndGet();
+            return entry.processDefinitionId;
+        }
+
+        misses.incrementAndGet();
+        //une deployment concurrente au chargement invalide le résultat, il n'est alors pas mis en cache
+        long loadGeneration = generation.get();
+        ProcessDefinition processDefinition = repositoryService.createProcessDefinitionQuery()
+                .processDefinitionKey(processKey)
+                .processDefinitionTenantId(tenantId)
+                .latestVersion()
+                .singleResult();
+        if (processDefinition == null){
+            return null;
+        }
+        if (enabled && loadGeneration == generation.get()){
+            entries.put(key, new Entry(processDefinition.getId(), now + ttlMillis));
+        }
+        return processDefinition.getId();
+    }
+
+    /**
+     * Invalide l'entrée du processus pour le tenant
+     * @param tenantId
+     * @param processKey
+     */
+    public void invalidate(String tenantId, String processKey){
+        invalidations.incrementAndGet();
+        generation.incrementAndGet();
+        entries.remove(key(tenantId, processKey));
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!(event instanceof ActivitiEntityEvent) || !(((ActivitiEntityEvent) event).getEntity() instanceof ProcessDefinition)){
+            return;
+        }
+
+        ProcessDefinition processDefinition = (ProcessDefinition) ((ActivitiEntityEvent) event).getEntity();
+        String tenantId = processDefinition.getTenantId();
+        String processKey = processDefinition.getKey();
+        invalidate(tenantId, processKey);
+        if (Context.getCommandContext() != null){
+            //une lecture entre l'événement et le commit a pu remettre l'ancienne version en cache
+            Context.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, context -> invalidate(tenantId, processKey));
+        }
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.definition.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.definition.cache.misses", misses.get()));
+        metrics.add(new Metric<>("workflow.definition.cache.invalidations", invalidations.get()));
+        metrics.add(new Metric<>("workflow.definition.cache.size", entries.size()));
+        return metrics;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String key(String tenantId, String processKey){
+        return tenantId + "|" + processKey;
+    }
+
+    private static class Entry {
+
+        private final String processDefinitionId;
+        private final long expiresAt;
+
+        Entry(String processDefinitionId, long expiresAt) {
+            this.processDefinitionId = processDefinitionId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package be.civadis.workflow.activiti.cache;
+
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.cache.CachedEntity;
+import org.activiti.engine.impl.persistence.entity.IdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+import org.activiti.engine.task.IdentityLinkType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache des nombres totaux de tasks des listes (header X-Total-Count), clé tenant + requête (user, groupes, filtres)
+ * Contrairement à {@link TaskInboxCache}, un changement de task n'invalide pas les compteurs : ils sont ajustés par les événements workflow
+ * Les changements d'une task dans une transaction (assignee, candidats ajoutés / supprimés, suppression) sont cumulés
+ * puis appliqués après commit : les compteurs des requêtes qui ne retenaient pas la task et la retiennent désormais sont incrémentés, et inversement
+ * Les entrées sont indexées par assignee et candidat, seules celles concernées par la task sont parcourues
+ *
+ * Les candidats d'une task sont connus par les événements de ses identity links (jamais relus en DB) :
+ * ceux des tasks créées par cette instance du service sont conservés, pour les autres les compteurs dépendant des candidats sont invalidés
+ * Les compteurs restent approchés (count calculé pendant un commit, changements effectués par d'autres instances du service) :
+ * le TTL borne la durée de cet écart
+ *
+ * Config :
+ *  workflow.count-cache.enabled (true)
+ *  workflow.count-cache.ttl-ms (60000)
+ *  workflow.count-cache.max-entries (10000)
+ *  workflow.count-cache.max-tasks (100000) : nombre de tasks dont les candidats sont conservés
+ */
+@Component
+public class TaskCountCache implements ActivitiEventListener, PublicMetrics {
+
+    private static final String CHANGES_ATTRIBUTE = TaskCountCache.class.getName() + ".changes";
+
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final RuntimeService runtimeService;
+
+    //entrées, index et candidats des tasks sont protégés par le lock de entries
+    private final Map<String, Entry> entries;
+    private final Map<String, Set<Entry>> index = new HashMap<>();
+    private final Map<String, Candidates> taskCandidates;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exactCounts = new AtomicLong();
+    private final AtomicLong adjustments = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public TaskCountCache(@Value("${workflow.count-cache.enabled:true}") boolean enabled,
+                          @Value("${workflow.count-cache.ttl-ms:60000}") long ttlMillis,
+                          @Value("${workflow.count-cache.max-entries:10000}") final int maxEntries,
+                          @Value("${workflow.count-cache.max-tasks:100000}") final int maxTasks,
+                          RuntimeService runtimeService) {
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+        this.runtimeService = runtimeService;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries){
+                    unindex(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.taskCandidates = new LinkedHashMap<String, Candidates>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Candidates> eldest) {
+                return size() > maxTasks;
+            }
+        };
+    }
+
+    @PostConstruct
+    public void register() {
+        if (enabled){
+            runtimeService.addEventListener(this,
+                    ActivitiEventType.TASK_CREATED,
+                    ActivitiEventType.TASK_ASSIGNED,
+                    ActivitiEventType.ENTITY_CREATED,
+                    ActivitiEventType.ENTITY_DELETED);
+        }
+    }
+
+    /**
+     * Requête des tasks pouvant être traitées par un user ou ses groupes (cf EngineFacade.findClaimableTasks)
+     */
+    public static Filter claimable(String user, Collection<String> groups, String processKey, String processInstanceId){
+        return new Filter(false, user, groups, processKey, processInstanceId);
+    }
+
+    /**
+     * Requête des tasks assignées à un user (cf EngineFacade.findAssignedTasks)
+     */
+    public static Filter assigned(String user, String processKey, String processInstanceId){
+        return new Filter(true, user, null, processKey, processInstanceId);
+    }
+
+    /**
+     * Retourne le nombre en cache pour le tenant courant, ou le calcule
+     * @param filter requête comptée
+     * @param counter exécution du count
+     * @return
+     */
+    public long get(Filter filter, Supplier<Long> counter){
+        if (!enabled){
+            return counter.get();
+        }
+
+        String tenantId = TenantUtils.getCurrentTenant();
+        Entry entry;
+        synchronized (entries){
+            entry = entries.get(tenantId + "|" + filter.key);
+        }
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()){
+            hits.incrementAndGet();
+            return entry.count.get();
+        }
+
+        misses.incrementAndGet();
+        return load(tenantId, filter, counter);
+    }
+
+    /**
+     * Calcule le nombre exact (hors cache) et met le cache à jour
+     * @param filter requête comptée
+     * @param counter exécution du count
+     * @return
+     */
+    public long refresh(Filter filter, Supplier<Long> counter){
+        exactCounts.incrementAndGet();
+        if (!enabled){
+            return counter.get();
+        }
+        return load(TenantUtils.getCurrentTenant(), filter, counter);
+    }
+
+    private long load(String tenantId, Filter filter, Supplier<Long> counter){
+        long count = counter.get();
+        Entry entry = new Entry(tenantId + "|" + filter.key, filter, filter.indexKeys(tenantId), System.currentTimeMillis() + ttlMillis, count);
+        synchronized (entries){
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null){
+                unindex(previous);
+            }
+            for (String indexKey : entry.indexKeys){
+                index.computeIfAbsent(indexKey, k -> new HashSet<>()).add(entry);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!(event instanceof ActivitiEntityEvent) || Context.getCommandContext() == null){
+            return;
+        }
+
+        Object entity = ((ActivitiEntityEvent) event).getEntity();
+        if (entity instanceof TaskEntity){
+            TaskEntity task = (TaskEntity) entity;
+            if (event.getType() == ActivitiEventType.ENTITY_DELETED){
+                change(task).deleted = true;
+            } else if (event.getType() != ActivitiEventType.ENTITY_CREATED){
+                //création, assignation : l'état de la task est lu au commit
+                change(task);
+            }
+        } else if (entity instanceof IdentityLinkEntity){
+            IdentityLinkEntity link = (IdentityLinkEntity) entity;
+            if (link.getTaskId() == null || !IdentityLinkType.CANDIDATE.equals(link.getType())){
+                return;
+            }
+            //task lue dans le cache des entités de la commande
+            TaskEntity task = Context.getCommandContext().getTaskEntityManager().findById(link.getTaskId());
+            if (task == null){
+                return;
+            }
+            change(task).candidate(link, event.getType() == ActivitiEventType.ENTITY_CREATED);
+        }
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.count.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.count.cache.misses", misses.get()));
+        metrics.add(new Metric<>("workflow.count.cache.exact", exactCounts.get()));
+        metrics.add(new Metric<>("workflow.count.cache.adjustments", adjustments.get()));
+        metrics.add(new Metric<>("workflow.count.cache.invalidations", invalidations.get()));
+        synchronized (entries){
+            metrics.add(new Metric<>("workflow.count.cache.size", entries.size()));
+            metrics.add(new Metric<>("workflow.count.cache.tasks", taskCandidates.size()));
+        }
+        return metrics;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Changement d'une task dans la transaction courante, l'assignee initial est capturé au premier changement
+     * Les changements de la transaction sont appliqués aux compteurs après commit
+     */
+    @SuppressWarnings("unchecked")
+    private TaskChange change(TaskEntity task){
+        CommandContext commandContext = Context.getCommandContext();
+        Map<String, TaskChange> changes = (Map<String, TaskChange>) commandContext.getAttribute(CHANGES_ATTRIBUTE);
+        if (changes == null){
+            Map<String, TaskChange> transactionChanges = new LinkedHashMap<>();
+            commandContext.addAttribute(CHANGES_ATTRIBUTE, transactionChanges);
+            Context.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, context -> apply(transactionChanges.values()));
+            changes = transactionChanges;
+        }
+        return changes.computeIfAbsent(task.getId(), id -> new TaskChange(task, task.isInserted() ? null : initialAssignee(commandContext, task)));
+    }
+
+    /**
+     * Assignee de la task avant la transaction, lu dans l'état original du cache des entités de la commande
+     */
+    private String initialAssignee(CommandContext commandContext, TaskEntity task){
+        Map<String, CachedEntity> cachedTasks = commandContext.getEntityCache().getAllCachedEntities().get(task.getClass());
+        CachedEntity cached = cachedTasks != null ? cachedTasks.get(task.getId()) : null;
+        if (cached != null && cached.getOriginalPersistentState() instanceof Map){
+            return (String) ((Map<?, ?>) cached.getOriginalPersistentState()).get("assignee");
+        }
+        return task.getAssignee();
+    }
+
+    /**
+     * Applique les changements d'une transaction validée
+     */
+    private void apply(Collection<TaskChange> changes){
+        if (!enabled){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (entries){
+            for (TaskChange change : changes){
+                String taskId = change.task.getId();
+                Candidates initialCandidates = change.inserted ? new Candidates() : taskCandidates.get(taskId);
+                TaskState before = change.inserted ? null : TaskState.of(change.task, change.initialAssignee, initialCandidates);
+                TaskState after = change.deleted ? null : TaskState.of(change.task, change.task.getAssignee(), change.candidates(initialCandidates));
+
+                adjust(before, -1, now);
+                adjust(after, 1, now);
+                if (initialCandidates == null){
+                    invalidate(change, before, after);
+                }
+
+                if (after != null && after.candidates != null){
+                    taskCandidates.put(taskId, after.candidates);
+                } else {
+                    taskCandidates.remove(taskId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ajuste les compteurs retenant l'état de la task, parmi les entrées indexées par son assignee ou ses candidats
+     * Si les candidats ne sont pas connus, seules les requêtes n'en dépendant pas sont ajustées (cf {@link #invalidate})
+     */
+    private void adjust(TaskState state, int delta, long now){
+        if (state == null){
+            return;
+        }
+        for (Entry entry : lookup(state.indexKeys())){
+            if (entry.expiresAt > now && entry.filter.matches(state)){
+                entry.count.updateAndGet(count -> Math.max(0, count + delta));
+                adjustments.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Candidats initiaux inconnus : invalide les requêtes par candidat qui ont pu changer
+     * (toutes celles du tenant si la task devient ou n'est plus claimable, celles des candidats modifiés sinon)
+     */
+    private void invalidate(TaskChange change, TaskState before, TaskState after){
+        boolean claimableBefore = before.assignee == null;
+        boolean claimableAfter = after != null && after.assignee == null;
+        Collection<String> indexKeys;
+        if (claimableBefore != claimableAfter){
+            indexKeys = Collections.singletonList(before.tenantId + "|c");
+        } else if (claimableBefore){
+            indexKeys = new ArrayList<>();
+            for (String candidate : change.candidateChanges.keySet()){
+                indexKeys.add(before.tenantId + "|" + candidate);
+            }
+        } else {
+            return;
+        }
+        for (Entry entry : lookup(indexKeys)){
+            if (entry.filter.matchesProcess(before)){
+                entries.remove(entry.key);
+                unindex(entry);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private Set<Entry> lookup(Collection<String> indexKeys){
+        Set<Entry> found = new LinkedHashSet<>();
+        for (String indexKey : indexKeys){
+            found.addAll(index.getOrDefault(indexKey, Collections.emptySet()));
+        }
+        return found;
+    }
+
+    private void unindex(Entry entry){
+        for (String indexKey : entry.indexKeys){
+            Set<Entry> indexed = index.get(indexKey);
+            if (indexed != null){
+                indexed.remove(entry);
+                if (indexed.isEmpty()){
+                    index.remove(indexKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requête comptée, la clé identifie l'entrée du cache
+     */
+    public static final class Filter {
+
+        private final boolean assigned;
+        private final String user;
+        private final Set<String> groups;
+        private final String processKey;
+        private final String processInstanceId;
+        private final String key;
+
+        private Filter(boolean assigned, String user, Collection<String> groups, String processKey, String processInstanceId) {
+            this.assigned = assigned;
+            this.user = user;
+            this.groups = groups != null ? new HashSet<>(groups) : Collections.emptySet();
+            this.processKey = processKey;
+            this.processInstanceId = processInstanceId;
+            this.key = assigned
+                    ? TaskInboxCache.key("assigned", user, processKey, processInstanceId)
+                    : TaskInboxCache.key("claimable", user, groups, processKey, processInstanceId);
+        }
+
+        /**
+         * Clés d'index de l'entrée : assignee (a:), toutes les tasks claimables (*), ou requête par candidat (c) et ses candidats (u:, g:)
+         */
+        private List<String> indexKeys(String tenantId){
+            List<String> keys = new ArrayList<>();
+            if (assigned){
+                if (user != null){
+                    keys.add(tenantId + "|a:" + user);
+                }
+            } else if (user == null && groups.isEmpty()){
+                keys.add(tenantId + "|*");
+            } else {
+                keys.add(tenantId + "|c");
+                if (user != null){
+                    keys.add(tenantId + "|u:" + user);
+                }
+                for (String group : groups){
+                    keys.add(tenantId + "|g:" + group);
+                }
+            }
+            return keys;
+        }
+
+        private boolean matchesProcess(TaskState task){
+            return (processKey == null || processKey.equals(task.processDefinitionId))
+                    && (processInstanceId == null || processInstanceId.equals(task.processInstanceId));
+        }
+
+        private boolean matches(TaskState task){
+            if (!matchesProcess(task)){
+                return false;
+            }
+            if (assigned){
+                return user != null && user.equals(task.assignee);
+            }
+            if (task.assignee != null){
+                return false;
+            }
+            if (user == null && groups.isEmpty()){
+                return true;
+            }
+            return task.candidates != null
+                    && ((user != null && task.candidates.users.contains(user)) || !Collections.disjoint(groups, task.candidates.groups));
+        }
+    }
+
+    /**
+     * Etat d'une task pris en compte par les requêtes comptées, candidats null s'ils ne sont pas connus
+     */
+    private static final class TaskState {
+
+        private String tenantId;
+        private String assignee;
+        private String processDefinitionId;
+        private String processInstanceId;
+        private Candidates candidates;
+
+        static TaskState of(TaskEntity task, String assignee, Candidates candidates){
+            TaskState state = new TaskState();
+            state.tenantId = task.getTenantId();
+            state.assignee = assignee;
+            state.processDefinitionId = task.getProcessDefinitionId();
+            state.processInstanceId = task.getProcessInstanceId();
+            state.candidates = candidates;
+            return state;
+        }
+
+        private List<String> indexKeys(){
+            if (assignee != null){
+                return Collections.singletonList(tenantId + "|a:" + assignee);
+            }
+            List<String> keys = new ArrayList<>();
+            keys.add(tenantId + "|*");
+            if (candidates != null){
+                for (String user : candidates.users){
+                    keys.add(tenantId + "|u:" + user);
+                }
+                for (String group : candidates.groups){
+                    keys.add(tenantId + "|g:" + group);
+                }
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Candidats (users et groupes) d'une task
+     */
+    private static final class Candidates {
+
+        private final Set<String> users = new HashSet<>();
+        private final Set<String> groups = new HashSet<>();
+    }
+
+    /**
+     * Changements d'une task dans une transaction : assignee initial, candidats ajoutés (true) ou supprimés (false), suppression
+     */
+    private static final class TaskChange {
+
+        private final TaskEntity task;
+        private final boolean inserted;
+        private final String initialAssignee;
+        private final Map<String, Boolean> candidateChanges = new LinkedHashMap<>();
+        private boolean deleted;
+
+        TaskChange(TaskEntity task, String initialAssignee) {
+            this.task = task;
+            this.inserted = task.isInserted();
+            this.initialAssignee = initialAssignee;
+        }
+
+        TaskChange candidate(IdentityLinkEntity link, boolean added){
+            if (link.getUserId() != null){
+                candidateChanges.put("u:" + link.getUserId(), added);
+            }
+            if (link.getGroupId() != null){
+                candidateChanges.put("g:" + link.getGroupId(), added);
+            }
+            return this;
+        }
+
+        /**
+         * @return candidats initiaux modifiés par la transaction, null si les candidats initiaux ne sont pas connus
+         */
+        Candidates candidates(Candidates initial){
+            if (initial == null){
+                return null;
+            }
+            Candidates candidates = new Candidates();
+            candidates.users.addAll(initial.users);
+            candidates.groups.addAll(initial.groups);
+            for (Map.Entry<String, Boolean> change : candidateChanges.entrySet()){
+                Set<String> target = change.getKey().startsWith("u:") ? candidates.users : candidates.groups;
+                String id = change.getKey().substring(2);
+                if (change.getValue()){
+                    target.add(id);
+                } else {
+                    target.remove(id);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private final Filter filter;
+        private final List<String> indexKeys;
+        private final long expiresAt;
+        private final AtomicLong count;
+
+        Entry(String key, Filter filter, List<String> indexKeys, long expiresAt, long count) {
+            this.key = key;
+            this.filter = filter;
+            this.indexKeys = indexKeys;
+            this.expiresAt = expiresAt;
+            this.count = new AtomicLong(count);
+        }
+    }
+}
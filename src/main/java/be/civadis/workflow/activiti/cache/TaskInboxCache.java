@@ -0,0 +1,154 @@
+package be.civadis.workflow.activiti.cache;
+
+import be.civadis.workflow.activiti.event.TaskChangeListener;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.task.Task;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Cache des listes de tasks des inbox utilisateurs (my-tasks-claimable, my-tasks-assigned), clé tenant + user + roles + paramètres
+ * Chaque entrée est marquée de la génération de son tenant au moment de la lecture,
+ * les changements de tasks du tenant (cf {@link TaskChangeListener}) incrémentent la génération et invalident ainsi ses entrées
+ * Un TTL borne la durée de vie des entrées (changements effectués par d'autres instances du service)
+ *
+ * Config :
+ *  workflow.inbox-cache.enabled (true)
+ *  workflow.inbox-cache.ttl-ms (30000)
+ *  workflow.inbox-cache.max-entries (10000)
+ */
+@Component
+public class TaskInboxCache implements TaskChangeListener, PublicMetrics {
+
+    private final boolean enabled;
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong globalGeneration = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TaskInboxCache(@Value("${workflow.inbox-cache.enabled:true}") boolean enabled,
+                          @Value("${workflow.inbox-cache.ttl-ms:30000}") long ttlMillis,
+                          @Value("${workflow.inbox-cache.max-entries:10000}") final int maxEntries) {
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean remove = size() > maxEntries;
+                if (remove){
+                    evictions.incrementAndGet();
+                }
+                return remove;
+            }
+        });
+    }
+
+    /**
+     * Construit une clé à partir des paramètres d'une requête, les collections (roles) sont triées
+     * @param parts
+     * @return
+     */
+    public static String key(Object... parts){
+        return Arrays.stream(parts)
+                .map(part -> part instanceof Collection
+                        ? ((Collection<?>) part).stream().map(String::valueOf).sorted().collect(Collectors.joining(","))
+                        : String.valueOf(part))
+                .collect(Collectors.joining("|"));
+    }
+
+    /**
+     * Retourne la liste en cache pour le tenant courant, ou la charge
+     * @param key clé de la requête (cf {@link #key(Object...)})
+     * @param loader exécution de la requête
+     * @return
+     */
+    public List<Task> get(String key, Supplier<List<Task>> loader){
+        if (!enabled){
+            return loader.get();
+        }
+
+        String tenantId = TenantUtils.getCurrentTenant();
+        String tenantKey = tenantId + "|" + key;
+        long generation = generation(tenantId);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(tenantKey);
+        if (entry != null && entry.generation == generation && entry.expiresAt > now){
+            hits.incrementAndGet();
+            return entry.tasks;
+        }
+
+        misses.incrementAndGet();
+        List<Task> tasks = Collections.unmodifiableList(new ArrayList<>(loader.get()));
+        entries.put(tenantKey, new Entry(generation, now + ttlMillis, tasks));
+        return tasks;
+    }
+
+    @Override
+    public void onTasksChanged(String tenantId) {
+        invalidations.incrementAndGet();
+        if (tenantId == null){
+            globalGeneration.incrementAndGet();
+        } else {
+            generations.computeIfAbsent(tenantId, t -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.inbox.cache.hits", hits.get()));
+        metrics.add(new Metric<>("workflow.inbox.cache.misses", misses.get()));
+        metrics.add(new Metric<>("workflow.inbox.cache.invalidations", invalidations.get()));
+        metrics.add(new Metric<>("workflow.inbox.cache.evictions", evictions.get()));
+        metrics.add(new Metric<>("workflow.inbox.cache.size", entries.size()));
+        return metrics;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private long generation(String tenantId){
+        //la génération globale est ajoutée dans les bits de poids fort, un changement global invalide tous les tenants
+        AtomicLong tenantGeneration = generations.computeIfAbsent(String.valueOf(tenantId), t -> new AtomicLong());
+        return (globalGeneration.get() << 32) + tenantGeneration.get();
+    }
+
+    private static class Entry {
+
+        private final long generation;
+        private final long expiresAt;
+        private final List<Task> tasks;
+
+        Entry(long generation, long expiresAt, List<Task> tasks) {
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+            this.tasks = tasks;
+        }
+    }
+}
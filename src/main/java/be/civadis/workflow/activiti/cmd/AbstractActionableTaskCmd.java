@@ -0,0 +1,82 @@
+package be.civadis.workflow.activiti.cmd;
+
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+import org.activiti.engine.task.IdentityLink;
+import org.activiti.engine.task.IdentityLinkType;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Commande vérifiant qu'une task peut être traitée par un user (ou ses groupes) puis effectuant l'action demandée
+ * Vérification et action sont réalisées dans la même commande workflow :
+ * la task et ses identity links ne sont lus qu'une fois, l'action réutilise l'entité du cache de la commande
+ *
+ * Une task est retenue, pour le tenant donné, si :
+ *  - elle n'est pas assignée et le user est un des candidate-users ou un des groupes est parmi les candidate-groups
+ *    (sans user ni groupes, toute task non assignée est retenue)
+ *  - ou elle est assignée au user, si l'action l'autorise
+ */
+public abstract class AbstractActionableTaskCmd<T> implements Command<T>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected String tenantId;
+    protected String taskId;
+    protected String user;
+    protected List<String> groups;
+
+    public AbstractActionableTaskCmd(String tenantId, String taskId, String user, List<String> groups) {
+        this.tenantId = tenantId;
+        this.taskId = taskId;
+        this.user = user;
+        this.groups = groups;
+    }
+
+    @Override
+    public T execute(CommandContext commandContext) {
+        TaskEntity task = commandContext.getTaskEntityManager().findById(taskId);
+        if (task == null || !Objects.equals(tenantId, task.getTenantId())){
+            return execute(commandContext, null);
+        }
+        if (task.getAssignee() == null){
+            return execute(commandContext, isCandidate(task) ? task : null);
+        }
+        return execute(commandContext, isAssigneeAllowed() && task.getAssignee().equals(user) ? task : null);
+    }
+
+    /**
+     * Action à effectuer
+     * @param commandContext
+     * @param task task retenue, null si le user ne peut pas la traiter
+     * @return
+     */
+    protected abstract T execute(CommandContext commandContext, TaskEntity task);
+
+    /**
+     * Indique si une task déjà assignée au user est retenue
+     * @return
+     */
+    protected abstract boolean isAssigneeAllowed();
+
+    protected boolean isCandidate(TaskEntity task){
+        boolean hasGroups = groups != null && !groups.isEmpty();
+        if (user == null && !hasGroups){
+            return true;
+        }
+        for (IdentityLink link : task.getIdentityLinks()){
+            if (IdentityLinkType.CANDIDATE.equals(link.getType())){
+                if (user != null && user.equals(link.getUserId())){
+                    return true;
+                }
+                if (hasGroups && link.getGroupId() != null && groups.contains(link.getGroupId())){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+package be.civadis.workflow.activiti.cmd;
+
+import org.activiti.engine.impl.cmd.ClaimTaskCmd;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+
+import java.util.List;
+
+/**
+ * Assigne la task si elle n'est pas assignée et que le user (ou un de ses groupes) en est candidat
+ */
+public class ClaimTaskIfCandidateCmd extends AbstractActionableTaskCmd<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected String assignee;
+
+    public ClaimTaskIfCandidateCmd(String tenantId, String taskId, String user, List<String> groups, String assignee) {
+        super(tenantId, taskId, user, groups);
+        this.assignee = assignee;
+    }
+
+    @Override
+    protected Boolean execute(CommandContext commandContext, TaskEntity task) {
+        if (task == null){
+            return false;
+        }
+        new ClaimTaskCmd(task.getId(), assignee).execute(commandContext);
+        return true;
+    }
+
+    @Override
+    protected boolean isAssigneeAllowed() {
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package be.civadis.workflow.activiti.cmd;
+
+import org.activiti.engine.impl.cmd.CompleteTaskCmd;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Complete la task si le user (ou un de ses groupes) en est candidat ou si elle est assignée au user
+ */
+public class CompleteTaskIfActionableCmd extends AbstractActionableTaskCmd<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected Map<String, Object> variables;
+
+    public CompleteTaskIfActionableCmd(String tenantId, String taskId, String user, List<String> groups, Map<String, Object> variables) {
+        super(tenantId, taskId, user, groups);
+        this.variables = variables;
+    }
+
+    @Override
+    protected Boolean execute(CommandContext commandContext, TaskEntity task) {
+        if (task == null){
+            return false;
+        }
+        new CompleteTaskCmd(task.getId(), variables).execute(commandContext);
+        return true;
+    }
+
+    @Override
+    protected boolean isAssigneeAllowed() {
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package be.civadis.workflow.activiti.cmd;
+
+import be.civadis.workflow.activiti.batch.TaskCompletion;
+import be.civadis.workflow.activiti.batch.TaskCompletionResult;
+import org.activiti.engine.impl.cmd.CompleteTaskCmd;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Complete un lot de tasks dans une seule commande workflow (donc une seule transaction)
+ * Les tasks inexistantes, d'un autre tenant ou suspendues sont écartées avant toute complétion,
+ * une erreur lors de la complétion d'une task annule donc l'ensemble du lot
+ */
+public class CompleteTasksCmd implements Command<Map<String, TaskCompletionResult>>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected String tenantId;
+    protected List<TaskCompletion> completions;
+
+    public CompleteTasksCmd(String tenantId, List<TaskCompletion> completions) {
+        this.tenantId = tenantId;
+        this.completions = completions;
+    }
+
+    @Override
+    public Map<String, TaskCompletionResult> execute(CommandContext commandContext) {
+
+        Map<String, TaskCompletionResult> results = new LinkedHashMap<>();
+        List<TaskCompletion> checked = new ArrayList<>();
+
+        //vérification : les tasks chargées restent dans le cache de la commande, pas de relecture lors du complete
+        for (TaskCompletion completion : completions){
+            TaskEntity task = commandContext.getTaskEntityManager().findById(completion.getTaskId());
+            if (task == null || !Objects.equals(tenantId, task.getTenantId())){
+                results.put(completion.getTaskId(), TaskCompletionResult.of(completion.getTaskId(), TaskCompletionResult.Status.NOT_FOUND));
+            } else if (task.isSuspended()){
+                results.put(completion.getTaskId(), TaskCompletionResult.of(completion.getTaskId(), TaskCompletionResult.Status.SUSPENDED));
+            } else {
+                checked.add(completion);
+            }
+        }
+
+        //complétion
+        for (TaskCompletion completion : checked){
+            new CompleteTaskCmd(completion.getTaskId(), completion.getVariables()).execute(commandContext);
+            results.put(completion.getTaskId(), TaskCompletionResult.of(completion.getTaskId(), TaskCompletionResult.Status.COMPLETED));
+        }
+
+        return results;
+    }
+}
@@ -0,0 +1,29 @@
+package be.civadis.workflow.activiti.cmd;
+
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+import org.activiti.engine.task.Task;
+
+import java.util.List;
+
+/**
+ * Recherche une task pouvant être traitée par le user : candidate (user ou groupes) ou assignée au user
+ */
+public class FindActionableTaskCmd extends AbstractActionableTaskCmd<Task> {
+
+    private static final long serialVersionUID = 1L;
+
+    public FindActionableTaskCmd(String tenantId, String taskId, String user, List<String> groups) {
+        super(tenantId, taskId, user, groups);
+    }
+
+    @Override
+    protected Task execute(CommandContext commandContext, TaskEntity task) {
+        return task;
+    }
+
+    @Override
+    protected boolean isAssigneeAllowed() {
+        return true;
+    }
+}
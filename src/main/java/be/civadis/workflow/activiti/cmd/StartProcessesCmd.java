@@ -0,0 +1,43 @@
+package be.civadis.workflow.activiti.cmd;
+
+import org.activiti.engine.impl.cmd.StartProcessInstanceCmd;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.runtime.ProcessInstance;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Démarre un lot d'instances d'un processus dans une seule commande workflow (donc une seule transaction)
+ * Une erreur lors du démarrage d'une instance annule l'ensemble du lot
+ */
+public class StartProcessesCmd implements Command<List<String>>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected String tenantId;
+    protected String processName;
+    protected List<Map<String, Object>> variablesList;
+
+    public StartProcessesCmd(String tenantId, String processName, List<Map<String, Object>> variablesList) {
+        this.tenantId = tenantId;
+        this.processName = processName;
+        this.variablesList = variablesList;
+    }
+
+    /**
+     * @return ids des instances démarrées, dans l'ordre du lot
+     */
+    @Override
+    public List<String> execute(CommandContext commandContext) {
+        List<String> processInstanceIds = new ArrayList<>();
+        for (Map<String, Object> variables : variablesList){
+            ProcessInstance processInstance = new StartProcessInstanceCmd<ProcessInstance>(processName, null, null, variables, tenantId).execute(commandContext);
+            processInstanceIds.add(processInstance.getId());
+        }
+        return processInstanceIds;
+    }
+}
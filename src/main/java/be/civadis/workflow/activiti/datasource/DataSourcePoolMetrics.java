@@ -0,0 +1,64 @@
+package be.civadis.workflow.activiti.datasource;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.DataSourceProxy;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Métriques des pools de connexions (tomcat-jdbc) de l'application, par bean : datasource.pool.<bean>.*
+ *  active, idle, size, max-active : connexions utilisées, libres, ouvertes et maximum
+ *  waiting : threads en attente d'une connexion
+ *  borrows, wait-time-ms, max-wait-time-ms, timeouts : attente pour obtenir une connexion (pools {@link InstrumentedPoolDataSource})
+ * Les datasources enveloppés (cf TenantSchemaDataSource) sont mesurés sur leur pool
+ * Un pool pas encore initialisé n'est pas créé par la lecture des métriques
+ */
+@Component
+public class DataSourcePoolMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "datasource.pool.";
+
+    private final Map<String, DataSource> dataSources;
+
+    public DataSourcePoolMetrics(Map<String, DataSource> dataSources) {
+        this.dataSources = dataSources;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, DataSource> entry : dataSources.entrySet()){
+            DataSource target = entry.getValue();
+            if (target instanceof DelegatingDataSource){
+                target = ((DelegatingDataSource) target).getTargetDataSource();
+            }
+            if (!(target instanceof DataSourceProxy)){
+                continue;
+            }
+            String prefix = PREFIX + entry.getKey() + ".";
+            DataSourceProxy dataSource = (DataSourceProxy) target;
+            ConnectionPool pool = dataSource.getPool();
+            metrics.add(new Metric<>(prefix + "active", pool != null ? pool.getActive() : 0));
+            metrics.add(new Metric<>(prefix + "idle", pool != null ? pool.getIdle() : 0));
+            metrics.add(new Metric<>(prefix + "size", pool != null ? pool.getSize() : 0));
+            metrics.add(new Metric<>(prefix + "max-active", dataSource.getMaxActive()));
+            metrics.add(new Metric<>(prefix + "waiting", pool != null ? pool.getWaitCount() : 0));
+            if (dataSource instanceof InstrumentedPoolDataSource){
+                InstrumentedPoolDataSource instrumented = (InstrumentedPoolDataSource) dataSource;
+                metrics.add(new Metric<>(prefix + "borrows", instrumented.getBorrows()));
+                metrics.add(new Metric<>(prefix + "wait-time-ms", instrumented.getWaitTimeMillis()));
+                metrics.add(new Metric<>(prefix + "max-wait-time-ms", instrumented.getMaxWaitTimeMillis()));
+                metrics.add(new Metric<>(prefix + "timeouts", instrumented.getTimeouts()));
+            }
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,146 @@
+package be.civadis.workflow.activiti.datasource;
+
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolExhaustedException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Pool de connexions (tomcat-jdbc) mesurant le temps d'attente pour obtenir une connexion
+ * Un temps d'attente croissant signale un pool sous-dimensionné avant qu'il ne se traduise en latence ou en timeouts
+ * (cf {@link DataSourcePoolMetrics})
+ */
+public class InstrumentedPoolDataSource extends DataSource {
+
+    /** cache des prepared statements par connexion, ajouté aux intercepteurs configurés (cf setStatementCacheSize) */
+    public static final String STATEMENT_CACHE_INTERCEPTOR = "StatementCache(prepared=true,callable=false,max=%d)";
+
+    private static final Pattern STATEMENT_CACHE_PATTERN = Pattern.compile("(^|\\.)StatementCache(\\(|$)");
+
+    private String configuredInterceptors;
+    private int statementCacheSize;
+    private boolean statementCacheDisabled;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public InstrumentedPoolDataSource() {
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection();
+        } catch (PoolExhaustedException e){
+            timeouts.incrementAndGet();
+            throw e;
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection(username, password);
+        } catch (PoolExhaustedException e){
+            timeouts.incrementAndGet();
+            throw e;
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Intercepteurs configurés (propriété jdbcInterceptors), le cache des prepared statements y est ajouté (cf setStatementCacheSize)
+     * @param jdbcInterceptors
+     */
+    @Override
+    public void setJdbcInterceptors(String jdbcInterceptors){
+        this.configuredInterceptors = jdbcInterceptors;
+        applyInterceptors();
+    }
+
+    /**
+     * Active le cache des prepared statements, la dernière valeur positionnée remplace les précédentes (valeur par défaut puis propriété)
+     * @param maxStatements nombre de statements gardés par connexion, 0 pour désactiver le cache
+     */
+    public void setStatementCacheSize(int maxStatements){
+        this.statementCacheSize = maxStatements;
+        applyInterceptors();
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheDisabled ? 0 : statementCacheSize;
+    }
+
+    /**
+     * Désactive le cache des prepared statements, y compris celui des intercepteurs configurés
+     * Le cache est propre à la connexion, pas au schéma : en mode schéma par tenant (cf TenantSchemaDataSource), un statement préparé
+     * pour un schéma serait réutilisé pour un autre
+     */
+    public void disableStatementCache(){
+        this.statementCacheDisabled = true;
+        applyInterceptors();
+    }
+
+    /**
+     * Intercepteurs sans le cache des prepared statements
+     * @param jdbcInterceptors liste séparée par des ';'
+     * @return null si la liste est vide
+     */
+    public static String withoutStatementCache(String jdbcInterceptors){
+        List<String> interceptors = new ArrayList<>();
+        if (jdbcInterceptors != null){
+            for (String interceptor : jdbcInterceptors.split(";")){
+                String trimmed = interceptor.trim();
+                if (!trimmed.isEmpty() && !STATEMENT_CACHE_PATTERN.matcher(trimmed).find()){
+                    interceptors.add(trimmed);
+                }
+            }
+        }
+        return interceptors.isEmpty() ? null : String.join(";", interceptors);
+    }
+
+    private void applyInterceptors(){
+        //un seul cache : celui de statementCacheSize remplace un éventuel StatementCache configuré
+        String interceptors = statementCacheDisabled || statementCacheSize > 0 ? withoutStatementCache(configuredInterceptors) : configuredInterceptors;
+        if (!statementCacheDisabled && statementCacheSize > 0){
+            String statementCache = String.format(STATEMENT_CACHE_INTERCEPTOR, statementCacheSize);
+            interceptors = interceptors == null ? statementCache : interceptors + ";" + statementCache;
+        }
+        super.setJdbcInterceptors(interceptors);
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getMaxWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    private void record(long elapsedNanos){
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(elapsedNanos);
+        maxWaitNanos.accumulateAndGet(elapsedNanos, Math::max);
+    }
+}
@@ -0,0 +1,108 @@
+package be.civadis.workflow.activiti.datasource;
+
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * Datasource routant chaque connexion vers le schéma du tenant courant (cf TenantUtils), mode workflow.tenancy.mode=schema
+ * Le schéma est positionné à l'obtention de la connexion : dans une transaction, toutes les requêtes utilisent le schéma
+ * du tenant courant au démarrage de la transaction
+ *
+ * Le tenant par défaut utilise le schéma par défaut de la connexion, les autres un schéma du même nom que le tenant
+ * Les tables absentes du schéma du tenant (tables JPA de l'application, WF_RESOURCE_CONTENT) sont recherchées dans le schéma par défaut
+ *  H2 : SET SCHEMA + SET SCHEMA_SEARCH_PATH
+ *  PostgreSQL : search_path
+ *  autres : Connection.setSchema (sans repli vers le schéma par défaut)
+ */
+public class TenantSchemaDataSource extends DelegatingDataSource {
+
+    private static final Pattern SCHEMA_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]{0,62}");
+
+    private volatile Dialect dialect;
+    private volatile String defaultSchema;
+
+    public TenantSchemaDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    /**
+     * Schéma d'un tenant
+     * @param tenantId
+     * @return null pour le tenant par défaut (schéma par défaut de la connexion)
+     */
+    public static String schemaFor(String tenantId){
+        if (tenantId == null || TenantUtils.DEFAULT_TENANT.equals(tenantId)){
+            return null;
+        }
+        if (!SCHEMA_NAME.matcher(tenantId).matches()){
+            throw new ActivitiIllegalArgumentException("Invalid tenant id for a schema : " + tenantId);
+        }
+        return tenantId.toUpperCase();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return route(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return route(super.getConnection(username, password));
+    }
+
+    private Connection route(Connection connection) throws SQLException {
+        try {
+            init(connection);
+            String schema = schemaFor(TenantUtils.getCurrentTenant());
+            if (dialect == Dialect.H2){
+                try (Statement statement = connection.createStatement()){
+                    statement.execute("SET SCHEMA " + (schema != null ? schema : defaultSchema));
+                    statement.execute("SET SCHEMA_SEARCH_PATH " + (schema != null ? schema + ", " : "") + defaultSchema);
+                }
+            } else if (dialect == Dialect.POSTGRES){
+                try (Statement statement = connection.createStatement()){
+                    statement.execute("SET search_path TO " + (schema != null ? schema.toLowerCase() + ", " : "") + defaultSchema);
+                }
+            } else {
+                connection.setSchema(schema != null ? schema : defaultSchema);
+            }
+            return connection;
+        } catch (SQLException | RuntimeException e){
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Type de base et schéma par défaut, lus sur la première connexion
+     */
+    private void init(Connection connection) throws SQLException {
+        if (dialect != null){
+            return;
+        }
+        String product = connection.getMetaData().getDatabaseProductName().toLowerCase();
+        String schema = connection.getSchema();
+        if (product.contains("h2")){
+            defaultSchema = schema != null ? schema : "PUBLIC";
+            dialect = Dialect.H2;
+        } else if (product.contains("postgres")){
+            defaultSchema = schema != null ? schema : "public";
+            dialect = Dialect.POSTGRES;
+        } else {
+            defaultSchema = schema;
+            dialect = Dialect.OTHER;
+        }
+    }
+
+    private enum Dialect {
+        H2, POSTGRES, OTHER
+    }
+
+}
@@ -0,0 +1,38 @@
+package be.civadis.workflow.activiti.datasource;
+
+import org.apache.tomcat.jdbc.pool.DataSourceProxy;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+/**
+ * En mode schéma par tenant (workflow.tenancy.mode=schema), les datasources de l'application (moteur, JPA, JdbcTemplate)
+ * sont enveloppés par un {@link TenantSchemaDataSource}
+ * Le cache des prepared statements des pools tomcat-jdbc est désactivé : il est propre à la connexion, dont le schéma change
+ */
+@Component
+@ConditionalOnProperty(name = "workflow.tenancy.mode", havingValue = "schema")
+public class TenantSchemaDataSourcePostProcessor implements BeanPostProcessor {
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof DataSource && !(bean instanceof TenantSchemaDataSource)){
+            if (bean instanceof InstrumentedPoolDataSource){
+                ((InstrumentedPoolDataSource) bean).disableStatementCache();
+            } else if (bean instanceof DataSourceProxy){
+                DataSourceProxy pool = (DataSourceProxy) bean;
+                pool.setJdbcInterceptors(InstrumentedPoolDataSource.withoutStatementCache(pool.getJdbcInterceptors()));
+            }
+            return new TenantSchemaDataSource((DataSource) bean);
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,93 @@
+package be.civadis.workflow.activiti.deployer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Résultat de la validation d'un fichier d'une deployment (entrée d'une archive ou fichier BPMN seul)
+ */
+public class DeploymentEntryReport implements Serializable {
+
+    private String name;
+
+    private long size;
+
+    private boolean bpmn;
+
+    private List<String> processKeys = new ArrayList<>();
+
+    private List<String> errors = new ArrayList<>();
+
+    private List<String> warnings = new ArrayList<>();
+
+    public DeploymentEntryReport() {
+    }
+
+    public DeploymentEntryReport(String name, long size, boolean bpmn) {
+        this.name = name;
+        this.size = size;
+        this.bpmn = bpmn;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return taille décompressée, -1 si inconnue
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return true si le fichier est une définition de processus (validée), false pour les autres ressources
+     */
+    public boolean isBpmn() {
+        return bpmn;
+    }
+
+    public void setBpmn(boolean bpmn) {
+        this.bpmn = bpmn;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return clés des processus définis dans le fichier
+     */
+    public List<String> getProcessKeys() {
+        return processKeys;
+    }
+
+    public void setProcessKeys(List<String> processKeys) {
+        this.processKeys = processKeys;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(List<String> errors) {
+        this.errors = errors;
+    }
+
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    public void setWarnings(List<String> warnings) {
+        this.warnings = warnings;
+    }
+}
@@ -0,0 +1,121 @@
+package be.civadis.workflow.activiti.deployer;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Rapport d'un upload de deployment : validation de chaque fichier et deployment éventuelle
+ */
+public class DeploymentUploadReport implements Serializable {
+
+    public enum Status {
+        /** tous les fichiers sont valides, rien n'a été déployé (validation seule) */
+        VALIDATED,
+        /** tous les fichiers sont valides et ont été déployés */
+        DEPLOYED,
+        /** au moins un fichier est invalide, rien n'a été déployé */
+        REJECTED
+    }
+
+    private Status status;
+
+    private String name;
+
+    private String tenantId;
+
+    private long size;
+
+    private int invalid;
+
+    private String deploymentId;
+
+    private long durationMillis;
+
+    private List<DeploymentEntryReport> entries;
+
+    public DeploymentUploadReport() {
+    }
+
+    public DeploymentUploadReport(String name, String tenantId, long size, List<DeploymentEntryReport> entries) {
+        this.name = name;
+        this.tenantId = tenantId;
+        this.size = size;
+        this.entries = entries;
+        for (DeploymentEntryReport entry : entries){
+            if (!entry.isValid()){
+                invalid++;
+            }
+        }
+        this.status = invalid > 0 ? Status.REJECTED : Status.VALIDATED;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    /**
+     * @return taille du fichier uploadé
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return nombre de fichiers invalides
+     */
+    public int getInvalid() {
+        return invalid;
+    }
+
+    public void setInvalid(int invalid) {
+        this.invalid = invalid;
+    }
+
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    public void setDeploymentId(String deploymentId) {
+        this.deploymentId = deploymentId;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public List<DeploymentEntryReport> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<DeploymentEntryReport> entries) {
+        this.entries = entries;
+    }
+}
@@ -0,0 +1,366 @@
+package be.civadis.workflow.activiti.deployer;
+
+import be.civadis.workflow.activiti.batch.BatchExecutor;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.bpmn.converter.BpmnXMLConverter;
+import org.activiti.bpmn.model.BpmnModel;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.repository.Deployment;
+import org.activiti.engine.repository.DeploymentBuilder;
+import org.activiti.validation.ProcessValidator;
+import org.activiti.validation.ValidationError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Upload de deployments (fichier BPMN ou archive .zip/.bar) avec validation préalable
+ * Le flux uploadé est copié dans un fichier temporaire (taille bornée), l'archive est lue depuis ce fichier entrée par entrée
+ * Les limites multipart de spring (taille du fichier et de la requête) sont dérivées de workflow.upload.max-size (cf MyApp)
+ * Chaque définition de processus est parsée et validée en parallèle, sans charger l'archive en mémoire
+ * Si un fichier est invalide, rien n'est déployé et le rapport détaille les erreurs par fichier
+ *
+ * Config :
+ *  workflow.upload.max-size (52428800) : taille maximum du fichier uploadé
+ *  workflow.upload.max-entries (500) : nombre maximum de fichiers dans une archive
+ *  workflow.upload.max-entry-size (10485760) : taille décompressée maximum d'un fichier de l'archive
+ *  workflow.upload.max-total-size (104857600) : taille décompressée maximum de l'ensemble des fichiers, gardés en mémoire par le moteur lors de la deployment
+ *  workflow.upload.validation-parallelism (4) : nombre de fichiers validés en parallèle
+ */
+@Component
+public class DeploymentUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(DeploymentUploader.class);
+
+    private final RepositoryService repositoryService;
+    private final ProcessEngine processEngine;
+    private final long maxSize;
+    private final int maxEntries;
+    private final long maxEntrySize;
+    private final long maxTotalSize;
+    private final int parallelism;
+    private final BatchExecutor batchExecutor;
+
+    public DeploymentUploader(RepositoryService repositoryService,
+                              ProcessEngine processEngine,
+                              BatchExecutor batchExecutor,
+                              @Value("${workflow.upload.max-size:52428800}") long maxSize,
+                              @Value("${workflow.upload.max-entries:500}") int maxEntries,
+                              @Value("${workflow.upload.max-entry-size:10485760}") long maxEntrySize,
+                              @Value("${workflow.upload.max-total-size:104857600}") long maxTotalSize,
+                              @Value("${workflow.upload.validation-parallelism:4}") int parallelism) {
+        this.repositoryService = repositoryService;
+        this.processEngine = processEngine;
+        this.maxSize = maxSize;
+        this.maxEntries = maxEntries;
+        this.maxEntrySize = maxEntrySize;
+        this.maxTotalSize = maxTotalSize;
+        this.parallelism = parallelism;
+        this.batchExecutor = batchExecutor;
+    }
+
+    public static boolean isBpmn(String fileName){
+        return fileName.endsWith(".bpmn20.xml") || fileName.endsWith(".bpmn");
+    }
+
+    public static boolean isArchive(String fileName){
+        return fileName.toLowerCase().endsWith(".bar") || fileName.toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Valide puis déploie le fichier uploadé
+     * @param in contenu du fichier, lu jusqu'à la fin mais pas fermé
+     * @param fileName nom du fichier (.bpmn20.xml, .bpmn, .bar ou .zip), nom de la deployment
+     * @param tenantId tenant de la deployment, null si aucun
+     * @param dryRun si true, le fichier est uniquement validé
+     * @return rapport de validation par fichier et id de la deployment
+     */
+    public DeploymentUploadReport upload(InputStream in, String fileName, String tenantId, boolean dryRun){
+        if (fileName == null || (!isBpmn(fileName) && !isArchive(fileName))){
+            throw new ActivitiIllegalArgumentException("File must be of type .bpmn20.xml, .bpmn, .bar or .zip");
+        }
+
+        long start = System.currentTimeMillis();
+        Path spool = null;
+        try {
+            spool = Files.createTempFile("deployment-", ".upload");
+            Files.copy(new SizeLimitedInputStream(in, maxSize, fileName), spool, StandardCopyOption.REPLACE_EXISTING);
+            long size = Files.size(spool);
+
+            DeploymentUploadReport report;
+            if (isArchive(fileName)){
+                try (ZipFile zip = new ZipFile(spool.toFile())){
+                    report = upload(archiveEntries(zip), fileName, tenantId, size, dryRun);
+                } catch (ZipException e){
+                    throw new ActivitiIllegalArgumentException("Invalid archive " + fileName + " : " + e.getMessage());
+                }
+            } else {
+                Path file = spool;
+                report = upload(Collections.singletonList(new UploadEntry(fileName, size, () -> Files.newInputStream(file))),
+                        fileName, tenantId, size, dryRun);
+            }
+
+            report.setDurationMillis(System.currentTimeMillis() - start);
+            log.info("Upload of {} ({} bytes, {} files) for tenant {} : {} in {} ms",
+                    fileName, size, report.getEntries().size(), tenantId, report.getStatus(), report.getDurationMillis());
+            return report;
+        } catch (IOException e){
+            throw new ActivitiException("Unable to read upload " + fileName, e);
+        } finally {
+            if (spool != null){
+                try {
+                    Files.deleteIfExists(spool);
+                } catch (IOException e){
+                    log.warn("Unable to delete temporary file {}", spool, e);
+                }
+            }
+        }
+    }
+
+    private DeploymentUploadReport upload(List<UploadEntry> entries, String fileName, String tenantId, long size, boolean dryRun) throws IOException {
+
+        DeploymentUploadReport report = new DeploymentUploadReport(fileName, tenantId, size, validate(entries));
+        if (report.getStatus() != DeploymentUploadReport.Status.VALIDATED || dryRun){
+            return report;
+        }
+
+        //les fichiers ne sont lus qu'au moment de la deployment, le moteur les conserve ensuite comme ressources (en mémoire jusqu'à l'insert) :
+        //la taille totale lue est bornée au fil de la lecture, les tailles déclarées par l'archive pouvant être fausses
+        DeploymentBuilder deploymentBuilder = repositoryService.createDeployment().name(fileName);
+        if (tenantId != null){
+            deploymentBuilder.tenantId(tenantId);
+        }
+        AtomicLong total = new AtomicLong();
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            for (UploadEntry entry : entries){
+                InputStream stream = new SizeLimitedInputStream(entry.opener.open(), maxEntrySize, entry.name, total, maxTotalSize);
+                streams.add(stream);
+                try {
+                    deploymentBuilder.addInputStream(entry.name, stream);
+                } catch (ActivitiException e){
+                    //le moteur encapsule les erreurs de lecture
+                    if (e.getCause() instanceof ActivitiIllegalArgumentException){
+                        throw (ActivitiIllegalArgumentException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            //en mode schéma par tenant, la deployment est enregistrée dans le schéma de son tenant
+            Deployment deployment = tenantId != null ? TenantUtils.callAs(tenantId, deploymentBuilder::deploy) : deploymentBuilder.deploy();
+            report.setDeploymentId(deployment.getId());
+            report.setStatus(DeploymentUploadReport.Status.DEPLOYED);
+        } finally {
+            closeAll(streams);
+        }
+        return report;
+    }
+
+    /**
+     * Entrées de l'archive, hors répertoires, le nombre d'entrées et leur taille totale déclarée sont vérifiés avant toute lecture
+     */
+    private List<UploadEntry> archiveEntries(ZipFile zip){
+        if (zip.size() > maxEntries){
+            throw new ActivitiIllegalArgumentException("Archive contains " + zip.size() + " entries, maximum is " + maxEntries);
+        }
+        List<UploadEntry> entries = new ArrayList<>();
+        long declaredSize = 0;
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while (zipEntries.hasMoreElements()){
+            ZipEntry zipEntry = zipEntries.nextElement();
+            if (!zipEntry.isDirectory()){
+                entries.add(new UploadEntry(zipEntry.getName(), zipEntry.getSize(), () -> zip.getInputStream(zipEntry)));
+                declaredSize += Math.max(0, zipEntry.getSize());
+            }
+        }
+        if (declaredSize > maxTotalSize){
+            throw new ActivitiIllegalArgumentException("Archive content size " + declaredSize + " exceeds maximum " + maxTotalSize);
+        }
+        return entries;
+    }
+
+    /**
+     * Valide les fichiers en parallèle sur le pool partagé {@link BatchExecutor}, au plus workflow.upload.validation-parallelism à la fois
+     * @return rapport par fichier, dans l'ordre des fichiers
+     */
+    private List<DeploymentEntryReport> validate(List<UploadEntry> entries){
+        int workers = Math.max(1, Math.min(parallelism, entries.size()));
+        DeploymentEntryReport[] reports = new DeploymentEntryReport[entries.size()];
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < entries.size(); i = next.getAndIncrement()){
+                UploadEntry entry = entries.get(i);
+                try {
+                    reports[i] = validate(entry);
+                } catch (RuntimeException e){
+                    reports[i] = new DeploymentEntryReport(entry.name, entry.size, isBpmn(entry.name));
+                    reports[i].getErrors().add(String.valueOf(e));
+                }
+            }
+        };
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 1; i < workers; i++){
+                futures.add(batchExecutor.submit(worker));
+            }
+            worker.run();
+            for (Future<?> future : futures){
+                future.get();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new ActivitiException("Deployment validation interrupted", e);
+        } catch (ExecutionException e){
+            throw new ActivitiException("Deployment validation failed", e.getCause());
+        }
+        return Arrays.asList(reports);
+    }
+
+    /**
+     * Parse et valide une définition de processus (mêmes règles que la deployment), les autres fichiers ne sont pas lus
+     */
+    private DeploymentEntryReport validate(UploadEntry entry){
+        DeploymentEntryReport report = new DeploymentEntryReport(entry.name, entry.size, isBpmn(entry.name));
+        if (entry.size > maxEntrySize){
+            report.getErrors().add("File size " + entry.size + " exceeds maximum " + maxEntrySize);
+            return report;
+        }
+        if (!report.isBpmn()){
+            return report;
+        }
+
+        ProcessEngineConfigurationImpl configuration = (ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration();
+        //le convertisseur ouvre le fichier une première fois pour la validation xsd, puis pour le parsing
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            BpmnModel bpmnModel = new BpmnXMLConverter().convertToBpmnModel(() -> {
+                try {
+                    InputStream stream = new SizeLimitedInputStream(entry.opener.open(), maxEntrySize, entry.name);
+                    streams.add(stream);
+                    return stream;
+                } catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            }, true, configuration.isEnableSafeBpmnXml());
+
+            bpmnModel.getProcesses().forEach(process -> report.getProcessKeys().add(process.getId()));
+            ProcessValidator processValidator = configuration.getProcessValidator();
+            if (processValidator != null){
+                for (ValidationError error : processValidator.validate(bpmnModel)){
+                    (error.isWarning() ? report.getWarnings() : report.getErrors()).add(error.toString());
+                }
+            }
+        } catch (Exception e){
+            report.getErrors().add(e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            closeAll(streams);
+        }
+        return report;
+    }
+
+    private void closeAll(List<InputStream> streams){
+        for (InputStream stream : streams){
+            try {
+                stream.close();
+            } catch (IOException e){
+                log.debug("Unable to close upload stream", e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static class UploadEntry {
+
+        private final String name;
+        private final long size;
+        private final StreamOpener opener;
+
+        UploadEntry(String name, long size, StreamOpener opener) {
+            this.name = name;
+            this.size = size;
+            this.opener = opener;
+        }
+    }
+
+    /**
+     * Flux levant une erreur dès que la taille maximum est dépassée (taille déclarée absente ou erronée),
+     * et, si un total est fourni, dès que le total lu par l'ensemble des flux qui le partagent dépasse son maximum
+     */
+    private static class SizeLimitedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+        private final String name;
+        private final AtomicLong total;
+        private final long maxTotal;
+        private long read;
+
+        SizeLimitedInputStream(InputStream in, long maxSize, String name) {
+            this(in, maxSize, name, null, 0);
+        }
+
+        SizeLimitedInputStream(InputStream in, long maxSize, String name, AtomicLong total, long maxTotal) {
+            super(in);
+            this.maxSize = maxSize;
+            this.name = name;
+            this.total = total;
+            this.maxTotal = maxTotal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0){
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0){
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n){
+            read += n;
+            if (read > maxSize){
+                throw new ActivitiIllegalArgumentException(name + " exceeds maximum size of " + maxSize + " bytes");
+            }
+            if (total != null && total.addAndGet(n) > maxTotal){
+                throw new ActivitiIllegalArgumentException("Upload content exceeds maximum total size of " + maxTotal + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package be.civadis.workflow.activiti.deployer;
+
+import be.civadis.workflow.activiti.ActivitiProcessImporter;
+import be.civadis.workflow.activiti.cache.ParsedModelCache;
+import org.activiti.engine.impl.bpmn.deployer.ParsedDeploymentBuilder;
+import org.activiti.engine.impl.bpmn.parser.BpmnParse;
+import org.activiti.engine.impl.bpmn.parser.BpmnParser;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.persistence.entity.DeploymentEntity;
+import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntity;
+import org.activiti.engine.impl.persistence.entity.ProcessDefinitionEntityManager;
+import org.activiti.engine.impl.persistence.entity.ResourceEntity;
+
+import java.util.Map;
+
+/**
+ * ParsedDeploymentBuilder réutilisant les modèles BPMN déjà parsés (cf {@link ParsedModelCache})
+ * Pour un contenu déjà parsé, les définitions de processus de la deployment sont créées à partir du modèle partagé,
+ * sans nouvelle lecture XML, validation ni application des parse handlers
+ */
+public class SharedModelParsedDeploymentBuilder extends ParsedDeploymentBuilder {
+
+    private final ParsedModelCache parsedModelCache;
+
+    public SharedModelParsedDeploymentBuilder(DeploymentEntity deployment, BpmnParser bpmnParser,
+                                              Map<String, Object> deploymentSettings, ParsedModelCache parsedModelCache) {
+        super(deployment, bpmnParser, deploymentSettings);
+        this.parsedModelCache = parsedModelCache;
+    }
+
+    @Override
+    protected BpmnParse createBpmnParseFromResource(ResourceEntity resource) {
+        byte[] content = resource.getBytes();
+        String checksum = ActivitiProcessImporter.checksum(content);
+
+        ParsedModelCache.ParsedModel parsedModel = parsedModelCache.get(checksum);
+        if (parsedModel != null){
+            return createBpmnParseFromModel(resource, parsedModel);
+        }
+
+        long start = System.nanoTime();
+        BpmnParse bpmnParse = super.createBpmnParseFromResource(resource);
+        parsedModelCache.put(checksum, content.length, bpmnParse.getBpmnModel(), bpmnParse.getProcessDefinitions(), System.nanoTime() - start);
+        return bpmnParse;
+    }
+
+    /**
+     * Parse "virtuel" : modèle partagé, nouvelles définitions de processus rattachées à la deployment
+     */
+    private BpmnParse createBpmnParseFromModel(ResourceEntity resource, ParsedModelCache.ParsedModel parsedModel){
+        BpmnParse bpmnParse = bpmnParser.createParse()
+                .deployment(deployment)
+                .name(resource.getName());
+        bpmnParse.setBpmnModel(parsedModel.getBpmnModel());
+
+        ProcessDefinitionEntityManager processDefinitionEntityManager = Context.getCommandContext().getProcessDefinitionEntityManager();
+        for (ParsedModelCache.DefinitionTemplate definition : parsedModel.getDefinitions()){
+            ProcessDefinitionEntity processDefinition = processDefinitionEntityManager.create();
+            definition.copyTo(processDefinition);
+            processDefinition.setDeploymentId(deployment.getId());
+            if (deployment.getEngineVersion() != null){
+                processDefinition.setEngineVersion(deployment.getEngineVersion());
+            }
+            bpmnParse.getProcessDefinitions().add(processDefinition);
+        }
+        return bpmnParse;
+    }
+}
@@ -0,0 +1,25 @@
+package be.civadis.workflow.activiti.deployer;
+
+import be.civadis.workflow.activiti.cache.ParsedModelCache;
+import org.activiti.engine.impl.bpmn.deployer.ParsedDeploymentBuilder;
+import org.activiti.engine.impl.bpmn.deployer.ParsedDeploymentBuilderFactory;
+import org.activiti.engine.impl.persistence.entity.DeploymentEntity;
+
+import java.util.Map;
+
+/**
+ * Fabrique des {@link SharedModelParsedDeploymentBuilder}, installée dans la config du moteur (cf WorkflowEngineConfigurer)
+ */
+public class SharedModelParsedDeploymentBuilderFactory extends ParsedDeploymentBuilderFactory {
+
+    private final ParsedModelCache parsedModelCache;
+
+    public SharedModelParsedDeploymentBuilderFactory(ParsedModelCache parsedModelCache) {
+        this.parsedModelCache = parsedModelCache;
+    }
+
+    @Override
+    public ParsedDeploymentBuilder getBuilderForDeploymentAndSettings(DeploymentEntity deployment, Map<String, Object> deploymentSettings) {
+        return new SharedModelParsedDeploymentBuilder(deployment, getBpmnParser(), deploymentSettings, parsedModelCache);
+    }
+}
@@ -0,0 +1,104 @@
+package be.civadis.workflow.activiti.event;
+
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.IdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.TaskEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ecoute les événements workflow modifiant les listes de tasks et les relaie aux {@link TaskChangeListener}
+ * Les listeners sont notifiés immédiatement (les lectures suivantes dans la même transaction voient le changement)
+ * puis une seconde fois en fin de transaction, une fois le changement visible (ou annulé) pour les autres transactions
+ */
+@Component
+public class TaskChangeEventDispatcher implements ActivitiEventListener {
+
+    private static final String CHANGED_TENANTS_ATTRIBUTE = TaskChangeEventDispatcher.class.getName() + ".tenants";
+
+    private RuntimeService runtimeService;
+
+    private List<TaskChangeListener> listeners;
+
+    public TaskChangeEventDispatcher(RuntimeService runtimeService, List<TaskChangeListener> listeners) {
+        this.runtimeService = runtimeService;
+        this.listeners = listeners;
+    }
+
+    @PostConstruct
+    public void register() {
+        runtimeService.addEventListener(this,
+                ActivitiEventType.TASK_CREATED,
+                ActivitiEventType.TASK_ASSIGNED,
+                ActivitiEventType.TASK_COMPLETED,
+                ActivitiEventType.ENTITY_CREATED,
+                ActivitiEventType.ENTITY_DELETED);
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!(event instanceof ActivitiEntityEvent)){
+            return;
+        }
+
+        Object entity = ((ActivitiEntityEvent) event).getEntity();
+        String tenantId;
+        if (entity instanceof TaskEntity){
+            tenantId = ((TaskEntity) entity).getTenantId();
+        } else if (entity instanceof IdentityLinkEntity && ((IdentityLinkEntity) entity).getTaskId() != null){
+            tenantId = findTaskTenant(((IdentityLinkEntity) entity).getTaskId());
+        } else {
+            return;
+        }
+
+        notifyListeners(tenantId);
+        notifyAfterTransaction(tenantId);
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    private String findTaskTenant(String taskId){
+        CommandContext commandContext = Context.getCommandContext();
+        TaskEntity task = commandContext != null ? commandContext.getTaskEntityManager().findById(taskId) : null;
+        return task != null ? task.getTenantId() : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notifyAfterTransaction(String tenantId){
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null){
+            return;
+        }
+
+        //une seule notification par tenant et par transaction
+        Set<String> tenants = (Set<String>) commandContext.getAttribute(CHANGED_TENANTS_ATTRIBUTE);
+        if (tenants == null){
+            Set<String> changed = new HashSet<>();
+            commandContext.addAttribute(CHANGED_TENANTS_ATTRIBUTE, changed);
+            Context.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, context -> changed.forEach(this::notifyListeners));
+            Context.getTransactionContext().addTransactionListener(TransactionState.ROLLED_BACK, context -> changed.forEach(this::notifyListeners));
+            tenants = changed;
+        }
+        tenants.add(tenantId);
+    }
+
+    private void notifyListeners(String tenantId){
+        for (TaskChangeListener listener : listeners){
+            listener.onTasksChanged(tenantId);
+        }
+    }
+}
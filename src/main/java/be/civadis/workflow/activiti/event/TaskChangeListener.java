@@ -0,0 +1,15 @@
+package be.civadis.workflow.activiti.event;
+
+/**
+ * Notifié par {@link TaskChangeEventDispatcher} lorsque des tasks d'un tenant sont créées, assignées, complétées, supprimées
+ * ou que leurs candidats changent
+ */
+public interface TaskChangeListener {
+
+    /**
+     * Appelé lors du changement (dans la transaction workflow) puis à nouveau après commit ou rollback de celle-ci
+     * @param tenantId tenant concerné, null si inconnu (tous les tenants sont alors concernés)
+     */
+    void onTasksChanged(String tenantId);
+
+}
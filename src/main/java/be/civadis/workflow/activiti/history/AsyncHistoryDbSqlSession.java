@@ -0,0 +1,290 @@
+package be.civadis.workflow.activiti.history;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.impl.cfg.TransactionContext;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.db.DbSqlSession;
+import org.activiti.engine.impl.db.HasRevision;
+import org.activiti.engine.impl.db.ListQueryParameterObject;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.Entity;
+import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricVariableInstanceEntityImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Session du moteur en mode historique asynchrone (cf {@link AsyncHistoryWriter})
+ * Au flush, les insertions, mises à jour et suppressions des entités d'historique ne sont pas exécutées : elles sont figées (SQL et paramètres),
+ * journalisées dans la transaction, et leur état est publié dans {@link PendingHistory}.
+ * Les révisions sont gérées comme par DbSqlSession, mais sans contrôle de concurrence optimiste sur l'historique,
+ * et sans incrément à l'insertion : l'état publié porte la révision de la ligne insérée (REV_ = #{revision}), que vérifient mises à jour et suppressions
+ *
+ * Les lectures du moteur par id, par id de variable et des activités non terminées tiennent compte de l'état en attente
+ * Les suppressions d'historique en cascade (instance de processus, tâche) lisent en base les lignes à supprimer :
+ * l'historique des transactions validées est appliqué avant la première de ces lectures de la session
+ * Les écritures par requête (update(statement, parameters)) restent synchrones
+ */
+public class AsyncHistoryDbSqlSession extends DbSqlSession {
+
+    private static final String SELECT_HISTORIC_VARIABLE_BY_VARIABLE_ID = "selectHistoricVariableInstanceByVariableInstanceId";
+    private static final String SELECT_UNFINISHED_ACTIVITIES = "selectUnfinishedHistoricActivityInstanceExecutionIdAndActivityId";
+    //lectures des lignes supprimées par les cascades de HistoricProcessInstanceEntityManager et HistoricTaskInstanceEntityManager
+    private static final Set<String> SELECT_CASCADES = new HashSet<>(Arrays.asList(
+            "selectHistoricDetailByProcessInstanceId",
+            "selectHistoricDetailByTaskId",
+            "selectHistoricVariableInstanceByProcessInstanceId",
+            "selectHistoricVariableInstanceByTaskId",
+            "selectHistoricTaskInstancesByProcessInstanceId",
+            "selectHistoricTasksByParentTaskId",
+            "selectHistoricIdentityLinksByProcessInstance",
+            "selectHistoricIdentityLinksByTask",
+            "selectHistoricProcessInstanceIdsBySuperProcessInstanceId"));
+
+    private final TransactionContext transactionContext;
+    private final AsyncHistoryWriter writer;
+    private final PendingHistory pendingHistory;
+
+    private final List<HistoryStatement> statements = new ArrayList<>();
+    private final List<Entity> written = new ArrayList<>();
+    private final List<Entity> deleted = new ArrayList<>();
+    private final List<HistoryStatement> bulkDeletes = new ArrayList<>();
+    private boolean flushedBeforeDelete;
+
+    public AsyncHistoryDbSqlSession(AsyncHistoryDbSqlSessionFactory dbSqlSessionFactory, CommandContext commandContext, AsyncHistoryWriter writer) {
+        super(dbSqlSessionFactory, commandContext.getEntityCache());
+        //le contexte de transaction n'est plus accessible au flush, qui a lieu à la fermeture de la commande
+        this.transactionContext = Context.getTransactionContext();
+        this.writer = writer;
+        this.pendingHistory = writer.getPendingHistory();
+    }
+
+    @Override
+    public void flush() {
+        super.flush();
+        if (!statements.isEmpty()){
+            try {
+                journal();
+            } finally {
+                statements.clear();
+                written.clear();
+                deleted.clear();
+            }
+        }
+    }
+
+    /**
+     * Journalise les écritures d'historique du flush dans la transaction, et publie l'état des entités
+     */
+    private void journal(){
+        long id = writer.begin();
+        List<PendingHistory.Key> keys = new ArrayList<>();
+        for (Entity entity : written){
+            keys.add(pendingHistory.publish(id, entity, false));
+        }
+        for (Entity entity : deleted){
+            keys.add(pendingHistory.publish(id, entity, true));
+        }
+        HistoryBatch batch = new HistoryBatch(id, statements, keys);
+        boolean registered = false;
+        try {
+            if (transactionContext == null){
+                throw new ActivitiException("Async history requires a transaction context");
+            }
+            transactionContext.addTransactionListener(TransactionState.COMMITTED, context -> writer.committed(batch));
+            transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, context -> writer.rolledBack(batch));
+            registered = true;
+            writer.journal(sqlSession.getConnection(), batch);
+        } catch (RuntimeException e){
+            if (!registered){
+                writer.rolledBack(batch);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void delete(String statement, Object parameter, Class<? extends Entity> entityClass) {
+        if (PendingHistory.isHistoric(entityClass)){
+            bulkDeletes.add(HistoryStatement.record(sqlSession.getConfiguration(), HistoryStatement.Type.DELETE,
+                    dbSqlSessionFactory.mapStatement(statement), parameter));
+            return;
+        }
+        super.delete(statement, parameter, entityClass);
+    }
+
+    @Override
+    protected void flushInserts() {
+        //pas de clés étrangères entre les tables d'historique : l'ordre des classes est indifférent
+        Iterator<Map.Entry<Class<? extends Entity>, Map<String, Entity>>> iterator = insertedObjects.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<Class<? extends Entity>, Map<String, Entity>> entry = iterator.next();
+            if (PendingHistory.isHistoric(entry.getKey())){
+                for (Entity entity : entry.getValue().values()){
+                    record(HistoryStatement.Type.INSERT, dbSqlSessionFactory.getInsertStatement(entity), entity);
+                    written.add(entity);
+                }
+                iterator.remove();
+            }
+        }
+        super.flushInserts();
+    }
+
+    @Override
+    protected void flushUpdates() {
+        Iterator<Entity> iterator = updatedObjects.iterator();
+        while (iterator.hasNext()){
+            Entity entity = iterator.next();
+            if (PendingHistory.isHistoric(entity.getClass())){
+                record(HistoryStatement.Type.UPDATE, dbSqlSessionFactory.getUpdateStatement(entity), entity);
+                if (entity instanceof HasRevision){
+                    ((HasRevision) entity).setRevision(((HasRevision) entity).getRevisionNext());
+                }
+                written.add(entity);
+                iterator.remove();
+            }
+        }
+        super.flushUpdates();
+    }
+
+    @Override
+    protected void flushDeletes() {
+        Iterator<Map.Entry<Class<? extends Entity>, Map<String, Entity>>> iterator = deletedObjects.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<Class<? extends Entity>, Map<String, Entity>> entry = iterator.next();
+            if (PendingHistory.isHistoric(entry.getKey())){
+                for (Entity entity : entry.getValue().values()){
+                    record(HistoryStatement.Type.DELETE, dbSqlSessionFactory.getDeleteStatement(entity.getClass()), entity);
+                    deleted.add(entity);
+                }
+                iterator.remove();
+            }
+        }
+        statements.addAll(bulkDeletes);
+        bulkDeletes.clear();
+        super.flushDeletes();
+    }
+
+    private void record(HistoryStatement.Type type, String statement, Entity entity){
+        statements.add(HistoryStatement.record(sqlSession.getConfiguration(), type, dbSqlSessionFactory.mapStatement(statement), entity));
+    }
+
+    // lectures : état en attente //////////////////////////////////////////////
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Entity> T selectById(Class<T> entityClass, String id, boolean useCache) {
+        if (PendingHistory.isHistoric(entityClass)){
+            if (useCache){
+                T cached = entityCache.findInCache(entityClass, id);
+                if (cached != null){
+                    return cached;
+                }
+            }
+            PendingHistory.Entry entry = pendingHistory.get(entityClass, id);
+            if (entry != null){
+                if (entry.isDeleted()){
+                    return null;
+                }
+                T entity = (T) entry.newCopy();
+                entityCache.put(entity, true);
+                return entity;
+            }
+        }
+        return super.selectById(entityClass, id, useCache);
+    }
+
+    @Override
+    public Object selectOne(String statement, Object parameter) {
+        Object result = super.selectOne(statement, parameter);
+        if (result == null && SELECT_HISTORIC_VARIABLE_BY_VARIABLE_ID.equals(statement)){
+            //l'id de la variable historique est celui de la variable
+            PendingHistory.Entry entry = pendingHistory.get(HistoricVariableInstanceEntityImpl.class, (String) parameter);
+            if (entry != null && !entry.isDeleted()){
+                result = super.cacheLoadOrStore(entry.newCopy());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public List selectListWithRawParameter(String statement, Object parameter, int firstResult, int maxResults, boolean useCache) {
+        if (!flushedBeforeDelete && SELECT_CASCADES.contains(statement)){
+            writer.flushBeforeDelete();
+            flushedBeforeDelete = true;
+        }
+        List result = super.selectListWithRawParameter(statement, parameter, firstResult, maxResults, useCache);
+        if (!SELECT_UNFINISHED_ACTIVITIES.equals(statement) || !(parameter instanceof ListQueryParameterObject)){
+            return result;
+        }
+        Map<String, Object> params = (Map<String, Object>) ((ListQueryParameterObject) parameter).getParameter();
+        List merged = new ArrayList();
+        Set<String> ids = new HashSet<>();
+        for (Object loaded : result){
+            //terminée par une écriture en attente
+            if (((HistoricActivityInstanceEntity) loaded).getEndTime() == null){
+                merged.add(loaded);
+                ids.add(((Entity) loaded).getId());
+            }
+        }
+        for (Entity pending : pendingHistory.find(HistoricActivityInstanceEntity.class, entity -> isUnfinished((HistoricActivityInstanceEntity) entity, params))){
+            if (!ids.contains(pending.getId())){
+                HistoricActivityInstanceEntity activity = (HistoricActivityInstanceEntity) super.cacheLoadOrStore(pending);
+                if (activity.getEndTime() == null){
+                    merged.add(activity);
+                }
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected List cacheLoadOrStore(List<Object> loadedObjects) {
+        List result = super.cacheLoadOrStore(loadedObjects);
+        if (result != loadedObjects){
+            //entités supprimées par une écriture en attente
+            result.removeIf(Objects::isNull);
+        }
+        return result;
+    }
+
+    @Override
+    protected Entity cacheLoadOrStore(Entity entity) {
+        Entity cached = entityCache.findInCache(entity.getClass(), entity.getId());
+        if (cached != null){
+            return cached;
+        }
+        if (PendingHistory.isHistoric(entity.getClass())){
+            PendingHistory.Entry entry = pendingHistory.get(entity.getClass(), entity.getId());
+            if (entry != null){
+                if (entry.isDeleted()){
+                    return null;
+                }
+                entity = entry.newCopy();
+            }
+        }
+        entityCache.put(entity, true);
+        return entity;
+    }
+
+    private boolean isUnfinished(HistoricActivityInstanceEntity activity, Map<String, Object> params){
+        if (activity.getEndTime() != null){
+            return false;
+        }
+        if (params.get("executionId") != null){
+            return Objects.equals(params.get("executionId"), activity.getExecutionId())
+                    && Objects.equals(params.get("activityId"), activity.getActivityId());
+        }
+        return Objects.equals(params.get("processInstanceId"), activity.getProcessInstanceId());
+    }
+}
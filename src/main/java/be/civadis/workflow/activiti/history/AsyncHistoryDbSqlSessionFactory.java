@@ -0,0 +1,39 @@
+package be.civadis.workflow.activiti.history;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.impl.db.DbSqlSession;
+import org.activiti.engine.impl.db.DbSqlSessionFactory;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.interceptor.Session;
+
+import java.sql.SQLException;
+
+/**
+ * Factory des sessions du moteur en mode historique asynchrone : ouvre des {@link AsyncHistoryDbSqlSession}
+ * Le journal est rejoué à l'ouverture de la première session, avant toute lecture de l'historique par le moteur
+ */
+public class AsyncHistoryDbSqlSessionFactory extends DbSqlSessionFactory {
+
+    private final AsyncHistoryWriter writer;
+
+    public AsyncHistoryDbSqlSessionFactory(AsyncHistoryWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public Session openSession(CommandContext commandContext) {
+        writer.start();
+        DbSqlSession dbSqlSession = new AsyncHistoryDbSqlSession(this, commandContext, writer);
+        try {
+            if (getDatabaseSchema() != null && getDatabaseSchema().length() > 0){
+                dbSqlSession.getSqlSession().getConnection().setSchema(getDatabaseSchema());
+            }
+            if (getDatabaseCatalog() != null && getDatabaseCatalog().length() > 0){
+                dbSqlSession.getSqlSession().getConnection().setCatalog(getDatabaseCatalog());
+            }
+        } catch (SQLException e){
+            throw new ActivitiException("Could not set database schema or catalog on connection", e);
+        }
+        return dbSqlSession;
+    }
+}
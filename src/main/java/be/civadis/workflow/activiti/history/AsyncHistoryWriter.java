@@ -0,0 +1,644 @@
+package be.civadis.workflow.activiti.history;
+
+import be.civadis.workflow.activiti.resource.ResourceContentStore;
+import org.activiti.engine.ActivitiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ecriture asynchrone de l'historique (tables ACT_HI_*), mode optionnel
+ * Les écritures d'historique d'une transaction du moteur sont figées au flush de la session (cf {@link AsyncHistoryDbSqlSession})
+ * et journalisées dans la même transaction (une ligne de WF_HISTORY_JOURNAL), puis confiées après le commit à un buffer borné.
+ * Un thread les applique par lots JDBC (un PreparedStatement par requête SQL), les lignes du journal appliquées sont supprimées
+ * dans la même transaction que les écritures
+ *
+ * Les batchs sont appliqués dans l'ordre de leur flush, un batch n'est appliqué que lorsque les batchs qui le précèdent sont validés ou annulés
+ * Un batch qui ne peut être appliqué bloque les suivants : il est réessayé seul, à intervalle croissant (MAX_BACKOFF_MILLIS au plus)
+ * Buffer plein : le batch n'est gardé que dans le journal, il est relu depuis la table à son tour
+ * Au démarrage (avant la première commande du moteur), le journal restant est rejoué : rien n'est perdu en cas d'arrêt brutal
+ * En attendant leur application, les entités écrites sont relues par le moteur depuis {@link PendingHistory} ; les requêtes de HistoryService
+ * lisent la base et sont à jour après {@link #flush()}
+ *
+ * Un seul noeud par base : le journal et l'état en attente sont propres à l'instance. Non disponible en mode schéma par tenant
+ *
+ * Config :
+ *  workflow.async-history.enabled (false)
+ *  workflow.async-history.buffer-capacity (1000) : batchs (transactions) en attente d'application en mémoire
+ *  workflow.async-history.batch-size (500) : requêtes par lot JDBC, et par transaction d'application
+ *  workflow.async-history.flush-interval-ms (200) : délai entre deux applications
+ */
+@Component
+public class AsyncHistoryWriter implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncHistoryWriter.class);
+
+    public static final String TABLE = "WF_HISTORY_JOURNAL";
+
+    //batch non validé ni annulé après ce délai : sa transaction est considérée terminée (le journal fait foi)
+    private static final long IN_FLIGHT_TIMEOUT_MILLIS = 600000L;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_BACKOFF_MILLIS = 60000L;
+
+    private volatile DataSource dataSource;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+
+    private final PendingHistory pendingHistory = new PendingHistory();
+    private final BlockingQueue<HistoryBatch> buffer;
+    //batchs validés gardés seulement dans le journal (buffer plein, démarrage)
+    private final ConcurrentSkipListSet<Long> journalOnly = new ConcurrentSkipListSet<>();
+
+    //id des batchs journalisés dont la transaction n'est pas terminée, avec leur date de création
+    private final NavigableMap<Long, Long> inFlight = new TreeMap<>();
+    private long sequence;
+
+    //batchs prêts, appliqués par ordre d'id (accès sous verrou de drain)
+    private final NavigableMap<Long, HistoryBatch> ready = new TreeMap<>();
+    private List<HistoryBatch> retiring = new ArrayList<>();
+    private volatile long appliedUpTo;
+    private int attempts;
+    //batch en échec, réessayé seul, et date de la prochaine tentative du thread d'écriture
+    private volatile long blockedBatch;
+    private long backoffMillis;
+    private long retryAt;
+
+    private volatile boolean started;
+    private volatile boolean running;
+    private Thread thread;
+
+    private final AtomicLong journaled = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong jdbcBatches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong missedUpdates = new AtomicLong();
+    private final AtomicLong applyMillis = new AtomicLong();
+    private final AtomicLong applies = new AtomicLong();
+
+    public AsyncHistoryWriter(@Value("${workflow.async-history.enabled:false}") boolean enabled,
+                              @Value("${workflow.async-history.buffer-capacity:1000}") int bufferCapacity,
+                              @Value("${workflow.async-history.batch-size:500}") int batchSize,
+                              @Value("${workflow.async-history.flush-interval-ms:200}") long flushIntervalMillis) {
+        this.enabled = enabled;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, bufferCapacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public PendingHistory getPendingHistory() {
+        return pendingHistory;
+    }
+
+    /**
+     * Datasource du moteur (et non le datasource @Primary de l'application), fourni par WorkflowEngineConfigurer à la configuration du moteur :
+     * l'historique est écrit dans la base du moteur, sur des connexions hors de ses transactions
+     * @param dataSource
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Crée le journal s'il n'existe pas, rejoue son contenu puis démarre le thread d'écriture
+     * Appelé à l'ouverture de chaque session du moteur, seul le premier appel est effectif
+     */
+    public void start(){
+        if (started){
+            return;
+        }
+        synchronized (this){
+            if (started){
+                return;
+            }
+            ensureTable();
+            List<Long> ids = new ArrayList<>();
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("select ID_ from " + TABLE + " order by ID_")){
+                while (rs.next()){
+                    ids.add(rs.getLong(1));
+                }
+            } catch (SQLException e){
+                throw new ActivitiException("Unable to read table " + TABLE, e);
+            }
+            synchronized (inFlight){
+                sequence = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+            }
+            appliedUpTo = sequence;
+            journalOnly.addAll(ids);
+            if (!ids.isEmpty()){
+                log.info("Replaying {} history batches from {}", ids.size(), TABLE);
+                replayed.addAndGet(ids.size());
+                drain();
+            }
+            running = true;
+            thread = new Thread(this::work, "async-history-writer");
+            thread.setDaemon(true);
+            thread.start();
+            started = true;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!started){
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join(30000);
+        drain();
+        int remaining = buffer.size() + journalOnly.size() + ready.size();
+        if (remaining > 0){
+            log.warn("{} history batches not applied at shutdown, they will be replayed from {} at next startup", remaining, TABLE);
+        }
+    }
+
+    /**
+     * Applique tout l'historique des transactions validées, les requêtes de HistoryService voient ensuite leurs écritures
+     */
+    public void flush(){
+        drain();
+    }
+
+    /**
+     * Applique l'historique des transactions validées avant une suppression d'historique en cascade (cf AsyncHistoryDbSqlSession) :
+     * les lignes à supprimer sont lues en base, aucune ligne en attente ne doit y manquer
+     * @throws ActivitiException si un batch validé ne peut être appliqué, la suppression laisserait des lignes orphelines
+     */
+    void flushBeforeDelete(){
+        if (!drain()){
+            throw new ActivitiException("History batches can not be applied (blocked batch " + blockedBatch + "), historic data can not be deleted");
+        }
+    }
+
+    /**
+     * Réserve l'id d'un batch, à journaliser dans la transaction courante
+     * @return
+     */
+    long begin(){
+        synchronized (inFlight){
+            long id = ++sequence;
+            inFlight.put(id, System.currentTimeMillis());
+            return id;
+        }
+    }
+
+    /**
+     * Journalise un batch dans la transaction de la connexion
+     * @param connection connexion de la session du moteur
+     * @param batch
+     */
+    void journal(Connection connection, HistoryBatch batch){
+        try (PreparedStatement statement = connection.prepareStatement("insert into " + TABLE + " (ID_, CREATED_, OPS_) values (?, ?, ?)")){
+            statement.setLong(1, batch.getId());
+            statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            statement.setBytes(3, serialize(batch.getStatements()));
+            statement.executeUpdate();
+            journaled.incrementAndGet();
+        } catch (SQLException e){
+            throw new ActivitiException("Unable to journal history batch " + batch.getId(), e);
+        }
+    }
+
+    /**
+     * Transaction validée : le batch est confié au buffer, ou laissé au journal si le buffer est plein
+     * @param batch
+     */
+    void committed(HistoryBatch batch){
+        //le batch doit être visible (buffer ou journal) avant de ne plus être en cours, cf limit()
+        if (!buffer.offer(batch)){
+            journalOnly.add(batch.getId());
+            overflowed.incrementAndGet();
+        }
+        finish(batch.getId());
+    }
+
+    /**
+     * Transaction annulée : l'état publié par le batch est retiré
+     * @param batch
+     */
+    void rolledBack(HistoryBatch batch){
+        finish(batch.getId());
+        pendingHistory.discard(batch, appliedUpTo);
+    }
+
+    private void finish(long id){
+        synchronized (inFlight){
+            inFlight.remove(id);
+        }
+    }
+
+    /**
+     * @return id à partir duquel les batchs ne peuvent être appliqués : un batch qui précède est en cours
+     */
+    private long limit(){
+        synchronized (inFlight){
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Long, Long>> iterator = inFlight.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<Long, Long> entry = iterator.next();
+                if (now - entry.getValue() < IN_FLIGHT_TIMEOUT_MILLIS){
+                    return entry.getKey();
+                }
+                //transaction sans issue connue : le batch est lu dans le journal s'il a été validé
+                log.warn("History batch {} neither committed nor rolled back, reading it from {}", entry.getKey(), TABLE);
+                journalOnly.add(entry.getKey());
+                iterator.remove();
+            }
+            return sequence + 1;
+        }
+    }
+
+    private void work(){
+        while (running){
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                if (System.currentTimeMillis() >= retryAt){
+                    drain();
+                }
+            } catch (RuntimeException e){
+                log.error("Async history writer failure", e);
+            }
+        }
+    }
+
+    /**
+     * Applique, par ordre d'id, les batchs validés qui ne sont précédés d'aucun batch en cours
+     * @return false si un lot n'a pu être appliqué
+     */
+    private synchronized boolean drain(){
+        //état en attente des batchs appliqués à la passe précédente : les lectures en cours ont vu la base ou cet état
+        for (HistoryBatch batch : retiring){
+            pendingHistory.retire(batch);
+        }
+        retiring = new ArrayList<>();
+
+        while (true){
+            long limit = limit();
+            List<HistoryBatch> buffered = new ArrayList<>();
+            buffer.drainTo(buffered);
+            for (HistoryBatch batch : buffered){
+                ready.put(batch.getId(), batch);
+            }
+            loadJournal(limit);
+
+            List<HistoryBatch> group = new ArrayList<>();
+            int count = 0;
+            for (HistoryBatch batch : ready.headMap(limit, false).values()){
+                if (!group.isEmpty() && (count + batch.getStatements().size() > batchSize || group.get(0).getId() == blockedBatch)){
+                    break;
+                }
+                group.add(batch);
+                count += batch.getStatements().size();
+            }
+            if (group.isEmpty()){
+                return true;
+            }
+            if (!apply(group)){
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Lit dans le journal les batchs qui n'y sont gardés que là
+     */
+    private void loadJournal(long limit){
+        List<Long> ids = new ArrayList<>(journalOnly.headSet(limit));
+        if (ids.isEmpty()){
+            return;
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("select OPS_ from " + TABLE + " where ID_ = ?")){
+            for (Long id : ids){
+                statement.setLong(1, id);
+                try (ResultSet rs = statement.executeQuery()){
+                    //absent : batch annulé, ou déjà appliqué
+                    if (rs.next()){
+                        try {
+                            ready.put(id, new HistoryBatch(id, deserialize(rs.getBytes(1)), null));
+                        } catch (ActivitiException e){
+                            failures.incrementAndGet();
+                            log.error("History batch {} can not be read, kept in {}", id, TABLE, e);
+                        }
+                    }
+                }
+                journalOnly.remove(id);
+            }
+        } catch (SQLException e){
+            failures.incrementAndGet();
+            log.error("Unable to read history batches from {}", TABLE, e);
+        }
+    }
+
+    /**
+     * Applique un groupe de batchs dans une transaction
+     * Après plusieurs échecs, les batchs sont appliqués un à un jusqu'au premier en erreur : il reste en tête, les batchs suivants
+     * attendent son application (l'historique reste dans l'ordre), il est réessayé seul après un délai croissant
+     * @return false si le groupe est à réessayer plus tard
+     */
+    private boolean apply(List<HistoryBatch> group){
+        long start = System.currentTimeMillis();
+        try {
+            write(group);
+            attempts = 0;
+        } catch (SQLException | RuntimeException e){
+            failures.incrementAndGet();
+            if (group.get(0).getId() == blockedBatch){
+                //batch déjà en échec, réessayé seul
+                blocked(group.get(0), e);
+                return false;
+            }
+            if (++attempts < MAX_ATTEMPTS){
+                log.warn("Unable to apply {} history batches, attempt {}", group.size(), attempts, e);
+                return false;
+            }
+            attempts = 0;
+            List<HistoryBatch> written = new ArrayList<>();
+            for (HistoryBatch batch : group){
+                try {
+                    write(Collections.singletonList(batch));
+                    written.add(batch);
+                } catch (SQLException | RuntimeException batchException){
+                    failures.incrementAndGet();
+                    blocked(batch, batchException);
+                    break;
+                }
+            }
+            applied(written, start);
+            return false;
+        }
+        applied(group, start);
+        if (blockedBatch != 0){
+            log.info("History batch {} applied, async history resumed", blockedBatch);
+            blockedBatch = 0;
+            backoffMillis = 0;
+            retryAt = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Batch en échec : il bloque les suivants jusqu'à son application
+     */
+    private void blocked(HistoryBatch batch, Exception e){
+        blockedBatch = batch.getId();
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(flushIntervalMillis, backoffMillis * 2));
+        retryAt = System.currentTimeMillis() + backoffMillis;
+        log.error("History batch {} can not be applied, {} following batches wait for it, next attempt in {} ms",
+                batch.getId(), ready.size() - 1, backoffMillis, e);
+    }
+
+    private void applied(List<HistoryBatch> batches, long start){
+        if (batches.isEmpty()){
+            return;
+        }
+        for (HistoryBatch batch : batches){
+            ready.remove(batch.getId());
+        }
+        retiring.addAll(batches);
+        appliedUpTo = batches.get(batches.size() - 1).getId();
+        applyMillis.addAndGet(System.currentTimeMillis() - start);
+        applies.incrementAndGet();
+    }
+
+    /**
+     * Supprime les lignes du journal puis exécute les écritures des batchs dont la ligne existait encore (un batch n'est appliqué qu'une fois)
+     * Ecritures regroupées par requête : insertions, puis mises à jour, puis suppressions, dans l'ordre des batchs pour une même requête
+     * Les insertions et mises à jour ne dépendent pas de l'ordre des batchs (ids uniques, pas de clés étrangères entre tables d'historique),
+     * contrairement aux suppressions : le regroupement s'arrête après chaque batch qui supprime, les batchs suivants sont écrits après ses suppressions
+     */
+    private void write(List<HistoryBatch> group) throws SQLException {
+        try (Connection connection = dataSource.getConnection()){
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                List<HistoryBatch> toApply = new ArrayList<>();
+                try (PreparedStatement delete = connection.prepareStatement("delete from " + TABLE + " where ID_ = ?")){
+                    for (HistoryBatch batch : group){
+                        delete.setLong(1, batch.getId());
+                        delete.addBatch();
+                    }
+                    int[] counts = delete.executeBatch();
+                    for (int i = 0; i < counts.length; i++){
+                        if (counts[i] != 0){
+                            toApply.add(group.get(i));
+                        }
+                    }
+                }
+
+                int count = 0;
+                List<HistoryBatch> segment = new ArrayList<>();
+                for (int i = 0; i < toApply.size(); i++){
+                    HistoryBatch batch = toApply.get(i);
+                    segment.add(batch);
+                    if (i == toApply.size() - 1 || hasDeletes(batch)){
+                        count += writeSegment(connection, segment);
+                        segment = new ArrayList<>();
+                    }
+                }
+                connection.commit();
+                applied.addAndGet(toApply.size());
+                statements.addAndGet(count);
+            } catch (SQLException | RuntimeException e){
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Exécute les écritures de batchs consécutifs, regroupées par type puis par requête
+     * @return nombre de requêtes exécutées
+     */
+    private int writeSegment(Connection connection, List<HistoryBatch> segment) throws SQLException {
+        int count = 0;
+        for (HistoryStatement.Type type : HistoryStatement.Type.values()){
+            Map<String, List<HistoryStatement>> bySql = new LinkedHashMap<>();
+            for (HistoryBatch batch : segment){
+                for (HistoryStatement statement : batch.getStatements()){
+                    if (statement.getType() == type){
+                        bySql.computeIfAbsent(statement.getSql(), sql -> new ArrayList<>()).add(statement);
+                    }
+                }
+            }
+            for (Map.Entry<String, List<HistoryStatement>> entry : bySql.entrySet()){
+                execute(connection, type, entry.getKey(), entry.getValue());
+                count += entry.getValue().size();
+            }
+        }
+        return count;
+    }
+
+    private boolean hasDeletes(HistoryBatch batch){
+        for (HistoryStatement statement : batch.getStatements()){
+            if (statement.getType() == HistoryStatement.Type.DELETE){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void execute(Connection connection, HistoryStatement.Type type, String sql, List<HistoryStatement> toExecute) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(sql)){
+            int pending = 0;
+            for (HistoryStatement statement : toExecute){
+                statement.bind(preparedStatement);
+                preparedStatement.addBatch();
+                if (++pending == batchSize){
+                    checkUpdated(type, sql, preparedStatement.executeBatch());
+                    pending = 0;
+                }
+            }
+            if (pending > 0){
+                checkUpdated(type, sql, preparedStatement.executeBatch());
+            }
+        }
+    }
+
+    /**
+     * Une mise à jour sans effet en mode synchrone aurait provoqué une ActivitiOptimisticLockingException
+     */
+    private void checkUpdated(HistoryStatement.Type type, String sql, int[] counts){
+        jdbcBatches.incrementAndGet();
+        if (type != HistoryStatement.Type.UPDATE){
+            return;
+        }
+        for (int count : counts){
+            if (count == 0){
+                missedUpdates.incrementAndGet();
+                log.warn("History update without effect : {}", sql);
+            }
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.history.async.enabled", enabled ? 1 : 0));
+        metrics.add(new Metric<>("workflow.history.async.buffered", buffer.size()));
+        metrics.add(new Metric<>("workflow.history.async.buffer-remaining", buffer.remainingCapacity()));
+        metrics.add(new Metric<>("workflow.history.async.journal-only", journalOnly.size()));
+        metrics.add(new Metric<>("workflow.history.async.pending-entities", pendingHistory.size()));
+        metrics.add(new Metric<>("workflow.history.async.journaled", journaled.get()));
+        metrics.add(new Metric<>("workflow.history.async.overflowed", overflowed.get()));
+        metrics.add(new Metric<>("workflow.history.async.replayed", replayed.get()));
+        metrics.add(new Metric<>("workflow.history.async.applied", applied.get()));
+        metrics.add(new Metric<>("workflow.history.async.statements", statements.get()));
+        metrics.add(new Metric<>("workflow.history.async.jdbc-batches", jdbcBatches.get()));
+        metrics.add(new Metric<>("workflow.history.async.failures", failures.get()));
+        metrics.add(new Metric<>("workflow.history.async.missed-updates", missedUpdates.get()));
+        metrics.add(new Metric<>("workflow.history.async.blocked-batch", blockedBatch));
+        long count = applies.get();
+        metrics.add(new Metric<>("workflow.history.async.apply-time-ms", count > 0 ? applyMillis.get() / count : 0));
+        return metrics;
+    }
+
+    public long getApplied() {
+        return applied.get();
+    }
+
+    public long getMissedUpdates() {
+        return missedUpdates.get();
+    }
+
+    /**
+     * @return id du batch en échec qui bloque l'application de l'historique, 0 si aucun
+     */
+    public long getBlockedBatch() {
+        return blockedBatch;
+    }
+
+    /**
+     * Crée la table du journal si elle n'existe pas, type binaire selon la base
+     */
+    private void ensureTable(){
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()){
+            DatabaseMetaData metaData = connection.getMetaData();
+            if (!tableExists(metaData, TABLE) && !tableExists(metaData, TABLE.toLowerCase())){
+                statement.execute("create table " + TABLE + " (ID_ bigint not null primary key, CREATED_ timestamp, OPS_ "
+                        + ResourceContentStore.binaryType(metaData.getDatabaseProductName()) + ")");
+                if (!connection.getAutoCommit()){
+                    connection.commit();
+                }
+                log.info("Table {} created", TABLE);
+            }
+        } catch (SQLException e){
+            throw new ActivitiException("Unable to initialize table " + TABLE, e);
+        }
+    }
+
+    private boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+        try (ResultSet rs = metaData.getTables(null, null, table, new String[]{"TABLE"})){
+            return rs.next();
+        }
+    }
+
+    private byte[] serialize(List<HistoryStatement> statements){
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(new ArrayList<>(statements));
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e){
+            throw new ActivitiException("Unable to serialize history batch", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<HistoryStatement> deserialize(byte[] bytes){
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+            return (List<HistoryStatement>) in.readObject();
+        } catch (IOException | ClassNotFoundException e){
+            throw new ActivitiException("Unable to read history batch", e);
+        }
+    }
+}
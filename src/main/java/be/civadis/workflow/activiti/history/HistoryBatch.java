@@ -0,0 +1,37 @@
+package be.civadis.workflow.activiti.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ecritures d'historique d'un flush de session, journalisées dans la transaction du moteur (une ligne de WF_HISTORY_JOURNAL)
+ * L'id, attribué au flush, donne l'ordre d'application des batchs par {@link AsyncHistoryWriter}
+ */
+public class HistoryBatch {
+
+    private final long id;
+    private final List<HistoryStatement> statements;
+    private final List<PendingHistory.Key> keys;
+
+    public HistoryBatch(long id, List<HistoryStatement> statements, List<PendingHistory.Key> keys) {
+        this.id = id;
+        this.statements = new ArrayList<>(statements);
+        this.keys = keys != null ? new ArrayList<>(keys) : Collections.emptyList();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public List<HistoryStatement> getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return entités publiées dans {@link PendingHistory} par ce batch, vide pour un batch rejoué depuis le journal
+     */
+    public List<PendingHistory.Key> getKeys() {
+        return keys;
+    }
+}
@@ -0,0 +1,116 @@
+package be.civadis.workflow.activiti.history;
+
+import org.activiti.engine.ActivitiException;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.Configuration;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ecriture d'historique différée : SQL du statement mybatis et valeurs de ses paramètres JDBC, figés au flush de la session
+ * Les paramètres sont enregistrés tels que les type handlers mybatis les passent au PreparedStatement (setString, setTimestamp, setNull...),
+ * puis rejoués tels quels par {@link AsyncHistoryWriter}
+ */
+public class HistoryStatement implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { INSERT, UPDATE, DELETE }
+
+    private final Type type;
+    private final String sql;
+    private final List<ParameterCall> parameters;
+
+    private HistoryStatement(Type type, String sql, List<ParameterCall> parameters) {
+        this.type = type;
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Fige un statement mybatis avec son paramètre (entité ou paramètres d'une suppression en masse)
+     * @param configuration configuration mybatis du moteur
+     * @param type
+     * @param statement nom du statement, déjà adapté à la base (cf DbSqlSessionFactory.mapStatement)
+     * @param parameter
+     * @return
+     */
+    public static HistoryStatement record(Configuration configuration, Type type, String statement, Object parameter){
+        MappedStatement mappedStatement = configuration.getMappedStatement(statement);
+        BoundSql boundSql = mappedStatement.getBoundSql(parameter);
+        List<ParameterCall> calls = new ArrayList<>();
+        PreparedStatement recorder = (PreparedStatement) Proxy.newProxyInstance(HistoryStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("set") && args != null && args.length > 1){
+                        calls.add(new ParameterCall(method.getName(), method.getParameterTypes(), args));
+                        return null;
+                    }
+                    throw new UnsupportedOperationException("Statement " + statement + " can not be recorded : " + method.getName());
+                });
+        try {
+            configuration.newParameterHandler(mappedStatement, parameter, boundSql).setParameters(recorder);
+        } catch (SQLException e){
+            throw new ActivitiException("Unable to record statement " + statement, e);
+        }
+        return new HistoryStatement(type, boundSql.getSql(), calls);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Applique les paramètres enregistrés au PreparedStatement
+     * @param preparedStatement
+     * @throws SQLException
+     */
+    public void bind(PreparedStatement preparedStatement) throws SQLException {
+        for (ParameterCall call : parameters){
+            call.apply(preparedStatement);
+        }
+    }
+
+    /**
+     * Appel d'un setter du PreparedStatement
+     */
+    private static class ParameterCall implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String method;
+        private final Class<?>[] types;
+        private final Object[] args;
+
+        ParameterCall(String method, Class<?>[] types, Object[] args) {
+            this.method = method;
+            this.types = types;
+            this.args = args;
+        }
+
+        void apply(PreparedStatement preparedStatement) throws SQLException {
+            try {
+                Method setter = PreparedStatement.class.getMethod(method, types);
+                setter.invoke(preparedStatement, args);
+            } catch (InvocationTargetException e){
+                if (e.getCause() instanceof SQLException){
+                    throw (SQLException) e.getCause();
+                }
+                throw new ActivitiException("Unable to bind parameter with " + method, e.getCause());
+            } catch (ReflectiveOperationException e){
+                throw new ActivitiException("Unable to bind parameter with " + method, e);
+            }
+        }
+    }
+}
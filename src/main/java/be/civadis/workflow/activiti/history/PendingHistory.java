@@ -0,0 +1,216 @@
+package be.civadis.workflow.activiti.history;
+
+import org.activiti.engine.impl.persistence.entity.ByteArrayRef;
+import org.activiti.engine.impl.persistence.entity.Entity;
+import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricDetailEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricIdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricProcessInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricTaskInstanceEntity;
+import org.activiti.engine.impl.persistence.entity.HistoricVariableInstanceEntity;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Etat des entités d'historique écrites mais pas encore appliquées par {@link AsyncHistoryWriter}
+ * Consulté par {@link AsyncHistoryDbSqlSession} pour que le moteur relise ses propres écritures (fin d'une activité, d'une tâche,
+ * mise à jour d'une variable...) avant leur application dans les tables ACT_HI_*
+ *
+ * Une entité est publiée au flush de la session, avant le commit : une transaction qui la relit écrit donc après elle (id de batch supérieur)
+ * En cas de rollback, l'état publié précédemment est restauré s'il n'est pas encore appliqué
+ * Les entités sont des copies, chaque lecture reçoit sa propre copie
+ */
+public class PendingHistory {
+
+    private static final List<Class<?>> HISTORIC_CLASSES = Arrays.asList(
+            HistoricProcessInstanceEntity.class, HistoricActivityInstanceEntity.class, HistoricTaskInstanceEntity.class,
+            HistoricVariableInstanceEntity.class, HistoricDetailEntity.class, HistoricIdentityLinkEntity.class);
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Indique si les écritures de cette classe d'entité sont différées (tables ACT_HI_* hors commentaires et attachments)
+     * @param entityClass
+     * @return
+     */
+    public static boolean isHistoric(Class<?> entityClass){
+        for (Class<?> historicClass : HISTORIC_CLASSES){
+            if (historicClass.isAssignableFrom(entityClass)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Publie l'état d'une entité écrite par un batch
+     * @param batchId
+     * @param entity
+     * @param deleted true si l'entité est supprimée
+     * @return
+     */
+    public Key publish(long batchId, Entity entity, boolean deleted){
+        Key key = new Key(entity.getClass(), entity.getId());
+        Entity snapshot = deleted ? null : copy(entity);
+        entries.compute(key, (k, previous) -> new Entry(batchId, snapshot, previous));
+        return key;
+    }
+
+    /**
+     * Etat en attente d'une entité
+     * @param entityClass
+     * @param id
+     * @return null si aucune écriture de l'entité n'est en attente
+     */
+    public Entry get(Class<?> entityClass, String id){
+        return id != null ? entries.get(new Key(entityClass, id)) : null;
+    }
+
+    /**
+     * Copies des entités en attente d'une classe, non supprimées, qui vérifient le filtre
+     * @param entityClass
+     * @param filter
+     * @return
+     */
+    public List<Entity> find(Class<?> entityClass, Predicate<Entity> filter){
+        List<Entity> found = new ArrayList<>();
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()){
+            Entity snapshot = entry.getValue().snapshot;
+            if (entityClass.isAssignableFrom(entry.getKey().entityClass) && snapshot != null && filter.test(snapshot)){
+                found.add(entry.getValue().newCopy());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Batch appliqué : ses entités sont lues en base
+     * @param batch
+     */
+    public void retire(HistoryBatch batch){
+        for (Key key : batch.getKeys()){
+            entries.computeIfPresent(key, (k, entry) -> entry.batchId <= batch.getId() ? null : entry.trim(batch.getId()));
+        }
+    }
+
+    /**
+     * Batch annulé (rollback) : l'état précédent de ses entités est restauré s'il n'est pas encore appliqué
+     * @param batch
+     * @param appliedUpTo id du dernier batch appliqué
+     */
+    public void discard(HistoryBatch batch, long appliedUpTo){
+        for (Key key : batch.getKeys()){
+            entries.computeIfPresent(key, (k, entry) -> {
+                if (entry.batchId != batch.getId()){
+                    //état remplacé depuis par un autre batch
+                    return entry;
+                }
+                return entry.previous != null && entry.previous.batchId > appliedUpTo ? entry.previous : null;
+            });
+        }
+    }
+
+    public int size(){
+        return entries.size();
+    }
+
+    /**
+     * Copie d'une entité, marquée ni insérée ni modifiée, avec sa propre référence vers le contenu binaire (variables)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Entity> T copy(T entity){
+        T copy = (T) BeanUtils.instantiateClass(entity.getClass());
+        ReflectionUtils.shallowCopyFieldState(entity, copy);
+        copy.setInserted(false);
+        copy.setUpdated(false);
+        copy.setDeleted(false);
+        ReflectionUtils.doWithFields(copy.getClass(), field -> {
+            ReflectionUtils.makeAccessible(field);
+            ByteArrayRef byteArrayRef = (ByteArrayRef) field.get(copy);
+            if (byteArrayRef != null){
+                field.set(copy, byteArrayRef.getId() != null ? new ByteArrayRef(byteArrayRef.getId()) : new ByteArrayRef());
+            }
+        }, field -> field.getType() == ByteArrayRef.class);
+        return copy;
+    }
+
+    /**
+     * Entité d'historique : classe et id
+     */
+    public static final class Key {
+
+        private final Class<?> entityClass;
+        private final String id;
+
+        Key(Class<?> entityClass, String id) {
+            this.entityClass = entityClass;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o){
+                return true;
+            }
+            if (!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key) o;
+            return entityClass == key.entityClass && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entityClass, id);
+        }
+    }
+
+    /**
+     * Etat publié par un batch, avec l'état précédent pour le rollback
+     */
+    public static final class Entry {
+
+        private final long batchId;
+        private final Entity snapshot;
+        private final Entry previous;
+
+        Entry(long batchId, Entity snapshot, Entry previous) {
+            this.batchId = batchId;
+            this.snapshot = snapshot;
+            this.previous = previous;
+        }
+
+        public boolean isDeleted() {
+            return snapshot == null;
+        }
+
+        /**
+         * @return une copie de l'entité, propre à l'appelant
+         */
+        public Entity newCopy() {
+            return snapshot != null ? copy(snapshot) : null;
+        }
+
+        /**
+         * Oublie les états précédents appliqués
+         */
+        private Entry trim(long appliedBatchId){
+            if (previous == null){
+                return this;
+            }
+            if (previous.batchId <= appliedBatchId){
+                return new Entry(batchId, snapshot, null);
+            }
+            Entry trimmed = previous.trim(appliedBatchId);
+            return trimmed == previous ? this : new Entry(batchId, snapshot, trimmed);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package be.civadis.workflow.activiti.resource;
+
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.persistence.entity.ResourceEntity;
+import org.activiti.engine.impl.persistence.entity.data.impl.MybatisResourceDataManager;
+
+import java.util.List;
+
+/**
+ * Accès aux ressources de deployment (ACT_GE_BYTEARRAY) via le {@link ResourceContentStore}
+ * A l'insertion, seule une référence vers le contenu est stockée (si le store est activé),
+ * à la lecture, les références sont remplacées par le contenu (toujours, même si le store a été désactivé depuis)
+ * Les ressources ne sont jamais mises à jour par le moteur (état persistant constant), le contenu résolu n'est pas réécrit
+ */
+public class DeduplicatingResourceDataManager extends MybatisResourceDataManager {
+
+    private final ResourceContentStore store;
+
+    public DeduplicatingResourceDataManager(ProcessEngineConfigurationImpl processEngineConfiguration, ResourceContentStore store) {
+        super(processEngineConfiguration);
+        this.store = store;
+    }
+
+    @Override
+    public void insert(ResourceEntity entity) {
+        if (!store.isEnabled() || entity.getBytes() == null){
+            super.insert(entity);
+            return;
+        }
+
+        //la ressource d'origine garde son contenu : elle est encore utilisée par le parsing de la deployment en cours
+        ResourceEntity reference = create();
+        reference.setName(entity.getName());
+        reference.setDeploymentId(entity.getDeploymentId());
+        reference.setGenerated(entity.isGenerated());
+        reference.setBytes(store.store(entity.getBytes()));
+        super.insert(reference);
+
+        entity.setId(reference.getId());
+        entity.setInserted(true);
+    }
+
+    @Override
+    public ResourceEntity findById(String entityId) {
+        return resolve(super.findById(entityId));
+    }
+
+    @Override
+    public ResourceEntity findResourceByDeploymentIdAndResourceName(String deploymentId, String resourceName) {
+        return resolve(super.findResourceByDeploymentIdAndResourceName(deploymentId, resourceName));
+    }
+
+    @Override
+    public List<ResourceEntity> findResourcesByDeploymentId(String deploymentId) {
+        List<ResourceEntity> resources = super.findResourcesByDeploymentId(deploymentId);
+        for (ResourceEntity resource : resources){
+            resolve(resource);
+        }
+        return resources;
+    }
+
+    private ResourceEntity resolve(ResourceEntity resource){
+        if (resource != null && ResourceContentStore.isReference(resource.getBytes())){
+            resource.setBytes(store.load(resource.getBytes()));
+        }
+        return resource;
+    }
+
+}
@@ -0,0 +1,325 @@
+package be.civadis.workflow.activiti.resource;
+
+import be.civadis.workflow.activiti.ActivitiProcessImporter;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stockage dédupliqué du contenu des ressources de deployment (BPMN, diagrammes), clé = hash SHA-256 du contenu
+ * Les lignes de ACT_GE_BYTEARRAY des deployments ne contiennent alors qu'une référence (wf-content:sha256:...) vers
+ * la table WF_RESOURCE_CONTENT, un même processus déployé pour N tenants n'est stocké qu'une fois
+ * Les références sont résolues par {@link DeduplicatingResourceDataManager}, de façon transparente pour le moteur
+ *
+ * Le contenu est écrit dans sa propre transaction, avant la deployment : il est immuable et adressé par son hash,
+ * un contenu orphelin (deployment annulée ou supprimée) est supprimé par {@link #collapseDuplicates()}
+ *
+ * Config :
+ *  workflow.resource-store.enabled (false) : les nouvelles deployments référencent le contenu (la lecture des références est toujours active)
+ *  workflow.resource-store.migrate-on-startup (false) : remplace au démarrage le contenu des deployments existantes par des références
+ *  workflow.resource-store.cache-entries (200) : contenus gardés en mémoire
+ */
+@Component
+public class ResourceContentStore implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceContentStore.class);
+
+    public static final String TABLE = "WF_RESOURCE_CONTENT";
+
+    private static final String REFERENCE_PREFIX = "wf-content:";
+    private static final byte[] REFERENCE_PREFIX_BYTES = REFERENCE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private static final long ORPHAN_GRACE_MILLIS = 3600000L;
+
+    //datasource du moteur, cf setDataSource
+    private volatile JdbcTemplate jdbcTemplate;
+    private volatile TransactionTemplate storeTransaction;
+    private volatile boolean enabled;
+    private final boolean migrateOnStartup;
+    private volatile boolean tableReady;
+
+    private final Map<String, byte[]> contents;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    public ResourceContentStore(@Value("${workflow.resource-store.enabled:false}") boolean enabled,
+                                @Value("${workflow.resource-store.migrate-on-startup:false}") boolean migrateOnStartup,
+                                @Value("${workflow.resource-store.cache-entries:200}") final int cacheEntries) {
+        this.enabled = enabled;
+        this.migrateOnStartup = migrateOnStartup;
+        this.contents = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheEntries;
+            }
+        });
+    }
+
+    /**
+     * Datasource du moteur (et non le datasource @Primary de l'application), fourni par WorkflowEngineConfigurer à la configuration du moteur :
+     * le contenu est lu et écrit sur les connexions du moteur
+     * @param dataSource
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        //transaction propre sur le datasource du moteur : la transaction de la deployment est suspendue le temps de l'écriture
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.storeTransaction = transactionTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (migrateOnStartup){
+            collapseDuplicates();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Indique si les bytes sont une référence vers le store
+     */
+    public static boolean isReference(byte[] bytes){
+        if (bytes == null || bytes.length < REFERENCE_PREFIX_BYTES.length || bytes.length > 128){
+            return false;
+        }
+        for (int i = 0; i < REFERENCE_PREFIX_BYTES.length; i++){
+            if (bytes[i] != REFERENCE_PREFIX_BYTES[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enregistre le contenu s'il n'est pas encore connu
+     * @param content
+     * @return la référence à stocker à la place du contenu
+     */
+    public byte[] store(byte[] content){
+        String checksum = ActivitiProcessImporter.checksum(content);
+        ensureTable();
+        if (contents.containsKey(checksum) || exists(checksum)){
+            deduplicated.incrementAndGet();
+            savedBytes.addAndGet(content.length);
+        } else {
+            try {
+                //transaction indépendante (REQUIRES_NEW) : le contenu est visible et conservé quelle que soit l'issue de la deployment,
+                //et un doublon n'annule que cette transaction, pas celle de la deployment
+                storeTransaction.execute(status -> jdbcTemplate.update("insert into " + TABLE + " (HASH_, BYTES_, CREATED_) values (?, ?, ?)",
+                        checksum, content, new Timestamp(System.currentTimeMillis())));
+                stored.incrementAndGet();
+            } catch (DuplicateKeyException e){
+                //enregistré en parallèle (ex : import des tenants en parallèle)
+                deduplicated.incrementAndGet();
+                savedBytes.addAndGet(content.length);
+            }
+        }
+        contents.put(checksum, content);
+        return (REFERENCE_PREFIX + checksum).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Contenu correspondant à une référence
+     * @param reference
+     * @return
+     */
+    public byte[] load(byte[] reference){
+        String checksum = new String(reference, REFERENCE_PREFIX_BYTES.length, reference.length - REFERENCE_PREFIX_BYTES.length, StandardCharsets.US_ASCII);
+        byte[] content = contents.get(checksum);
+        if (content != null){
+            cacheHits.incrementAndGet();
+            return content;
+        }
+        loads.incrementAndGet();
+        List<byte[]> rows = jdbcTemplate.query("select BYTES_ from " + TABLE + " where HASH_ = ?", (rs, i) -> rs.getBytes(1), checksum);
+        if (rows.isEmpty()){
+            throw new ActivitiException("Resource content not found : " + checksum);
+        }
+        content = rows.get(0);
+        contents.put(checksum, content);
+        return content;
+    }
+
+    /**
+     * Migration : remplace le contenu des ressources de deployments existantes par des références,
+     * puis supprime les contenus qui ne sont plus référencés
+     * Chaque ressource est migrée dans sa propre transaction, la migration peut être relancée
+     * En mode schéma par tenant, la table est partagée par les schémas : les ressources de chaque tenant sont migrées
+     * et leurs références relevées avant la purge
+     * @return nombre de ressources migrées
+     */
+    public int collapseDuplicates(){
+        ensureTable();
+        long start = System.currentTimeMillis();
+
+        Set<String> referenced = new HashSet<>();
+        AtomicLong before = new AtomicLong();
+        int migrated = 0;
+        List<String> tenants = TenantUtils.isSchemaPerTenant() ? TenantUtils.getTenants()
+                : Collections.singletonList(TenantUtils.getCurrentTenant());
+        for (String tenantId : tenants){
+            migrated += TenantUtils.callAs(tenantId, () -> migrateResources(referenced, before));
+        }
+
+        //contenus orphelins, avec un délai de grâce pour les deployments en cours
+        int purged = 0;
+        Timestamp limit = new Timestamp(System.currentTimeMillis() - ORPHAN_GRACE_MILLIS);
+        for (String checksum : jdbcTemplate.queryForList("select HASH_ from " + TABLE + " where CREATED_ < ?", String.class, limit)){
+            if (!referenced.contains(checksum)){
+                purged += jdbcTemplate.update("delete from " + TABLE + " where HASH_ = ? and CREATED_ < ?", checksum, limit);
+                contents.remove(checksum);
+            }
+        }
+
+        Long after = jdbcTemplate.queryForObject("select count(*) from " + TABLE, Long.class);
+        log.info("Resource store migration done in {} ms : {} resources migrated ({} bytes), {} distinct contents, {} orphans purged",
+                System.currentTimeMillis() - start, migrated, before.get(), after, purged);
+        return migrated;
+    }
+
+    /**
+     * Migre les ressources de deployment du schéma courant
+     * @param referenced contenus référencés, complété
+     * @param before taille des contenus migrés, complétée
+     * @return nombre de ressources migrées
+     */
+    private int migrateResources(Set<String> referenced, AtomicLong before){
+        int migrated = 0;
+        List<String> ids = jdbcTemplate.queryForList("select ID_ from ACT_GE_BYTEARRAY where DEPLOYMENT_ID_ is not null", String.class);
+        for (String id : ids){
+            List<byte[]> rows = jdbcTemplate.query("select BYTES_ from ACT_GE_BYTEARRAY where ID_ = ?", (rs, i) -> rs.getBytes(1), id);
+            if (rows.isEmpty() || rows.get(0) == null){
+                continue;
+            }
+            byte[] bytes = rows.get(0);
+            if (!isReference(bytes)){
+                before.addAndGet(bytes.length);
+                bytes = store(bytes);
+                jdbcTemplate.update("update ACT_GE_BYTEARRAY set BYTES_ = ? where ID_ = ?", bytes, id);
+                migrated++;
+            }
+            referenced.add(new String(bytes, REFERENCE_PREFIX_BYTES.length, bytes.length - REFERENCE_PREFIX_BYTES.length, StandardCharsets.US_ASCII));
+        }
+        return migrated;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("workflow.resource.store.stored", stored.get()));
+        metrics.add(new Metric<>("workflow.resource.store.deduplicated", deduplicated.get()));
+        metrics.add(new Metric<>("workflow.resource.store.saved-bytes", savedBytes.get()));
+        metrics.add(new Metric<>("workflow.resource.store.loads", loads.get()));
+        metrics.add(new Metric<>("workflow.resource.store.cache-hits", cacheHits.get()));
+        return metrics;
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    private boolean exists(String checksum){
+        Long count = jdbcTemplate.queryForObject("select count(*) from " + TABLE + " where HASH_ = ?", Long.class, checksum);
+        return count != null && count > 0;
+    }
+
+    /**
+     * Crée la table du store si elle n'existe pas, type binaire selon la base
+     */
+    private void ensureTable(){
+        if (tableReady){
+            return;
+        }
+        synchronized (this){
+            if (tableReady){
+                return;
+            }
+            //table partagée par les tenants, créée dans le schéma par défaut en mode schéma par tenant (cf TenantSchemaDataSource)
+            TenantUtils.runAs(TenantUtils.DEFAULT_TENANT, () -> {
+                try (Connection connection = jdbcTemplate.getDataSource().getConnection();
+                     Statement statement = connection.createStatement()){
+                    DatabaseMetaData metaData = connection.getMetaData();
+                    if (!tableExists(metaData, TABLE) && !tableExists(metaData, TABLE.toLowerCase())){
+                        statement.execute("create table " + TABLE + " (HASH_ varchar(80) not null primary key, BYTES_ "
+                                + binaryType(metaData.getDatabaseProductName()) + ", CREATED_ timestamp)");
+                        if (!connection.getAutoCommit()){
+                            connection.commit();
+                        }
+                        log.info("Table {} created", TABLE);
+                    }
+                } catch (SQLException e){
+                    throw new ActivitiException("Unable to initialize table " + TABLE, e);
+                }
+            });
+            tableReady = true;
+        }
+    }
+
+    private boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+        try (ResultSet rs = metaData.getTables(null, null, table, new String[]{"TABLE"})){
+            return rs.next();
+        }
+    }
+
+    /**
+     * Type de colonne binaire selon la base
+     * @param databaseProductName
+     * @return
+     */
+    public static String binaryType(String databaseProductName){
+        String product = databaseProductName.toLowerCase();
+        if (product.contains("postgres")){
+            return "bytea";
+        }
+        if (product.contains("mysql") || product.contains("mariadb")){
+            return "longblob";
+        }
+        if (product.contains("sql server")){
+            return "varbinary(max)";
+        }
+        return "blob";
+    }
+
+}
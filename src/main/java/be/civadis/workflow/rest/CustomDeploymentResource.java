@@ -1,6 +1,12 @@
 package be.civadis.workflow.rest;
 
+import be.civadis.workflow.activiti.TenantImportResult;
+import be.civadis.workflow.activiti.TenantProvisioner;
+import be.civadis.workflow.activiti.cache.DeploymentListCache;
+import be.civadis.workflow.activiti.deployer.DeploymentUploadReport;
+import be.civadis.workflow.activiti.deployer.DeploymentUploader;
 import be.civadis.workflow.security.AuthoritiesConstants;
+import be.civadis.workflow.security.TenantUtils;
 import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.RepositoryService;
@@ -16,15 +22,22 @@ import org.activiti.rest.service.api.repository.DeploymentsPaginateList;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -42,19 +55,38 @@ public class CustomDeploymentResource {
     protected RestResponseFactory restResponseFactory;
     @Autowired
     protected RepositoryService repositoryService;
+    @Autowired
+    protected DeploymentUploader deploymentUploader;
+    @Autowired
+    protected DeploymentListCache deploymentListCache;
+    @Autowired
+    protected TenantProvisioner tenantProvisioner;
 
     public CustomDeploymentResource() {
     }
 
     /**
      * Retourne la liste des déploiements
+     * La réponse est mise en cache par jeu de paramètres et porte un ETag, invalidé à chaque changement de deployment
+     * Si le client renvoie l'ETag (If-None-Match) et que la liste n'a pas changé, un 304 est retourné sans accès à la DB
      * @param allRequestParams
      * @param request
+     * @param response
      * @return
      */
     @GetMapping("/deployments")
     @Secured({AuthoritiesConstants.ADMIN})
-    public DataResponse getDeployments(@RequestParam Map<String, String> allRequestParams, HttpServletRequest request) {
+    public ResponseEntity<DataResponse> getDeployments(@RequestParam Map<String, String> allRequestParams, HttpServletRequest request, HttpServletResponse response) {
+        //les urls des deployments dépendent de l'adresse utilisée par le client, la liste du schéma du tenant courant en mode schéma par tenant
+        String key = (TenantUtils.isSchemaPerTenant() ? TenantUtils.getCurrentTenant() + "|" : "") + ServletUriComponentsBuilder.fromCurrentContextPath().toUriString() + new TreeMap<>(allRequestParams);
+        DeploymentListCache.Entry entry = this.deploymentListCache.get(key, () -> queryDeployments(allRequestParams));
+        if (new ServletWebRequest(request, response).checkNotModified(entry.getEtag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(entry.getEtag()).build();
+        }
+        return ResponseEntity.ok().eTag(entry.getEtag()).body(entry.getResponse());
+    }
+
+    private DataResponse queryDeployments(Map<String, String> allRequestParams) {
         DeploymentQuery deploymentQuery = this.repositoryService.createDeploymentQuery();
         if (allRequestParams.containsKey("name")) {
             deploymentQuery.deploymentName((String)allRequestParams.get("name"));
@@ -132,7 +164,7 @@ public class CustomDeploymentResource {
                         deploymentBuilder.tenantId(tenantId);
                     }
 
-                    Deployment deployment = deploymentBuilder.deploy();
+                    Deployment deployment = tenantId != null ? TenantUtils.callAs(tenantId, deploymentBuilder::deploy) : deploymentBuilder.deploy();
                     response.setStatus(HttpStatus.CREATED.value());
                     return this.restResponseFactory.createDeploymentResponse(deployment);
                 } catch (Exception var9) {
@@ -146,6 +178,77 @@ public class CustomDeploymentResource {
         }
     }
 
+    /**
+     * Valide puis déploie une définition de processus ou une archive (.bar, .zip) transmise en multipart
+     * Le fichier est copié dans un fichier temporaire et validé entrée par entrée (cf {@link DeploymentUploader})
+     * @param tenantId
+     * @param dryRun si true, le fichier est uniquement validé
+     * @param request
+     * @return rapport de validation par fichier : 201 si déployé, 200 si validé (dryRun), 422 si un fichier est invalide
+     * @throws IOException
+     */
+    @PostMapping(value = "/deployments/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<DeploymentUploadReport> uploadValidatedDeployment(@RequestParam(value = "tenantId",required = false) String tenantId,
+                                                                            @RequestParam(value = "dryRun", defaultValue = "false") boolean dryRun,
+                                                                            HttpServletRequest request) throws IOException {
+        if (!(request instanceof MultipartHttpServletRequest) || ((MultipartHttpServletRequest)request).getFileMap().isEmpty()) {
+            throw new ActivitiIllegalArgumentException("Multipart request with file content is required");
+        }
+        MultipartFile file = ((MultipartHttpServletRequest)request).getFileMap().values().iterator().next();
+        String fileName = file.getOriginalFilename();
+        if (StringUtils.isEmpty(fileName) || !DeploymentUploader.isBpmn(fileName) && !DeploymentUploader.isArchive(fileName)) {
+            fileName = file.getName();
+        }
+
+        try (InputStream in = file.getInputStream()) {
+            return uploadResponse(this.deploymentUploader.upload(in, fileName, tenantId, dryRun));
+        }
+    }
+
+    /**
+     * Valide puis déploie une définition de processus ou une archive transmise directement dans le corps de la requête
+     * Le flux est copié au fur et à mesure dans un fichier temporaire, sans passer par la mémoire
+     * @param name nom du fichier (.bpmn20.xml, .bpmn, .bar ou .zip)
+     * @param tenantId
+     * @param dryRun si true, le fichier est uniquement validé
+     * @param request
+     * @return rapport de validation par fichier : 201 si déployé, 200 si validé (dryRun), 422 si un fichier est invalide
+     * @throws IOException
+     */
+    @PostMapping(value = "/deployments/upload", consumes = {"application/zip", MediaType.APPLICATION_OCTET_STREAM_VALUE, MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE})
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<DeploymentUploadReport> uploadValidatedDeploymentStream(@RequestParam(value = "name") String name,
+                                                                                  @RequestParam(value = "tenantId",required = false) String tenantId,
+                                                                                  @RequestParam(value = "dryRun", defaultValue = "false") boolean dryRun,
+                                                                                  HttpServletRequest request) throws IOException {
+        try (InputStream in = request.getInputStream()) {
+            return uploadResponse(this.deploymentUploader.upload(in, name, tenantId, dryRun));
+        }
+    }
+
+    private ResponseEntity<DeploymentUploadReport> uploadResponse(DeploymentUploadReport report) {
+        switch (report.getStatus()) {
+            case DEPLOYED:
+                return ResponseEntity.status(HttpStatus.CREATED).body(report);
+            case REJECTED:
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(report);
+            default:
+                return ResponseEntity.ok(report);
+        }
+    }
+
+    /**
+     * Ajoute un tenant sans redémarrage : schéma et tables du moteur créés en mode schéma par tenant, puis import de ses processus
+     * @param tenantId
+     * @return résultat de l'import des processus du tenant
+     */
+    @PostMapping("/tenants/{tenantId}")
+    @Secured({AuthoritiesConstants.ADMIN})
+    public TenantImportResult addTenant(@PathVariable("tenantId") String tenantId) {
+        return this.tenantProvisioner.addTenant(tenantId);
+    }
+
     static {
         allowedSortProperties.put("id", DeploymentQueryProperty.DEPLOYMENT_ID);
         allowedSortProperties.put("name", DeploymentQueryProperty.DEPLOYMENT_NAME);
@@ -1,21 +1,48 @@
 package be.civadis.workflow.rest;
 
 import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.TaskCursor;
+import be.civadis.workflow.activiti.async.ProcessStartQueue;
+import be.civadis.workflow.activiti.async.ProcessStartTicket;
+import be.civadis.workflow.activiti.cache.TaskCountCache;
+import be.civadis.workflow.activiti.cache.TaskInboxCache;
+import be.civadis.workflow.activiti.batch.ProcessStartReport;
+import be.civadis.workflow.activiti.batch.TaskCompletion;
+import be.civadis.workflow.activiti.batch.TaskCompletionResult;
 import be.civadis.workflow.security.AuthoritiesConstants;
 import be.civadis.workflow.security.SecurityUtils;
+import be.civadis.workflow.security.TenantUtils;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.runtime.ProcessInstance;
 import org.activiti.engine.task.Task;
 import org.activiti.engine.task.TaskQuery;
 import org.activiti.rest.service.api.RestResponseFactory;
+import org.activiti.rest.service.api.RestUrlBuilder;
 import org.activiti.rest.service.api.runtime.process.ProcessInstanceResponse;
 import org.activiti.rest.service.api.runtime.task.TaskResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.*;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Ressource permettant d'effectuer des opérations sur EngineFacade (ou directement sur l'API workflow si nécessaire)
@@ -30,14 +57,39 @@ import java.util.*;
 @RequestMapping("/workflow")
 public class EngineFacadeResource {
 
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    public static final String NDJSON_VALUE = "application/x-ndjson";
+
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
     private static List<String> properties = new ArrayList<>();
 
     private EngineFacade engineFacade;
     protected RestResponseFactory restResponseFactory;
+    private TaskInboxCache taskInboxCache;
+    private ProcessStartQueue processStartQueue;
+    private TaskCountCache taskCountCache;
+
+    //lecture / écriture NDJSON avec la config Jackson de l'application (modules, formats de date)
+    private final ObjectReader ndjsonReader;
+    private final ObjectWriter ndjsonWriter;
 
-    public EngineFacadeResource(EngineFacade engineFacade, RestResponseFactory restResponseFactory) {
+    @Value("${workflow.batch.max-size:5000}")
+    private int batchMaxSize = 5000;
+
+    @Value("${workflow.export.chunk-size:500}")
+    private int exportChunkSize = 500;
+
+    public EngineFacadeResource(EngineFacade engineFacade, RestResponseFactory restResponseFactory, TaskInboxCache taskInboxCache,
+                                ProcessStartQueue processStartQueue, TaskCountCache taskCountCache, ObjectMapper objectMapper) {
         this.engineFacade = engineFacade;
         this.restResponseFactory = restResponseFactory;
+        this.taskInboxCache = taskInboxCache;
+        this.processStartQueue = processStartQueue;
+        this.taskCountCache = taskCountCache;
+        this.ndjsonReader = objectMapper.readerFor(new TypeReference<Map<String, Object>>(){});
+        this.ndjsonWriter = objectMapper.writer().without(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
     }
 
     /**
@@ -53,39 +105,133 @@ public class EngineFacadeResource {
         return response(this.restResponseFactory.createProcessInstanceResponse(processInstance));
     }
 
+    /**
+     * Démarre un lot d'instances d'un process workflow (migrations, imports), variables transmises sous forme de tableau JSON
+     * @param processName nom du process
+     * @param variablesList variables d'initialisation de chaque instance
+     * @param chunkSize nombre d'instances par transaction (défaut : workflow.batch.chunk-size)
+     * @param parallelism nombre de transactions en parallèle
+     * @return résultat par instance et débit
+     */
+    @PostMapping(value = "/processes/{processName}/start-batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<ProcessStartReport> startProcesses(@PathVariable String processName,
+                                                             @RequestBody List<Map<String, Object>> variablesList,
+                                                             @RequestParam(value="chunkSize", defaultValue="0") int chunkSize,
+                                                             @RequestParam(value="parallelism", defaultValue="1") int parallelism){
+        return response(engineFacade.startProcesses(processName, variablesList.iterator(), chunkSize, parallelism));
+    }
+
+    /**
+     * Démarre un lot d'instances d'un process workflow, variables transmises en NDJSON (un objet JSON par ligne)
+     * Le flux est lu au fur et à mesure des démarrages, le fichier n'est pas chargé en mémoire
+     * Au delà de workflow.batch.max-start-size instances, ou si une ligne est invalide, la lecture s'arrête :
+     * le rapport des instances déjà démarrées est retourné avec le motif de l'arrêt (interruption)
+     * @param processName nom du process
+     * @param chunkSize nombre d'instances par transaction (défaut : workflow.batch.chunk-size)
+     * @param parallelism nombre de transactions en parallèle
+     * @param request
+     * @return résultat par instance et débit
+     * @throws IOException
+     */
+    @PostMapping(value = "/processes/{processName}/start-batch", consumes = NDJSON_VALUE)
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<ProcessStartReport> startProcessesNdjson(@PathVariable String processName,
+                                                                   @RequestParam(value="chunkSize", defaultValue="0") int chunkSize,
+                                                                   @RequestParam(value="parallelism", defaultValue="1") int parallelism,
+                                                                   HttpServletRequest request) throws IOException {
+        try (MappingIterator<Map<String, Object>> variables = ndjsonReader.readValues(request.getInputStream())){
+            return response(engineFacade.startProcesses(processName, variables, chunkSize, parallelism));
+        }
+    }
+
+    /**
+     * Demande le démarrage asynchrone d'un process workflow
+     * La demande est placée en file et un ticket est retourné (202), l'id de l'instance est ensuite disponible via le ticket
+     * Si la file est pleine, la demande est refusée (503), à réessayer plus tard
+     * @param processName nom du process
+     * @param variables variables d'initialisation
+     * @return
+     */
+    @PostMapping(value = "/processes/{processName}/start-async")
+    //@Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<ProcessStartTicket> startProcessAsync(@PathVariable String processName, @RequestBody Map<String, Object> variables){
+        ProcessStartTicket ticket = processStartQueue.submit(processName, variables);
+        if (ticket == null){
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .build();
+        }
+        return ResponseEntity.accepted()
+                .location(URI.create("/workflow/processes/start-requests/" + ticket.getId()))
+                .body(ticket);
+    }
+
+    /**
+     * Etat d'une demande de démarrage asynchrone, 404 si elle a été soumise par un autre tenant
+     * @param ticketId
+     * @return
+     */
+    @GetMapping(value = "/processes/start-requests/{ticketId}")
+    //@Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<ProcessStartTicket> getProcessStartTicket(@PathVariable String ticketId){
+        ProcessStartTicket ticket = processStartQueue.getTicket(ticketId);
+        if (ticket == null){
+            return ResponseEntity.notFound().build();
+        }
+        return response(ticket);
+    }
+
     /**
      * Recherche la liste des tasks pouvant être traitées à un user selon ses groupes,
      * @param groups groupes autorisés à traiter les tâches
      * @param processKey
      * @param processInstanceId
+     * @param cursor si fourni, pagination par curseur (vide pour la première page, ensuite header X-Next-Cursor)
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @param count si fourni, nombre total de tasks dans le header X-Total-Count : cached (approché, cf TaskCountCache) ou exact
      * @return
      */
     @GetMapping(value = "/tasks-claimable")
     @Secured({AuthoritiesConstants.ADMIN})
-    public ResponseEntity<List<TaskResponse>> findClaimableTasks(Pageable pageable,
-                                                                 @RequestParam(value="user", required=false) String user,
-                                                                 @RequestParam(value="groups", required=false) List<String> groups,
-                                                                 @RequestParam(value="processKey", required=false) String processKey,
-                                                                 @RequestParam(value="processInstanceId", required=false) String processInstanceId) {
-
-        TaskQuery query = engineFacade.findClaimableTasks(user, groups, processKey, processInstanceId);
-        return executeTaskQuery(query, pageable, "/workflow/tasks-claimable");
+    public ResponseEntity<List<?>> findClaimableTasks(Pageable pageable,
+                                                        @RequestParam(value="user", required=false) String user,
+                                                        @RequestParam(value="groups", required=false) List<String> groups,
+                                                        @RequestParam(value="processKey", required=false) String processKey,
+                                                        @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                        @RequestParam(value="cursor", required=false) String cursor,
+                                                        @RequestParam(value="fields", required=false) String fields,
+                                                        @RequestParam(value="count", required=false) String count) {
+
+        return executeTaskQuery(() -> engineFacade.findClaimableTasks(user, groups, processKey, processInstanceId), pageable, cursor, TaskFieldSet.parse(fields),
+                "/workflow/tasks-claimable", null, claimableIndexLookup(user, groups, processKey, processInstanceId),
+                TaskCountCache.claimable(user, groups, processKey, processInstanceId), count);
     }
 
     /**
      * Recherche la liste des tasks pouvant être traitées à le user courant
      * @param processKey
      * @param processInstanceId
+     * @param cursor si fourni, pagination par curseur (vide pour la première page, ensuite header X-Next-Cursor)
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @param count si fourni, nombre total de tasks dans le header X-Total-Count : cached (approché, cf TaskCountCache) ou exact
      * @return
      */
     @GetMapping(value = "/my-tasks-claimable")
     @Secured({AuthoritiesConstants.USER})
-    public ResponseEntity<List<TaskResponse>> findMyClaimableTasks(Pageable pageable,
-                                                                   @RequestParam(value="processKey", required=false) String processKey,
-                                                                   @RequestParam(value="processInstanceId", required=false) String processInstanceId) {
-
-        TaskQuery query = engineFacade.findClaimableTasks(getCurrentUser(), getCurrentGroups(), processKey, processInstanceId);
-        return executeTaskQuery(query, pageable, "/workflow/my-tasks-claimable");
+    public ResponseEntity<List<?>> findMyClaimableTasks(Pageable pageable,
+                                                          @RequestParam(value="processKey", required=false) String processKey,
+                                                          @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                          @RequestParam(value="cursor", required=false) String cursor,
+                                                          @RequestParam(value="fields", required=false) String fields,
+                                                          @RequestParam(value="count", required=false) String count) {
+
+        String user = getCurrentUser();
+        List<String> groups = getCurrentGroups();
+        String inboxKey = TaskInboxCache.key("claimable", user, groups, processKey, processInstanceId);
+        return executeTaskQuery(() -> engineFacade.findClaimableTasks(user, groups, processKey, processInstanceId), pageable, cursor, TaskFieldSet.parse(fields),
+                "/workflow/my-tasks-claimable", inboxKey, claimableIndexLookup(user, groups, processKey, processInstanceId),
+                TaskCountCache.claimable(user, groups, processKey, processInstanceId), count);
     }
 
     /**
@@ -93,33 +239,86 @@ public class EngineFacadeResource {
      * @param user
      * @param processKey
      * @param processInstanceId
+     * @param cursor si fourni, pagination par curseur (vide pour la première page, ensuite header X-Next-Cursor)
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @param count si fourni, nombre total de tasks dans le header X-Total-Count : cached (approché, cf TaskCountCache) ou exact
      * @return
      */
     @GetMapping(value = "/tasks-assigned")
     @Secured({AuthoritiesConstants.ADMIN})
-    public ResponseEntity<List<TaskResponse>> findAssignedTasks(Pageable pageable,
-                                                                @RequestParam("user") String user,
-                                                                @RequestParam(value="processKey", required=false) String processKey,
-                                                                @RequestParam(value="processInstanceId", required=false) String processInstanceId) {
-
-        TaskQuery query = engineFacade.findAssignedTasks(user, processKey, processInstanceId);
-        return executeTaskQuery(query, pageable, "/workflow/tasks-assigned");
+    public ResponseEntity<List<?>> findAssignedTasks(Pageable pageable,
+                                                       @RequestParam("user") String user,
+                                                       @RequestParam(value="processKey", required=false) String processKey,
+                                                       @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                       @RequestParam(value="cursor", required=false) String cursor,
+                                                       @RequestParam(value="fields", required=false) String fields,
+                                                       @RequestParam(value="count", required=false) String count) {
+
+        return executeTaskQuery(() -> engineFacade.findAssignedTasks(user, processKey, processInstanceId), pageable, cursor, TaskFieldSet.parse(fields),
+                "/workflow/tasks-assigned", null, null, TaskCountCache.assigned(user, processKey, processInstanceId), count);
     }
 
     /**
      * Recherche la liste des tasks déjà assignées user courant
      * @param processKey
      * @param processInstanceId
+     * @param cursor si fourni, pagination par curseur (vide pour la première page, ensuite header X-Next-Cursor)
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @param count si fourni, nombre total de tasks dans le header X-Total-Count : cached (approché, cf TaskCountCache) ou exact
      * @return
      */
     @GetMapping(value = "/my-tasks-assigned")
     @Secured({AuthoritiesConstants.USER})
-    public ResponseEntity<List<TaskResponse>> findMyAssignedTasks(Pageable pageable,
-                                                                  @RequestParam(value="processKey", required=false) String processKey,
-                                                                  @RequestParam(value="processInstanceId", required=false) String processInstanceId) {
+    public ResponseEntity<List<?>> findMyAssignedTasks(Pageable pageable,
+                                                         @RequestParam(value="processKey", required=false) String processKey,
+                                                         @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                         @RequestParam(value="cursor", required=false) String cursor,
+                                                         @RequestParam(value="fields", required=false) String fields,
+                                                         @RequestParam(value="count", required=false) String count) {
+
+        String user = getCurrentUser();
+        String inboxKey = TaskInboxCache.key("assigned", user, processKey, processInstanceId);
+        return executeTaskQuery(() -> engineFacade.findAssignedTasks(user, processKey, processInstanceId), pageable, cursor, TaskFieldSet.parse(fields),
+                "/workflow/my-tasks-assigned", inboxKey, null, TaskCountCache.assigned(user, processKey, processInstanceId), count);
+    }
+
+    /**
+     * Export NDJSON (une task par ligne) de toutes les tasks pouvant être traitées par un user selon ses groupes
+     * Les tasks sont lues par paquets et écrites au fil de l'eau, la mémoire utilisée ne dépend pas du nombre de tasks
+     * @param user
+     * @param groups groupes autorisés à traiter les tâches
+     * @param processKey
+     * @param processInstanceId
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @return
+     */
+    @GetMapping(value = "/tasks-claimable/export", produces = NDJSON_VALUE)
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<StreamingResponseBody> exportClaimableTasks(@RequestParam(value="user", required=false) String user,
+                                                                      @RequestParam(value="groups", required=false) List<String> groups,
+                                                                      @RequestParam(value="processKey", required=false) String processKey,
+                                                                      @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                                      @RequestParam(value="fields", required=false) String fields) {
 
-        TaskQuery query = engineFacade.findAssignedTasks(getCurrentUser(), processKey, processInstanceId);
-        return executeTaskQuery(query, pageable, "/workflow/my-tasks-assigned");
+        return exportTasks(() -> engineFacade.findClaimableTasks(user, groups, processKey, processInstanceId), TaskFieldSet.parse(fields));
+    }
+
+    /**
+     * Export NDJSON (une task par ligne) de toutes les tasks assignées à un user
+     * @param user
+     * @param processKey
+     * @param processInstanceId
+     * @param fields si fourni, seules ces propriétés des tasks sont retournées (ex : id,name,createTime,dueDate)
+     * @return
+     */
+    @GetMapping(value = "/tasks-assigned/export", produces = NDJSON_VALUE)
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<StreamingResponseBody> exportAssignedTasks(@RequestParam("user") String user,
+                                                                     @RequestParam(value="processKey", required=false) String processKey,
+                                                                     @RequestParam(value="processInstanceId", required=false) String processInstanceId,
+                                                                     @RequestParam(value="fields", required=false) String fields) {
+
+        return exportTasks(() -> engineFacade.findAssignedTasks(user, processKey, processInstanceId), TaskFieldSet.parse(fields));
     }
 
     /**
@@ -130,12 +329,7 @@ public class EngineFacadeResource {
     @PostMapping(value = "/tasks/{taskId}/claim")
     @Secured({AuthoritiesConstants.ADMIN})
     public ResponseEntity<Boolean> claim(@PathVariable("taskId") String taskId, @RequestParam("userId") String userId){
-        Task task = engineFacade.findClaimableTask(taskId, null, null);
-        if (task != null){
-            engineFacade.claim(taskId, userId);
-            return response(true);
-        }
-        return response(false);
+        return response(engineFacade.claimIfCandidate(taskId, null, null, userId));
     }
 
     /**
@@ -145,12 +339,7 @@ public class EngineFacadeResource {
     @PostMapping(value = "/my-tasks/{taskId}/claim")
     @Secured({AuthoritiesConstants.USER})
     public ResponseEntity<Boolean> myClaim(@PathVariable("taskId") String taskId){
-        Task task = engineFacade.findClaimableTask(taskId, getCurrentUser(), getCurrentGroups());
-        if (task != null){
-            engineFacade.claim(taskId, getCurrentUser());
-            return response(true);
-        }
-        return response(false);
+        return response(engineFacade.claimIfCandidate(taskId, getCurrentUser(), getCurrentGroups(), getCurrentUser()));
     }
 
     /**
@@ -199,20 +388,88 @@ public class EngineFacadeResource {
     @PostMapping(value = "/my-tasks/{taskId}/complete")
     @Secured({AuthoritiesConstants.USER})
     public ResponseEntity<Boolean> myCompleteTask(@PathVariable("taskId") String taskId, @RequestBody Map<String, Object> params){
-        //check si le user peut traité la tache ou si elle lui est assignée
-        Task task = engineFacade.findClaimableTask(taskId, getCurrentUser(), getCurrentGroups());
-        if (task == null){
-            task = engineFacade.findAssignedTask(taskId, getCurrentUser());
+        //check si le user peut traité la tache ou si elle lui est assignée, et si ok, complete task (une seule commande workflow)
+        return response(engineFacade.completeIfActionable(taskId, getCurrentUser(), getCurrentGroups(), params));
+    }
+
+    /**
+     * Complete un lot de tasks, le résultat est fourni par task
+     * @param completions liste de taskId et variables
+     */
+    @PostMapping(value = "/tasks/complete-batch")
+    @Secured({AuthoritiesConstants.ADMIN})
+    public ResponseEntity<List<TaskCompletionResult>> completeTasks(@RequestBody List<TaskCompletion> completions){
+        if (completions.size() > batchMaxSize){
+            throw new ActivitiIllegalArgumentException("Batch size exceeds the maximum of " + batchMaxSize + " tasks");
         }
-        //si ok, complete task
-        if (task != null){
-            engineFacade.completeTask(taskId, params);
-            return response(true);
+        return response(engineFacade.completeTasks(completions));
+    }
+
+    /**
+     * Exécute la query de tasks et construit la réponse
+     * @param querySupplier
+     * @param pageable
+     * @param cursor si fourni, pagination par curseur
+     * @param fieldSet si fourni, projection des tasks sur les propriétés demandées
+     * @param url
+     * @param inboxKey si fourni, la page est lue via le cache des inbox (requêtes du user courant)
+     * @param indexLookup si fourni, lecture de la page (non triée) via l'index des candidats, retourne null si l'index n'est pas disponible
+     * @param countFilter requête comptée, pour le cache des compteurs
+     * @param count mode de calcul du header X-Total-Count (null, cached ou exact)
+     * @return
+     */
+    private ResponseEntity<List<?>> executeTaskQuery(Supplier<TaskQuery> querySupplier, Pageable pageable, String cursor, TaskFieldSet fieldSet,
+                                                     String url, String inboxKey, Function<Pageable, List<Task>> indexLookup,
+                                                     TaskCountCache.Filter countFilter, String count){
+
+        //nombre total
+        HttpHeaders headers = new HttpHeaders();
+        if (count != null){
+            headers.add(TOTAL_COUNT_HEADER, String.valueOf(countTasks(querySupplier, countFilter, count)));
         }
-        return response(false);
+
+        //pagination par curseur
+        if (cursor != null){
+            return executeTaskSeek(querySupplier, pageable, cursor, fieldSet, headers);
+        }
+
+        //query
+        List<Task> taskList;
+        if (inboxKey != null){
+            String pageKey = TaskInboxCache.key(inboxKey, pageable.getPageNumber(), pageable.getPageSize(), pageable.getSort());
+            taskList = taskInboxCache.get(pageKey, () -> listTasks(querySupplier, pageable, indexLookup));
+        } else {
+            taskList = listTasks(querySupplier, pageable, indexLookup);
+        }
+
+        //response
+        return response(headers, toResponseList(taskList, fieldSet));
     }
 
-    private ResponseEntity<List<TaskResponse>> executeTaskQuery(TaskQuery query, Pageable pageable, String url){
+    /**
+     * Nombre total de tasks de la query, via le cache des compteurs (cached) ou recalculé (exact)
+     */
+    private long countTasks(Supplier<TaskQuery> querySupplier, TaskCountCache.Filter countFilter, String count){
+        if ("exact".equalsIgnoreCase(count)){
+            return taskCountCache.refresh(countFilter, () -> querySupplier.get().count());
+        }
+        if ("cached".equalsIgnoreCase(count)){
+            return taskCountCache.get(countFilter, () -> querySupplier.get().count());
+        }
+        throw new ActivitiIllegalArgumentException("Unknown count mode : " + count + ", supported modes : cached, exact");
+    }
+
+    private List<Task> listTasks(Supplier<TaskQuery> querySupplier, Pageable pageable, Function<Pageable, List<Task>> indexLookup){
+
+        //index des candidats, uniquement pour l'ordre par défaut
+        if (indexLookup != null && pageable.getSort() == null){
+            List<Task> taskList = indexLookup.apply(pageable);
+            if (taskList != null){
+                return taskList;
+            }
+        }
+
+        TaskQuery query = querySupplier.get();
 
         //sort
         if (pageable != null && pageable.getSort() != null){
@@ -271,12 +528,85 @@ public class EngineFacadeResource {
 
         }
 
-        //query
-        List<Task> taskList = query.listPage(pageable.getOffset(), pageable.getPageSize());
+        return query.listPage(pageable.getOffset(), pageable.getPageSize());
+    }
 
-        //response
-        return response(
-                this.restResponseFactory.createTaskResponseList(taskList));
+    /**
+     * Pagination par curseur : seul le tri sur createTime est supporté (tri par défaut),
+     * le token de la page suivante est retourné dans le header X-Next-Cursor
+     */
+    private ResponseEntity<List<?>> executeTaskSeek(Supplier<TaskQuery> querySupplier, Pageable pageable, String cursor, TaskFieldSet fieldSet,
+                                                    HttpHeaders headers){
+
+        boolean asc = true;
+        if (pageable.getSort() != null){
+            for (Sort.Order order : pageable.getSort()){
+                if (!"createTime".equalsIgnoreCase(order.getProperty())){
+                    throw new ActivitiIllegalArgumentException("Cursor pagination only supports sort on createTime");
+                }
+                asc = order.getDirection() == null || order.getDirection().isAscending();
+            }
+        }
+
+        TaskCursor taskCursor = cursor.isEmpty() ? null : TaskCursor.decode(cursor);
+        List<Task> taskList = engineFacade.seekTasks(querySupplier, taskCursor, asc, pageable.getPageSize());
+
+        if (taskList.size() == pageable.getPageSize()){
+            boolean nextAsc = taskCursor != null ? taskCursor.isAscending() : asc;
+            headers.add(NEXT_CURSOR_HEADER, TaskCursor.after(taskList.get(taskList.size() - 1), nextAsc).encode());
+        }
+
+        return response(headers, toResponseList(taskList, fieldSet));
+    }
+
+    /**
+     * Réponse complète (TaskResponse) ou projection sur les propriétés demandées
+     */
+    private List<?> toResponseList(List<Task> taskList, TaskFieldSet fieldSet){
+        if (fieldSet != null){
+            return fieldSet.project(taskList);
+        }
+        return this.restResponseFactory.createTaskResponseList(taskList);
+    }
+
+    /**
+     * Ecrit les tasks de la query en NDJSON, paquet par paquet (cf EngineFacade.forEachTaskChunk)
+     * Les urls et le tenant sont lus dans la requête courante, le flux étant écrit hors du thread de la requête
+     */
+    private ResponseEntity<StreamingResponseBody> exportTasks(Supplier<TaskQuery> querySupplier, TaskFieldSet fieldSet){
+        RestUrlBuilder urlBuilder = fieldSet == null ? RestUrlBuilder.fromCurrentRequest() : null;
+        String tenantId = TenantUtils.getCurrentTenant();
+        StreamingResponseBody body = out -> {
+            try {
+                TenantUtils.runAs(tenantId, () -> engineFacade.forEachTaskChunk(querySupplier, exportChunkSize, chunk -> {
+                    try {
+                        for (Task task : chunk){
+                            Object item = fieldSet != null ? fieldSet.project(task) : restResponseFactory.createTaskResponse(task, urlBuilder);
+                            out.write(ndjsonWriter.writeValueAsBytes(item));
+                            out.write('\n');
+                        }
+                        out.flush();
+                    } catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            } catch (UncheckedIOException e){
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NDJSON_VALUE))
+                .body(body);
+    }
+
+    /**
+     * Lecture des tasks claimables via l'index des candidats, uniquement sans filtre sur le processus
+     */
+    private Function<Pageable, List<Task>> claimableIndexLookup(String user, List<String> groups, String processKey, String processInstanceId){
+        if (processKey != null || processInstanceId != null){
+            return null;
+        }
+        return page -> engineFacade.findClaimableTasksFromIndex(user, groups, page.getOffset(), page.getPageSize());
     }
 
     private <T> ResponseEntity<T> response(T entity){
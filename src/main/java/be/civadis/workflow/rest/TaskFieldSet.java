@@ -0,0 +1,87 @@
+package be.civadis.workflow.rest;
+
+import org.activiti.engine.ActivitiIllegalArgumentException;
+import org.activiti.engine.task.Task;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Projection légère des tasks (paramètre fields= des listes de tasks)
+ * Seules les propriétés demandées sont sérialisées, sans construction des urls de TaskResponse
+ */
+public class TaskFieldSet {
+
+    private static final Map<String, Function<Task, Object>> ACCESSORS = new LinkedHashMap<>();
+
+    static {
+        ACCESSORS.put("id", Task::getId);
+        ACCESSORS.put("name", Task::getName);
+        ACCESSORS.put("description", Task::getDescription);
+        ACCESSORS.put("createTime", Task::getCreateTime);
+        ACCESSORS.put("dueDate", Task::getDueDate);
+        ACCESSORS.put("priority", Task::getPriority);
+        ACCESSORS.put("assignee", Task::getAssignee);
+        ACCESSORS.put("owner", Task::getOwner);
+        ACCESSORS.put("category", Task::getCategory);
+        ACCESSORS.put("formKey", Task::getFormKey);
+        ACCESSORS.put("taskDefinitionKey", Task::getTaskDefinitionKey);
+        ACCESSORS.put("executionId", Task::getExecutionId);
+        ACCESSORS.put("processInstanceId", Task::getProcessInstanceId);
+        ACCESSORS.put("processDefinitionId", Task::getProcessDefinitionId);
+        ACCESSORS.put("parentTaskId", Task::getParentTaskId);
+        ACCESSORS.put("tenantId", Task::getTenantId);
+        ACCESSORS.put("suspended", Task::isSuspended);
+    }
+
+    private final String[] names;
+    private final List<Function<Task, Object>> accessors;
+
+    private TaskFieldSet(String[] names, List<Function<Task, Object>> accessors) {
+        this.names = names;
+        this.accessors = accessors;
+    }
+
+    /**
+     * Analyse la liste des propriétés demandées
+     * @param fields propriétés séparées par des virgules, ex : id,name,createTime,dueDate
+     * @return null si aucune propriété n'est demandée (réponse complète)
+     */
+    public static TaskFieldSet parse(String fields){
+        if (fields == null || fields.trim().isEmpty()){
+            return null;
+        }
+        Set<String> requested = new LinkedHashSet<>();
+        for (String field : fields.split(",")){
+            if (!field.trim().isEmpty()){
+                requested.add(field.trim());
+            }
+        }
+        List<Function<Task, Object>> accessors = new ArrayList<>(requested.size());
+        for (String field : requested){
+            Function<Task, Object> accessor = ACCESSORS.get(field);
+            if (accessor == null){
+                throw new ActivitiIllegalArgumentException("Unknown task field : " + field + ", supported fields : " + ACCESSORS.keySet());
+            }
+            accessors.add(accessor);
+        }
+        return new TaskFieldSet(requested.toArray(new String[requested.size()]), accessors);
+    }
+
+    public List<Map<String, Object>> project(List<Task> taskList){
+        List<Map<String, Object>> result = new ArrayList<>(taskList.size());
+        for (Task task : taskList){
+            result.add(project(task));
+        }
+        return result;
+    }
+
+    public Map<String, Object> project(Task task){
+        Map<String, Object> values = new LinkedHashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++){
+            values.put(names[i], accessors.get(i).apply(task));
+        }
+        return values;
+    }
+
+}
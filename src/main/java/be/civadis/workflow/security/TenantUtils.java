@@ -1,19 +1,122 @@
 package be.civadis.workflow.security;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class TenantUtils {
 
     // pour le test avec une appli ne contenant qu'une DB H2 in mem, on utilise le schéma public
-    // TODO : dans une application réelle, extraire le tenant courant de la secu et les tenants dispo de la config
+    // TODO : dans une application réelle, extraire le tenant courant de la secu (filtre appelant setCurrentTenant / clearCurrentTenant)
+    // les tenants disponibles sont lus de la config (workflow.tenancy.tenants, cf TenantSchemaManager)
 
+    public static final String DEFAULT_TENANT = "public";
+
+    private static final ThreadLocal<String> currentTenant = new ThreadLocal<>();
+    //liste immuable remplacée en une fois : un lecteur voit l'ancienne ou la nouvelle liste, jamais une liste partielle
+    private static volatile List<String> tenants = Collections.singletonList(DEFAULT_TENANT);
+    private static volatile boolean schemaPerTenant;
+
+    /**
+     * Tenant du thread courant, le tenant par défaut si aucun n'a été défini
+     * En mode schéma par tenant, détermine le schéma utilisé par les connexions obtenues par ce thread
+     */
     public static String getCurrentTenant(){
-        return "public";
+        String tenantId = currentTenant.get();
+        return tenantId != null ? tenantId : DEFAULT_TENANT;
+    }
+
+    public static void setCurrentTenant(String tenantId){
+        currentTenant.set(tenantId);
+    }
+
+    public static void clearCurrentTenant(){
+        currentTenant.remove();
+    }
+
+    /**
+     * Exécute le traitement pour le tenant donné, le tenant précédent du thread est ensuite restauré
+     * Attention, dans une transaction déjà démarrée, la connexion (et donc le schéma) reste celle du tenant de la transaction
+     * @param tenantId
+     * @param supplier
+     * @return
+     */
+    public static <T> T callAs(String tenantId, Supplier<T> supplier){
+        String previous = currentTenant.get();
+        currentTenant.set(tenantId);
+        try {
+            return supplier.get();
+        } finally {
+            if (previous != null){
+                currentTenant.set(previous);
+            } else {
+                currentTenant.remove();
+            }
+        }
+    }
+
+    public static void runAs(String tenantId, Runnable runnable){
+        callAs(tenantId, () -> {
+            runnable.run();
+            return null;
+        });
     }
 
     public static List<String> getTenants(){
-        return Arrays.asList("public");
+        return tenants;
+    }
+
+    public static synchronized void setTenants(Collection<String> tenantIds){
+        List<String> list = new ArrayList<>();
+        for (String tenantId : tenantIds){
+            if (!list.contains(tenantId)){
+                list.add(tenantId);
+            }
+        }
+        tenants = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Ajoute un tenant disponible
+     * @param tenantId
+     * @return false si le tenant était déjà connu
+     */
+    public static synchronized boolean addTenant(String tenantId){
+        if (tenants.contains(tenantId)){
+            return false;
+        }
+        List<String> list = new ArrayList<>(tenants);
+        list.add(tenantId);
+        tenants = Collections.unmodifiableList(list);
+        return true;
+    }
+
+    /**
+     * Retire un tenant disponible, sans toucher aux autres tenants ajoutés entre-temps
+     * @param tenantId
+     * @return false si le tenant n'était pas connu
+     */
+    public static synchronized boolean removeTenant(String tenantId){
+        if (!tenants.contains(tenantId)){
+            return false;
+        }
+        List<String> list = new ArrayList<>(tenants);
+        list.remove(tenantId);
+        tenants = Collections.unmodifiableList(list);
+        return true;
+    }
+
+    /**
+     * Indique si les données du moteur de chaque tenant sont dans son propre schéma (workflow.tenancy.mode=schema)
+     */
+    public static boolean isSchemaPerTenant(){
+        return schemaPerTenant;
+    }
+
+    public static void setSchemaPerTenant(boolean schemaPerTenant){
+        TenantUtils.schemaPerTenant = schemaPerTenant;
     }
 
 }
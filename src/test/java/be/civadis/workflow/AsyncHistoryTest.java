@@ -0,0 +1,230 @@
+package be.civadis.workflow;
+
+import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.history.AsyncHistoryDbSqlSessionFactory;
+import be.civadis.workflow.activiti.history.AsyncHistoryWriter;
+import be.civadis.workflow.model.Applicant;
+import org.activiti.engine.HistoryService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.task.Task;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.subethamail.wiser.Wiser;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Historique asynchrone (workflow.async-history.enabled=true), dans sa propre base H2
+ * Le thread d'écriture est ralenti : l'historique n'est appliqué qu'à l'appel de flush()
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = MyApp.class, properties = {
+        "workflow.async-history.enabled=true",
+        "workflow.async-history.buffer-capacity=2",
+        "workflow.async-history.flush-interval-ms=3600000",
+        "spring.datasource.url=jdbc:h2:mem:asynchistory;DB_CLOSE_DELAY=-1"})
+public class AsyncHistoryTest {
+
+    @Autowired
+    private EngineFacade engineFacade;
+
+    @Autowired
+    private HistoryService historyService;
+
+    @Autowired
+    private ProcessEngine processEngine;
+
+    @Autowired
+    private RuntimeService runtimeService;
+
+    @Autowired
+    private AsyncHistoryWriter asyncHistoryWriter;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private Wiser wiser;
+
+    @Before
+    public void setup() {
+        wiser = new Wiser();
+        wiser.setPort(1025);
+        wiser.start();
+    }
+
+    @After
+    public void cleanup() {
+        wiser.stop();
+    }
+
+    @Test
+    public void testAsyncHistory() {
+
+        Assert.assertTrue(((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getDbSqlSessionFactory()
+                instanceof AsyncHistoryDbSqlSessionFactory);
+        asyncHistoryWriter.flush();
+        long applied = asyncHistoryWriter.getApplied();
+        long failures = metric("workflow.history.async.failures");
+
+        //le moteur relit l'historique en attente (activités et tâches à terminer) : le processus se déroule comme en mode synchrone
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        Task task = engineFacade.findClaimableTasks(null, Arrays.asList("dev-managers"), null, processInstance.getId()).singleResult();
+        engineFacade.claim(task.getId(), "phw");
+        Map<String, Object> taskVariables = new HashMap<>();
+        taskVariables.put("telephoneInterviewOutcome", true);
+        engineFacade.completeTask(task.getId(), taskVariables);
+        List<Task> tasks = engineFacade.findClaimableTasks(null, null, null, processInstance.getId()).orderByTaskName().asc().list();
+        Assert.assertEquals(2, tasks.size());
+        engineFacade.completeTask(tasks.get(0).getId(), Collections.singletonMap("techOk", true));
+        engineFacade.completeTask(tasks.get(1).getId(), Collections.singletonMap("financialOk", true));
+        Assert.assertEquals(1, wiser.getMessages().size());
+
+        //rien n'est encore écrit dans les tables d'historique, tout est journalisé
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(0, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+        Assert.assertTrue(jdbcTemplate.queryForObject("select count(*) from " + AsyncHistoryWriter.TABLE, Integer.class) > 2);
+
+        asyncHistoryWriter.flush();
+
+        Assert.assertEquals(1, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).finished().count());
+        Assert.assertEquals(3, historyService.createHistoricTaskInstanceQuery().processInstanceId(processInstance.getId()).finished().count());
+        Assert.assertEquals(0, historyService.createHistoricTaskInstanceQuery().processInstanceId(processInstance.getId()).unfinished().count());
+        Assert.assertEquals(0, historyService.createHistoricActivityInstanceQuery().processInstanceId(processInstance.getId()).unfinished().count());
+        Assert.assertEquals("phw", historyService.createHistoricTaskInstanceQuery().taskId(task.getId()).singleResult().getAssignee());
+        Assert.assertEquals(1, historyService.createHistoricVariableInstanceQuery().processInstanceId(processInstance.getId())
+                .variableName("financialOk").count());
+        Assert.assertEquals(0, jdbcTemplate.queryForObject("select count(*) from " + AsyncHistoryWriter.TABLE, Integer.class).intValue());
+        Assert.assertTrue(asyncHistoryWriter.getApplied() > applied);
+        Assert.assertEquals(0, asyncHistoryWriter.getMissedUpdates());
+
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : asyncHistoryWriter.metrics()){
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        //buffer de 2 transactions : les suivantes ont été relues dans le journal
+        Assert.assertTrue(metrics.get("workflow.history.async.overflowed").longValue() > 0);
+        Assert.assertTrue(metrics.get("workflow.history.async.jdbc-batches").longValue() > 0);
+        Assert.assertEquals(failures, metrics.get("workflow.history.async.failures").longValue());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+
+        asyncHistoryWriter.flush();
+        long failures = metric("workflow.history.async.failures");
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        Assert.assertEquals(0, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+
+        //redémarrage après un arrêt brutal : une nouvelle instance rejoue le journal
+        AsyncHistoryWriter restarted = new AsyncHistoryWriter(true, 10, 100, 3600000);
+        restarted.setDataSource(dataSource);
+        restarted.start();
+        restarted.stop();
+        Assert.assertEquals(1, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).unfinished().count());
+        Assert.assertEquals(1, historyService.createHistoricTaskInstanceQuery().processInstanceId(processInstance.getId()).count());
+
+        //les batchs rejoués ne sont pas réappliqués
+        asyncHistoryWriter.flush();
+        Assert.assertEquals(1, historyService.createHistoricTaskInstanceQuery().processInstanceId(processInstance.getId()).count());
+        Assert.assertEquals(failures, metric("workflow.history.async.failures"));
+    }
+
+    @Test
+    public void testBlockedBatch() {
+
+        asyncHistoryWriter.flush();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        runtimeService.setVariable(processInstance.getId(), "blockedCheck", true);
+
+        //le batch du démarrage (tâche historique) ne peut être appliqué, celui de la variable n'y touche pas
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("alter table ACT_HI_TASKINST rename to ACT_HI_TASKINST_OFF");
+        try {
+            for (int i = 0; i < 3; i++){
+                asyncHistoryWriter.flush();
+            }
+            //le batch en échec bloque les suivants, l'historique reste dans l'ordre
+            Assert.assertTrue(asyncHistoryWriter.getBlockedBatch() > 0);
+            Assert.assertEquals(0, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+            Assert.assertEquals(0, historyService.createHistoricVariableInstanceQuery().processInstanceId(processInstance.getId())
+                    .variableName("blockedCheck").count());
+        } finally {
+            jdbcTemplate.execute("alter table ACT_HI_TASKINST_OFF rename to ACT_HI_TASKINST");
+        }
+
+        //réessayé seul puis les suivants sont appliqués
+        asyncHistoryWriter.flush();
+        Assert.assertEquals(0, asyncHistoryWriter.getBlockedBatch());
+        Assert.assertEquals(1, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+        Assert.assertEquals(1, historyService.createHistoricVariableInstanceQuery().processInstanceId(processInstance.getId())
+                .variableName("blockedCheck").count());
+    }
+
+    @Test
+    public void testDeleteAfterCompletion() {
+
+        asyncHistoryWriter.flush();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        List<String> taskIds = new ArrayList<>();
+        Task task = engineFacade.findClaimableTasks(null, Arrays.asList("dev-managers"), null, processInstance.getId()).singleResult();
+        taskIds.add(task.getId());
+        engineFacade.claim(task.getId(), "phw");
+        engineFacade.completeTask(task.getId(), Collections.singletonMap("telephoneInterviewOutcome", true));
+        for (Task next : engineFacade.findClaimableTasks(null, null, null, processInstance.getId()).orderByTaskName().asc().list()){
+            taskIds.add(next.getId());
+            engineFacade.completeTask(next.getId(), Collections.singletonMap(next.getName().startsWith("Tech") ? "techOk" : "financialOk", true));
+        }
+
+        //l'historique du processus terminé est encore en attente : la suppression en cascade l'applique avant de lire les lignes à supprimer
+        Assert.assertEquals(0, historyService.createHistoricProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+        historyService.deleteHistoricProcessInstance(processInstance.getId());
+        asyncHistoryWriter.flush();
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        for (String table : Arrays.asList("ACT_HI_PROCINST", "ACT_HI_ACTINST", "ACT_HI_TASKINST", "ACT_HI_VARINST", "ACT_HI_DETAIL", "ACT_HI_IDENTITYLINK")){
+            Assert.assertEquals(table, 0, jdbcTemplate.queryForObject("select count(*) from " + table + " where PROC_INST_ID_ = ?",
+                    Integer.class, processInstance.getId()).intValue());
+        }
+        for (String table : Arrays.asList("ACT_HI_TASKINST", "ACT_HI_VARINST", "ACT_HI_DETAIL", "ACT_HI_IDENTITYLINK")){
+            String column = "ACT_HI_TASKINST".equals(table) ? "ID_" : "TASK_ID_";
+            for (String taskId : taskIds){
+                Assert.assertEquals(table, 0, jdbcTemplate.queryForObject("select count(*) from " + table + " where " + column + " = ?",
+                        Integer.class, taskId).intValue());
+            }
+        }
+    }
+
+    private long metric(String name){
+        for (Metric<?> metric : asyncHistoryWriter.metrics()){
+            if (metric.getName().equals(name)){
+                return metric.getValue().longValue();
+            }
+        }
+        return 0;
+    }
+}
@@ -2,11 +2,21 @@ package be.civadis.workflow;
 
 
 import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.async.ProcessStartQueue;
+import be.civadis.workflow.activiti.cache.DeploymentListCache;
+import be.civadis.workflow.activiti.cache.TaskCountCache;
+import be.civadis.workflow.activiti.cache.TaskInboxCache;
 import be.civadis.workflow.model.Applicant;
+import be.civadis.workflow.rest.CustomDeploymentResource;
 import be.civadis.workflow.rest.EngineFacadeResource;
 import be.civadis.workflow.security.AuthoritiesConstants;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.runtime.Clock;
+import org.activiti.engine.task.Task;
 import org.activiti.rest.service.api.RestResponseFactory;
 import org.activiti.rest.service.api.runtime.process.ProcessInstanceResponse;
 import org.junit.Assert;
@@ -17,20 +27,31 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.web.PageableHandlerMethodArgumentResolver;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.persistence.EntityManager;
+import java.io.ByteArrayOutputStream;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -47,18 +68,45 @@ public class EngineFacadeResourceTest {
     @Autowired
     private EngineFacade engineFacade;
 
+    @Autowired
+    private ProcessEngine processEngine;
+
     @Autowired
     private RestResponseFactory restResponseFactory;
 
+    @Autowired
+    private TaskInboxCache taskInboxCache;
+
+    @Autowired
+    private ProcessStartQueue processStartQueue;
+
+    @Autowired
+    private TaskCountCache taskCountCache;
+
     @Autowired
     private MappingJackson2HttpMessageConverter jacksonMessageConverter;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
     @Autowired
     private PageableHandlerMethodArgumentResolver pageableArgumentResolver;
 
     @Autowired
     private EntityManager em;
 
+    @Autowired
+    private CustomDeploymentResource customDeploymentResource;
+
+    @Autowired
+    private DeploymentListCache deploymentListCache;
+
+    @Autowired
+    private RepositoryService repositoryService;
+
     private MockMvc restMockMvc;
 
     private ObjectMapper mapper;
@@ -67,7 +115,7 @@ public class EngineFacadeResourceTest {
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
-        final EngineFacadeResource engineFacadeResource = new EngineFacadeResource(engineFacade, restResponseFactory);
+        final EngineFacadeResource engineFacadeResource = new EngineFacadeResource(engineFacade, restResponseFactory, taskInboxCache, processStartQueue, taskCountCache, objectMapper);
         this.restMockMvc = MockMvcBuilders.standaloneSetup(engineFacadeResource)
             .setCustomArgumentResolvers(pageableArgumentResolver)
             //.setControllerAdvice(exceptionTranslator)
@@ -226,4 +274,391 @@ public class EngineFacadeResourceTest {
 
     }
 
+    @Test
+    @Transactional
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testCompleteBatchByAdmin() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+
+        // start 2 process
+        String taskId1 = engineFacade.findClaimableTasks(null, null, null,
+            engineFacade.startProcess("hireProcessWithJpa", variables).getId()).singleResult().getId();
+        String taskId2 = engineFacade.findClaimableTasks(null, null, null,
+            engineFacade.startProcess("hireProcessWithJpa", variables).getId()).singleResult().getId();
+
+        // complete both phone interviews, with a duplicate and an unknown task
+        Map<String, Object> taskVariables = new HashMap<String, Object>();
+        taskVariables.put("telephoneInterviewOutcome", true);
+        List<Map<String, Object>> completions = new ArrayList<>();
+        for (String taskId : Arrays.asList(taskId1, taskId2, taskId1, "unknown")){
+            Map<String, Object> completion = new HashMap<>();
+            completion.put("taskId", taskId);
+            completion.put("variables", taskVariables);
+            completions.add(completion);
+        }
+
+        MvcResult res = restMockMvc.perform(
+            post("/workflow/tasks/complete-batch")
+                .contentType(MediaType.APPLICATION_JSON_VALUE)
+                .content(mapper.writeValueAsString(completions))
+        ).andExpect(status().isOk()).andReturn();
+        List<Map> results = mapper.readValue(res.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals("COMPLETED", results.get(0).get("status"));
+        Assert.assertEquals("COMPLETED", results.get(1).get("status"));
+        Assert.assertEquals("DUPLICATE", results.get(2).get("status"));
+        Assert.assertEquals("NOT_FOUND", results.get(3).get("status"));
+
+        Assert.assertNull(engineFacade.findClaimableTask(taskId1, null, null));
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testStartBatchByAdmin() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+
+        // start 3 process by chunks of 2, JSON array
+        MvcResult res = restMockMvc.perform(
+            post("/workflow/processes/hireProcessWithJpa/start-batch")
+                .param("chunkSize", "2")
+                .contentType(MediaType.APPLICATION_JSON_VALUE)
+                .content(mapper.writeValueAsString(Arrays.asList(variables, variables, variables)))
+        ).andExpect(status().isOk()).andReturn();
+        Map report = mapper.readValue(res.getResponse().getContentAsString(), Map.class);
+        Assert.assertEquals(3, report.get("total"));
+        Assert.assertEquals(3, report.get("started"));
+        Assert.assertEquals(0, report.get("failed"));
+        List<Map> results = (List<Map>) report.get("results");
+        Assert.assertEquals(2, results.get(2).get("index"));
+        Assert.assertNotNull(engineFacade.findClaimableTasks(null, null, null,
+            (String) results.get(2).get("processInstanceId")).singleResult());
+
+        // start 2 process, NDJSON stream
+        String json = mapper.writeValueAsString(variables);
+        res = restMockMvc.perform(
+            post("/workflow/processes/hireProcessWithJpa/start-batch")
+                .contentType(EngineFacadeResource.NDJSON_VALUE)
+                .content(json + "\n" + json + "\n")
+        ).andExpect(status().isOk()).andReturn();
+        report = mapper.readValue(res.getResponse().getContentAsString(), Map.class);
+        Assert.assertEquals(2, report.get("started"));
+        Assert.assertNull(report.get("interruption"));
+
+        // invalid line : the instances already started are reported
+        res = restMockMvc.perform(
+            post("/workflow/processes/hireProcessWithJpa/start-batch")
+                .param("chunkSize", "1")
+                .contentType(EngineFacadeResource.NDJSON_VALUE)
+                .content(json + "\n{invalid\n" + json + "\n")
+        ).andExpect(status().isOk()).andReturn();
+        report = mapper.readValue(res.getResponse().getContentAsString(), Map.class);
+        Assert.assertEquals(1, report.get("started"));
+        Assert.assertNotNull(report.get("interruption"));
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testTaskFieldsByAdmin() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+        String processInstanceId = engineFacade.startProcess("hireProcessWithJpa", variables).getId();
+
+        // only the requested fields, in the requested order
+        MvcResult res = restMockMvc.perform(
+            get("/workflow/tasks-claimable")
+                .param("processInstanceId", processInstanceId)
+                .param("fields", "id,name,createTime,dueDate")
+        ).andExpect(status().isOk()).andReturn();
+        List<Map> tasks = mapper.readValue(res.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(Arrays.asList("id", "name", "createTime", "dueDate"), new ArrayList<>(tasks.get(0).keySet()));
+        Assert.assertEquals("Telephone interview", tasks.get(0).get("name"));
+
+        // full response without fields
+        res = restMockMvc.perform(
+            get("/workflow/tasks-claimable")
+                .param("processInstanceId", processInstanceId)
+        ).andExpect(status().isOk()).andReturn();
+        tasks = mapper.readValue(res.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertNotNull(tasks.get(0).get("url"));
+    }
+
+    @Test
+    @Transactional
+    public void testExportClaimableTasks() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+
+        // start 3 process, their tasks share the same createTime
+        Set<String> started = new HashSet<>();
+        Clock clock = processEngine.getProcessEngineConfiguration().getClock();
+        clock.setCurrentTime(new Date());
+        try {
+            for (int i = 0; i < 3; i++){
+                started.add(engineFacade.findClaimableTasks(null, null, null,
+                    engineFacade.startProcess("hireProcessWithJpa", variables).getId()).singleResult().getId());
+            }
+        } finally {
+            clock.reset();
+        }
+
+        // export by chunks of 2, the second chunk seeks on the task id among the tasks of the same createTime, the body is written in the test thread to stay in the test transaction
+        EngineFacadeResource resource = new EngineFacadeResource(engineFacade, restResponseFactory, taskInboxCache, processStartQueue, taskCountCache, objectMapper);
+        ReflectionTestUtils.setField(resource, "exportChunkSize", 2);
+        StreamingResponseBody body = resource.exportClaimableTasks(null, null, null, null, "id,name").getBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        Set<String> exported = new HashSet<>();
+        for (String line : out.toString("UTF-8").split("\n")){
+            Map task = mapper.readValue(line, Map.class);
+            Assert.assertEquals("Telephone interview", task.get("name"));
+            exported.add((String) task.get("id"));
+        }
+        Assert.assertEquals(started, exported);
+    }
+
+    @Test
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testTotalCountByAdmin() throws Exception {
+
+        // the counts are adjusted after commit : no test transaction here, the started instances are deleted at the end
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+        List<String> processInstanceIds = new ArrayList<>();
+        try {
+            // start 2 process
+            processInstanceIds.add(engineFacade.startProcess("hireProcessWithJpa", variables).getId());
+            processInstanceIds.add(engineFacade.startProcess("hireProcessWithJpa", variables).getId());
+
+            MvcResult res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "exact")
+            ).andExpect(status().isOk()).andReturn();
+            long count = Long.parseLong(res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertTrue(count >= 2);
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("groups", "dev-managers").param("count", "exact")
+            ).andExpect(status().isOk()).andReturn();
+            long groupCount = Long.parseLong(res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+
+            // second call is served by the cache
+            long hits = taskCountCache.getHits();
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(count), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertEquals(hits + 1, taskCountCache.getHits());
+
+            // a new task adjusts the cached count
+            hits = taskCountCache.getHits();
+            String processInstanceId = engineFacade.startProcess("hireProcessWithJpa", variables).getId();
+            processInstanceIds.add(processInstanceId);
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(count + 1), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertEquals(hits + 1, taskCountCache.getHits());
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("groups", "dev-managers").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(groupCount + 1), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertEquals(hits + 2, taskCountCache.getHits());
+
+            // a claimed task leaves the claimable counts
+            Task task = engineFacade.findClaimableTasks(null, null, null, processInstanceId).singleResult();
+            engineFacade.claim(task.getId(), "kermit");
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(count), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("groups", "dev-managers").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(groupCount), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertEquals(hits + 4, taskCountCache.getHits());
+            engineFacade.unclaim(task.getId());
+
+            // a rolled back start leaves the cached count untouched
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.execute(status -> {
+                engineFacade.startProcess("hireProcessWithJpa", variables);
+                status.setRollbackOnly();
+                return null;
+            });
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "cached")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(count + 1), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+            Assert.assertEquals(hits + 5, taskCountCache.getHits());
+
+            // exact count
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1").param("count", "exact")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertEquals(String.valueOf(count + 1), res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+
+            // no header without count
+            res = restMockMvc.perform(
+                get("/workflow/tasks-claimable").param("size", "1")
+            ).andExpect(status().isOk()).andReturn();
+            Assert.assertNull(res.getResponse().getHeader(EngineFacadeResource.TOTAL_COUNT_HEADER));
+        } finally {
+            for (String processInstanceId : processInstanceIds){
+                processEngine.getRuntimeService().deleteProcessInstance(processInstanceId, "test");
+            }
+        }
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testDeploymentsEtagByAdmin() throws Exception {
+
+        MockMvc deploymentMockMvc = MockMvcBuilders.standaloneSetup(customDeploymentResource)
+            .setMessageConverters(jacksonMessageConverter).build();
+
+        MvcResult res = deploymentMockMvc.perform(
+            get("/workflow/deployments").param("tenantId", "etagTenant")
+        ).andExpect(status().isOk()).andReturn();
+        String etag = res.getResponse().getHeader(HttpHeaders.ETAG);
+        Assert.assertNotNull(etag);
+
+        // unchanged deployments, served from the cache
+        long hits = deploymentListCache.getHits();
+        deploymentMockMvc.perform(
+            get("/workflow/deployments").param("tenantId", "etagTenant").header(HttpHeaders.IF_NONE_MATCH, etag)
+        ).andExpect(status().isNotModified());
+        Assert.assertEquals(hits + 1, deploymentListCache.getHits());
+
+        // a new deployment changes the list
+        long generation = deploymentListCache.getGeneration();
+        repositoryService.createDeployment()
+            .addClasspathResource("processes/all/Developer_Hiring_with_jpa.bpmn20.xml")
+            .tenantId("etagTenant")
+            .deploy();
+        Assert.assertTrue(deploymentListCache.getGeneration() > generation);
+        res = deploymentMockMvc.perform(
+            get("/workflow/deployments").param("tenantId", "etagTenant").header(HttpHeaders.IF_NONE_MATCH, etag)
+        ).andExpect(status().isOk()).andReturn();
+        Assert.assertNotEquals(etag, res.getResponse().getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="admin", authorities ={AuthoritiesConstants.ADMIN,AuthoritiesConstants.USER})
+    public void testCursorPaginationByAdmin() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+
+        // start 3 process
+        Set<String> started = new HashSet<>();
+        for (int i = 0; i < 3; i++){
+            started.add(engineFacade.findClaimableTasks(null, null, null,
+                engineFacade.startProcess("hireProcessWithJpa", variables).getId()).singleResult().getId());
+        }
+
+        // first page
+        MvcResult res = restMockMvc.perform(
+            get("/workflow/tasks-claimable")
+                .param("groups", "dev-managers")
+                .param("cursor", "")
+                .param("size", "2")
+        ).andExpect(status().isOk()).andReturn();
+        List<Map> page1 = mapper.readValue(res.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        String next = res.getResponse().getHeader(EngineFacadeResource.NEXT_CURSOR_HEADER);
+        Assert.assertEquals(2, page1.size());
+        Assert.assertNotNull(next);
+
+        // second page, seek after the cursor
+        MvcResult res2 = restMockMvc.perform(
+            get("/workflow/tasks-claimable")
+                .param("groups", "dev-managers")
+                .param("cursor", next)
+                .param("size", "2")
+        ).andExpect(status().isOk()).andReturn();
+        List<Map> page2 = mapper.readValue(res2.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertEquals(1, page2.size());
+        Assert.assertNull(res2.getResponse().getHeader(EngineFacadeResource.NEXT_CURSOR_HEADER));
+
+        Set<Object> read = new HashSet<>();
+        for (Map task : page1){
+            read.add(task.get("id"));
+        }
+        for (Map task : page2){
+            read.add(task.get("id"));
+        }
+        Assert.assertEquals(started, read);
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="jdoe", authorities ={AuthoritiesConstants.USER, "finance"})
+    public void testClaimAndCompleteByNonCandidateUser() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        String taskId = engineFacade.findClaimableTasks(null, null, null, processInstance.getId()).singleResult().getId();
+
+        // the phone interview is for dev-managers only
+        Assert.assertNull(engineFacade.findActionableTask(taskId, "jdoe", Arrays.asList("finance")));
+
+        MvcResult res = restMockMvc.perform(
+            post("/workflow/my-tasks/" + taskId + "/claim")
+                .contentType(MediaType.APPLICATION_JSON_VALUE)
+        ).andExpect(status().isOk()).andReturn();
+        Assert.assertEquals("false", res.getResponse().getContentAsString());
+
+        Map<String, Object> taskVariables = new HashMap<String, Object>();
+        taskVariables.put("telephoneInterviewOutcome", true);
+        MvcResult res2 = restMockMvc.perform(
+            post("/workflow/my-tasks/" + taskId + "/complete")
+                .contentType(MediaType.APPLICATION_JSON_VALUE)
+                .content(mapper.writeValueAsString(taskVariables))
+        ).andExpect(status().isOk()).andReturn();
+        Assert.assertEquals("false", res2.getResponse().getContentAsString());
+
+        // a candidate group can claim it, the assignee can then complete it
+        Assert.assertTrue(engineFacade.claimIfCandidate(taskId, "jdoe", Arrays.asList("dev-managers"), "jdoe"));
+        Assert.assertNotNull(engineFacade.findActionableTask(taskId, "jdoe", null));
+        Assert.assertTrue(engineFacade.completeIfActionable(taskId, "jdoe", null, taskVariables));
+    }
+
+    @Test
+    @Transactional
+    @WithMockUser(username="phw", authorities ={AuthoritiesConstants.USER, "dev-managers"})
+    public void testInboxCacheInvalidation() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "123456789"));
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+
+        // second poll is served by the cache
+        restMockMvc.perform(get("/workflow/my-tasks-claimable").param("processInstanceId", processInstance.getId()))
+            .andExpect(status().isOk());
+        long hits = taskInboxCache.getHits();
+        MvcResult res = restMockMvc.perform(get("/workflow/my-tasks-claimable").param("processInstanceId", processInstance.getId()))
+            .andExpect(status().isOk()).andReturn();
+        Assert.assertEquals(hits + 1, taskInboxCache.getHits());
+        List<Map> tasks = mapper.readValue(res.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertEquals(1, tasks.size());
+
+        // claim invalidates the inbox
+        restMockMvc.perform(post("/workflow/my-tasks/" + tasks.get(0).get("id") + "/claim"))
+            .andExpect(status().isOk());
+        MvcResult res2 = restMockMvc.perform(get("/workflow/my-tasks-claimable").param("processInstanceId", processInstance.getId()))
+            .andExpect(status().isOk()).andReturn();
+        List<Map> tasks2 = mapper.readValue(res2.getResponse().getContentAsString(), new TypeReference<List<Map>>(){});
+        Assert.assertEquals(0, tasks2.size());
+    }
+
 }
@@ -1,10 +1,45 @@
 package be.civadis.workflow;
 
+import be.civadis.workflow.activiti.ActivitiProcessImporter;
 import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.ProcessDefinitionWarmUp;
+import be.civadis.workflow.activiti.TenantImportResult;
+import be.civadis.workflow.activiti.TenantProvisioner;
+import be.civadis.workflow.activiti.TenantSchemaManager;
+import be.civadis.workflow.activiti.async.AcquireTenantJobsCmd;
+import be.civadis.workflow.activiti.async.AsyncExecutorEndpoint;
+import be.civadis.workflow.activiti.async.AsyncExecutorMonitor;
+import be.civadis.workflow.activiti.async.AsyncJobTaskExecutor;
+import be.civadis.workflow.activiti.async.ProcessStartQueue;
+import be.civadis.workflow.activiti.async.ProcessStartTicket;
+import be.civadis.workflow.activiti.async.TenantJobScheduler;
+import be.civadis.workflow.activiti.async.TenantRoutingAsyncExecutor;
+import be.civadis.workflow.activiti.batch.BatchExecutor;
+import be.civadis.workflow.activiti.cache.CandidateTaskIndex;
+import be.civadis.workflow.activiti.cache.ParsedModelCache;
+import be.civadis.workflow.activiti.cache.ProcessDefinitionCache;
+import be.civadis.workflow.activiti.cache.ProcessDefinitionIdCache;
+import be.civadis.workflow.activiti.datasource.DataSourcePoolMetrics;
+import be.civadis.workflow.activiti.datasource.InstrumentedPoolDataSource;
+import be.civadis.workflow.activiti.deployer.DeploymentUploadReport;
+import be.civadis.workflow.activiti.deployer.DeploymentUploader;
+import be.civadis.workflow.activiti.resource.ResourceContentStore;
 import be.civadis.workflow.model.Applicant;
+import be.civadis.workflow.security.TenantUtils;
+import org.activiti.engine.ActivitiIllegalArgumentException;
 import org.activiti.engine.HistoryService;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RepositoryService;
 import org.activiti.engine.RuntimeService;
 import org.activiti.engine.TaskService;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.repository.Deployment;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.runtime.Job;
 import org.activiti.engine.runtime.ProcessInstance;
 import org.activiti.engine.task.Task;
 import org.junit.After;
@@ -13,14 +48,39 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
 import org.subethamail.wiser.Wiser;
 
+import javax.servlet.MultipartConfigElement;
+import javax.sql.DataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 
 @RunWith(SpringRunner.class)
@@ -39,6 +99,66 @@ public class HireProcessTest {
     @Autowired
     private HistoryService historyService;
 
+    @Autowired
+    private ManagementService managementService;
+
+    @Autowired
+    private ProcessEngine processEngine;
+
+    @Autowired
+    private ProcessStartQueue processStartQueue;
+
+    @Autowired
+    private AsyncExecutorMonitor asyncExecutorMonitor;
+
+    @Autowired
+    private AsyncExecutorEndpoint asyncExecutorEndpoint;
+
+    @Autowired
+    private AsyncJobTaskExecutor asyncJobTaskExecutor;
+
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private BatchExecutor batchExecutor;
+
+    @Autowired
+    private ActivitiProcessImporter processImporter;
+
+    @Autowired
+    private TenantSchemaManager tenantSchemaManager;
+
+    @Autowired
+    private ParsedModelCache parsedModelCache;
+
+    @Autowired
+    private ResourceContentStore resourceContentStore;
+
+    @Autowired
+    private ProcessDefinitionIdCache processDefinitionIdCache;
+
+    @Autowired
+    private ProcessDefinitionCache processDefinitionCache;
+
+    @Autowired
+    private TenantProvisioner tenantProvisioner;
+
+    @Autowired
+    private DeploymentUploader deploymentUploader;
+
+    @Autowired
+    private DataSourceProperties dataSourceProperties;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MultipartConfigElement multipartConfigElement;
+
     //@Autowired
     //private ApplicantRepository applicantRepository;
 
@@ -116,6 +236,577 @@ public class HireProcessTest {
 
     }
 
+    @Test
+    public void testIncrementalImport() {
+
+        Assert.assertEquals(1, processImporter.listResources("processes/all").size());
+        Assert.assertEquals("Developer_Hiring_with_jpa.bpmn20.xml", processImporter.listResources("processes/all").get(0).getFilename());
+        Assert.assertTrue(processImporter.listResources("processes/unknown").isEmpty());
+
+        // processes are deployed at startup, an unchanged file is not deployed again
+        long deployments = repositoryService.createDeploymentQuery().count();
+        TenantImportResult unchanged = processImporter.importTenant(TenantUtils.getCurrentTenant());
+        Assert.assertEquals(0, unchanged.getDeployed());
+        Assert.assertFalse(unchanged.isFailed());
+        Assert.assertEquals(deployments, repositoryService.createDeploymentQuery().count());
+
+        // a tenant is imported in a single transaction : an invalid file (processes/rollback-tenant) rolls back the files deployed before it
+        TenantImportResult rolledBack = processImporter.importTenant("rollback-tenant");
+        Assert.assertTrue(rolledBack.isFailed());
+        Assert.assertEquals(0, rolledBack.getDeployed());
+        Assert.assertEquals(0, repositoryService.createProcessDefinitionQuery().processDefinitionKey("importRollbackProcess").count());
+        Assert.assertEquals(deployments, repositoryService.createDeploymentQuery().count());
+
+        List<TenantImportResult> results = processImporter.importTenants(TenantUtils.getTenants());
+        Assert.assertEquals(TenantUtils.getTenants().size(), results.size());
+        Assert.assertEquals(0, results.get(0).getDeployed());
+        Assert.assertEquals(1, results.get(0).getSkipped());
+        Assert.assertFalse(results.get(0).isFailed());
+        Assert.assertEquals(deployments, repositoryService.createDeploymentQuery().count());
+
+        Deployment deployment = repositoryService.createDeploymentQuery()
+                .deploymentKey("processes/all/Developer_Hiring_with_jpa.bpmn20.xml")
+                .deploymentTenantId(TenantUtils.getCurrentTenant())
+                .singleResult();
+        Assert.assertNotNull(deployment);
+        Assert.assertTrue(deployment.getCategory().startsWith("sha256:"));
+    }
+
+    @Test
+    public void testLazyProvisioning() throws Exception {
+
+        long deployments = repositoryService.createDeploymentQuery().count();
+        TenantProvisioner provisioner = new TenantProvisioner(processImporter, tenantSchemaManager, "lazy", "");
+        String tenantId = TenantUtils.getCurrentTenant();
+        Assert.assertFalse(provisioner.isProvisioned(tenantId));
+
+        // concurrent first uses of the tenant, a single import
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++){
+            futures.add(executor.submit(() -> provisioner.ensureProvisioned(tenantId)));
+        }
+        for (Future<?> future : futures){
+            future.get();
+        }
+        executor.shutdown();
+
+        Assert.assertTrue(provisioner.isProvisioned(tenantId));
+        Assert.assertEquals(1, provisioner.getProvisionings());
+        Assert.assertEquals(deployments, repositoryService.createDeploymentQuery().count());
+    }
+
+    @Test
+    public void testSharedParsedModel() throws Exception {
+
+        // the same resource deployed to another tenant reuses the parsed model
+        byte[] content = StreamUtils.copyToByteArray(processImporter.listResources("processes/all").get(0).getInputStream());
+        long parses = parsedModelCache.getParses();
+        long hits = parsedModelCache.getHits();
+
+        Deployment deployment = repositoryService.createDeployment()
+                .addBytes("Developer_Hiring_with_jpa.bpmn20.xml", content)
+                .tenantId("sharedModelTenant")
+                .deploy();
+        try {
+            Assert.assertEquals(parses, parsedModelCache.getParses());
+            Assert.assertEquals(hits + 1, parsedModelCache.getHits());
+
+            ProcessDefinition shared = repositoryService.createProcessDefinitionQuery()
+                    .deploymentId(deployment.getId()).singleResult();
+            ProcessDefinition original = repositoryService.createProcessDefinitionQuery()
+                    .processDefinitionKey("hireProcessWithJpa").processDefinitionTenantId(TenantUtils.getCurrentTenant())
+                    .latestVersion().singleResult();
+            Assert.assertEquals("sharedModelTenant", shared.getTenantId());
+            Assert.assertNotEquals(original.getId(), shared.getId());
+            Assert.assertSame(repositoryService.getBpmnModel(original.getId()), repositoryService.getBpmnModel(shared.getId()));
+
+            // the tenant definition is usable
+            Map<String, Object> variables = new HashMap<String, Object>();
+            variables.put("applicant", new Applicant("John Doe", "john.doe@alfresco.com", "12344"));
+            ProcessInstance processInstance = runtimeService.startProcessInstanceByKeyAndTenantId("hireProcessWithJpa", variables, "sharedModelTenant");
+            Assert.assertEquals(shared.getId(), processInstance.getProcessDefinitionId());
+            Assert.assertEquals("Telephone interview",
+                    taskService.createTaskQuery().processInstanceId(processInstance.getId()).singleResult().getName());
+        } finally {
+            repositoryService.deleteDeployment(deployment.getId(), true);
+        }
+    }
+
+    @Test
+    public void testDeduplicatedResources() throws Exception {
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        String resourceName = "Developer_Hiring_with_jpa.bpmn20.xml";
+        byte[] content = StreamUtils.copyToByteArray(processImporter.listResources("processes/all").get(0).getInputStream());
+        String checksum = ActivitiProcessImporter.checksum(content);
+
+        List<Deployment> deployments = new ArrayList<>();
+        resourceContentStore.setEnabled(true);
+        try {
+            long deduplicated = resourceContentStore.getDeduplicated();
+            for (String tenantId : Arrays.asList("dedupTenantA", "dedupTenantB")){
+                deployments.add(repositoryService.createDeployment()
+                        .addBytes(resourceName, content)
+                        .tenantId(tenantId)
+                        .deploy());
+            }
+            Assert.assertTrue(resourceContentStore.getDeduplicated() > deduplicated);
+
+            // the deployments only store a reference, the content is stored once
+            for (Deployment deployment : deployments){
+                byte[] stored = jdbcTemplate.queryForObject("select BYTES_ from ACT_GE_BYTEARRAY where DEPLOYMENT_ID_ = ? and NAME_ = ?",
+                        byte[].class, deployment.getId(), resourceName);
+                Assert.assertTrue(ResourceContentStore.isReference(stored));
+                Assert.assertArrayEquals(content, StreamUtils.copyToByteArray(repositoryService.getResourceAsStream(deployment.getId(), resourceName)));
+            }
+            Assert.assertEquals(Long.valueOf(1), jdbcTemplate.queryForObject("select count(*) from " + ResourceContentStore.TABLE + " where HASH_ = ?", Long.class, checksum));
+
+            // the content is written in its own transaction : kept when the deployment is rolled back
+            byte[] changed = (new String(content, StandardCharsets.UTF_8) + "<!-- rolled back -->").getBytes(StandardCharsets.UTF_8);
+            long deploymentCount = repositoryService.createDeploymentQuery().count();
+            new TransactionTemplate(transactionManager).execute(status -> {
+                repositoryService.createDeployment().addBytes(resourceName, changed).tenantId("dedupTenantA").deploy();
+                status.setRollbackOnly();
+                return null;
+            });
+            Assert.assertEquals(deploymentCount, repositoryService.createDeploymentQuery().count());
+            Assert.assertEquals(Long.valueOf(1), jdbcTemplate.queryForObject("select count(*) from " + ResourceContentStore.TABLE + " where HASH_ = ?",
+                    Long.class, ActivitiProcessImporter.checksum(changed)));
+
+            // the migration collapses the content of the existing deployments, which remain readable
+            resourceContentStore.collapseDuplicates();
+            Deployment original = repositoryService.createDeploymentQuery()
+                    .deploymentTenantId(TenantUtils.getCurrentTenant()).deploymentName(resourceName)
+                    .orderByDeploymenTime().desc().listPage(0, 1).get(0);
+            byte[] stored = jdbcTemplate.queryForObject("select BYTES_ from ACT_GE_BYTEARRAY where DEPLOYMENT_ID_ = ? and NAME_ = ?",
+                    byte[].class, original.getId(), resourceName);
+            Assert.assertTrue(ResourceContentStore.isReference(stored));
+            Assert.assertArrayEquals(content, StreamUtils.copyToByteArray(repositoryService.getResourceAsStream(original.getId(), resourceName)));
+            Assert.assertEquals(0, resourceContentStore.collapseDuplicates());
+        } finally {
+            resourceContentStore.setEnabled(false);
+            for (Deployment deployment : deployments){
+                repositoryService.deleteDeployment(deployment.getId(), true);
+            }
+        }
+    }
+
+    @Test
+    public void testProcessDefinitionIdCache() throws Exception {
+
+        // the facade starts the latest version by id, resolved once
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessDefinition latest = repositoryService.createProcessDefinitionQuery()
+                .processDefinitionKey("hireProcessWithJpa").processDefinitionTenantId(TenantUtils.getCurrentTenant())
+                .latestVersion().singleResult();
+        engineFacade.startProcess("hireProcessWithJpa", variables);
+        long hits = processDefinitionIdCache.getHits();
+        ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+        Assert.assertEquals(hits + 1, processDefinitionIdCache.getHits());
+        Assert.assertEquals(latest.getId(), processInstance.getProcessDefinitionId());
+        for (Task task : taskService.createTaskQuery().processDefinitionId(latest.getId()).taskUnassigned().list()){
+            engineFacade.claim(task.getId(), "definitionCacheUser");
+        }
+
+        // a new version or a deleted one invalidates the entry
+        byte[] content = StreamUtils.copyToByteArray(processImporter.listResources("processes/all").get(0).getInputStream());
+        String tenantId = "definitionCacheTenant";
+        Deployment first = repositoryService.createDeployment()
+                .addBytes("Developer_Hiring_with_jpa.bpmn20.xml", content).tenantId(tenantId).deploy();
+        Deployment second = null;
+        try {
+            String firstId = processDefinitionIdCache.getLatestId(tenantId, "hireProcessWithJpa");
+            Assert.assertEquals(repositoryService.createProcessDefinitionQuery().deploymentId(first.getId()).singleResult().getId(), firstId);
+
+            second = repositoryService.createDeployment()
+                    .addBytes("Developer_Hiring_with_jpa.bpmn20.xml", content).tenantId(tenantId).deploy();
+            String secondId = processDefinitionIdCache.getLatestId(tenantId, "hireProcessWithJpa");
+            Assert.assertEquals(repositoryService.createProcessDefinitionQuery().deploymentId(second.getId()).singleResult().getId(), secondId);
+
+            repositoryService.deleteDeployment(second.getId(), true);
+            second = null;
+            Assert.assertEquals(firstId, processDefinitionIdCache.getLatestId(tenantId, "hireProcessWithJpa"));
+            Assert.assertNull(processDefinitionIdCache.getLatestId(tenantId, "unknownProcess"));
+        } finally {
+            if (second != null){
+                repositoryService.deleteDeployment(second.getId(), true);
+            }
+            repositoryService.deleteDeployment(first.getId(), true);
+        }
+    }
+
+    @Test
+    public void testProcessDefinitionCache() {
+
+        // the engine uses the bounded cache
+        ProcessDefinition latest = repositoryService.createProcessDefinitionQuery()
+                .processDefinitionKey("hireProcessWithJpa").processDefinitionTenantId(TenantUtils.getCurrentTenant())
+                .latestVersion().singleResult();
+        long hits = processDefinitionCache.getHits();
+        repositoryService.getBpmnModel(latest.getId());
+        Assert.assertTrue(processDefinitionCache.contains(latest.getId()));
+        Assert.assertTrue(processDefinitionCache.getHits() > hits);
+
+        // least recently used definitions are evicted beyond the limit
+        ProcessDefinitionCache bounded = new ProcessDefinitionCache(2);
+        bounded.add("a", null);
+        bounded.add("b", null);
+        bounded.get("a");
+        bounded.add("c", null);
+        Assert.assertEquals(2, bounded.size());
+        Assert.assertEquals(1, bounded.getEvictions());
+        Assert.assertTrue(bounded.contains("a"));
+        Assert.assertFalse(bounded.contains("b"));
+
+        // warm-up of the configured tenant processes
+        processDefinitionCache.remove(latest.getId());
+        ProcessDefinitionWarmUp warmUp = new ProcessDefinitionWarmUp(repositoryService, processDefinitionIdCache, tenantProvisioner,
+                TenantUtils.getCurrentTenant() + ":hireProcessWithJpa, unknownTenant");
+        Assert.assertEquals(1, warmUp.warmUp());
+        Assert.assertTrue(processDefinitionCache.contains(latest.getId()));
+    }
+
+    @Test
+    public void testDeploymentUpload() throws Exception {
+
+        byte[] content = StreamUtils.copyToByteArray(processImporter.listResources("processes/all").get(0).getInputStream());
+        byte[] invalid = "<definitions>not a process".getBytes(StandardCharsets.UTF_8);
+
+        // an invalid entry rejects the whole archive, with a report per entry
+        DeploymentUploadReport rejected = deploymentUploader.upload(new ByteArrayInputStream(zip(content, invalid)), "processes.zip", "uploadTenant", false);
+        Assert.assertEquals(DeploymentUploadReport.Status.REJECTED, rejected.getStatus());
+        Assert.assertEquals(1, rejected.getInvalid());
+        Assert.assertTrue(rejected.getEntries().get(0).isValid());
+        Assert.assertEquals(Arrays.asList("hireProcessWithJpa"), rejected.getEntries().get(0).getProcessKeys());
+        Assert.assertFalse(rejected.getEntries().get(1).isValid());
+        Assert.assertNull(rejected.getDeploymentId());
+        Assert.assertEquals(0, repositoryService.createDeploymentQuery().deploymentTenantId("uploadTenant").count());
+
+        // a valid archive is deployed
+        DeploymentUploadReport deployed = deploymentUploader.upload(new ByteArrayInputStream(zip(content)), "processes.zip", "uploadTenant", false);
+        try {
+            Assert.assertEquals(DeploymentUploadReport.Status.DEPLOYED, deployed.getStatus());
+            Assert.assertEquals(1, repositoryService.createProcessDefinitionQuery().deploymentId(deployed.getDeploymentId()).count());
+        } finally {
+            repositoryService.deleteDeployment(deployed.getDeploymentId(), true);
+        }
+
+        // limits are checked before validation
+        DeploymentUploader limited = new DeploymentUploader(repositoryService, processEngine, batchExecutor, 1000000, 1, 1000000, 100000000, 2);
+        try {
+            limited.upload(new ByteArrayInputStream(zip(content, content)), "processes.zip", "uploadTenant", true);
+            Assert.fail("entry count limit");
+        } catch (ActivitiIllegalArgumentException e){
+            // expected
+        }
+        limited = new DeploymentUploader(repositoryService, processEngine, batchExecutor, 100, 10, 1000000, 100000000, 2);
+        try {
+            limited.upload(new ByteArrayInputStream(content), "process.bpmn20.xml", "uploadTenant", true);
+            Assert.fail("size limit");
+        } catch (ActivitiIllegalArgumentException e){
+            // expected
+        }
+        limited = new DeploymentUploader(repositoryService, processEngine, batchExecutor, 1000000, 10, 1000000, content.length + content.length / 2, 2);
+        try {
+            limited.upload(new ByteArrayInputStream(zip(content, content)), "processes.zip", "uploadTenant", true);
+            Assert.fail("total size limit");
+        } catch (ActivitiIllegalArgumentException e){
+            // expected
+        }
+
+        // the multipart limits follow workflow.upload.max-size
+        Assert.assertEquals(52428800L, multipartConfigElement.getMaxFileSize());
+        Assert.assertTrue(multipartConfigElement.getMaxRequestSize() > multipartConfigElement.getMaxFileSize());
+    }
+
+    private byte[] zip(byte[]... files) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)){
+            for (int i = 0; i < files.length; i++){
+                zip.putNextEntry(new ZipEntry("process" + i + ".bpmn20.xml"));
+                zip.write(files[i]);
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDataSourcePoolMetrics() throws Exception {
+
+        InstrumentedPoolDataSource dataSource = new InstrumentedPoolDataSource();
+        dataSource.setUrl(dataSourceProperties.determineUrl());
+        dataSource.setUsername(dataSourceProperties.determineUsername());
+        dataSource.setPassword(dataSourceProperties.determinePassword());
+        dataSource.setDriverClassName(dataSourceProperties.determineDriverClassName());
+        dataSource.setMaxActive(2);
+        dataSource.setStatementCacheSize(50);
+        Assert.assertTrue(dataSource.getJdbcInterceptors().contains("StatementCache"));
+
+        // bound properties replace the default size and are merged with the statement cache, whatever their order
+        dataSource.setJdbcInterceptors("ConnectionState;StatementCache(max=10)");
+        dataSource.setStatementCacheSize(20);
+        Assert.assertEquals("ConnectionState;" + String.format(InstrumentedPoolDataSource.STATEMENT_CACHE_INTERCEPTOR, 20),
+                dataSource.getJdbcInterceptors());
+
+        // schema-per-tenant mode : no statement cache
+        dataSource.disableStatementCache();
+        Assert.assertEquals("ConnectionState", dataSource.getJdbcInterceptors());
+        dataSource.setStatementCacheSize(30);
+        Assert.assertEquals("ConnectionState", dataSource.getJdbcInterceptors());
+
+        DataSourcePoolMetrics poolMetrics = new DataSourcePoolMetrics(Collections.singletonMap("testDataSource", dataSource));
+        try (Connection connection = dataSource.getConnection()){
+            Map<String, Number> metrics = new HashMap<>();
+            for (Metric<?> metric : poolMetrics.metrics()){
+                metrics.put(metric.getName(), metric.getValue());
+            }
+            Assert.assertEquals(1, metrics.get("datasource.pool.testDataSource.active").intValue());
+            Assert.assertEquals(2, metrics.get("datasource.pool.testDataSource.max-active").intValue());
+            Assert.assertEquals(1L, metrics.get("datasource.pool.testDataSource.borrows").longValue());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    @Test
+    public void testCandidateTaskIndex() {
+
+        CandidateTaskIndex index = new CandidateTaskIndex(true, runtimeService, managementService, processEngine);
+        try {
+            index.load();
+            Assert.assertTrue(index.isWarm());
+
+            // Start process instance, the phone interview is indexed for dev-managers after commit
+            Map<String, Object> variables = new HashMap<String, Object>();
+            variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+            ProcessInstance processInstance = engineFacade.startProcess("hireProcessWithJpa", variables);
+            Task task = engineFacade.findClaimableTasks(null, null, null, processInstance.getId()).singleResult();
+
+            List<String> ids = index.findClaimableTaskIds(task.getTenantId(), "indexUser", Arrays.asList("dev-managers"));
+            Assert.assertTrue(ids.contains(task.getId()));
+            Assert.assertFalse(index.findClaimableTaskIds(task.getTenantId(), "indexUser", Arrays.asList("finance")).contains(task.getId()));
+
+            // the facade reads the page by id
+            Object facadeIndex = ReflectionTestUtils.getField(engineFacade, "candidateTaskIndex");
+            ReflectionTestUtils.setField(engineFacade, "candidateTaskIndex", index);
+            try {
+                List<Task> page = engineFacade.findClaimableTasksFromIndex("indexUser", Arrays.asList("dev-managers"), 0, 1000);
+                Assert.assertTrue(page.stream().anyMatch(t -> t.getId().equals(task.getId())));
+            } finally {
+                ReflectionTestUtils.setField(engineFacade, "candidateTaskIndex", facadeIndex);
+            }
+
+            // once claimed, the task leaves the index
+            engineFacade.claim(task.getId(), "indexUser");
+            Assert.assertFalse(index.findClaimableTaskIds(task.getTenantId(), "indexUser", Arrays.asList("dev-managers")).contains(task.getId()));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testAsyncStart() throws Exception {
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessStartTicket ticket = processStartQueue.submit("hireProcessWithJpa", variables);
+        Assert.assertNotNull(ticket);
+
+        // the worker starts the instance
+        long timeout = System.currentTimeMillis() + 10000;
+        while (ticket.getStatus() == ProcessStartTicket.Status.PENDING && System.currentTimeMillis() < timeout){
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(ProcessStartTicket.Status.STARTED, processStartQueue.getTicket(ticket.getId()).getStatus());
+        Assert.assertEquals(1, runtimeService.createProcessInstanceQuery().processInstanceId(ticket.getProcessInstanceId()).count());
+
+        // the ticket is only visible to the tenant which submitted it
+        Assert.assertNull(TenantUtils.callAs("otherTenant", () -> processStartQueue.getTicket(ticket.getId())));
+
+        // keep the instance out of the claimable tasks of the other tests
+        Task task = engineFacade.findClaimableTasks(null, null, null, ticket.getProcessInstanceId()).singleResult();
+        engineFacade.claim(task.getId(), "asyncUser");
+    }
+
+    @Test
+    public void testTenantJobScheduler() throws Exception {
+
+        // one job at a time, tenantA weighs twice as much as tenantB, a tenant can hold at most half of the queue
+        TenantJobScheduler scheduler = new TenantJobScheduler(8, 0.5, 0, "tenantA:2");
+        List<Runnable> submitted = new ArrayList<>();
+        scheduler.setTaskExecutor(submitted::add);
+        scheduler.setMaxConcurrency(1);
+        List<String> executed = new ArrayList<>();
+
+        // the first job runs (submitted), tenantA then fills its share of the queue
+        for (int i = 0; i < 5; i++){
+            Assert.assertTrue(scheduler.offer("tenantA", () -> executed.add("tenantA")));
+        }
+        Assert.assertEquals(0, scheduler.room("tenantA"));
+        Assert.assertFalse(scheduler.offer("tenantA", () -> executed.add("tenantA")));
+
+        // tenantB still has room
+        Assert.assertEquals(4, scheduler.room("tenantB"));
+        for (int i = 0; i < 3; i++){
+            Assert.assertTrue(scheduler.offer("tenantB", () -> executed.add("tenantB")));
+        }
+
+        // each completion dispatches the next job, weighted round-robin between tenants
+        while (!submitted.isEmpty()){
+            submitted.remove(0).run();
+        }
+        Assert.assertEquals(Arrays.asList("tenantA", "tenantA", "tenantB", "tenantA", "tenantA", "tenantB", "tenantA", "tenantB"), executed);
+
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : scheduler.metrics()){
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        Assert.assertEquals(5L, metrics.get("workflow.async.jobs.tenant.tenantA.executed").longValue());
+        Assert.assertEquals(1L, metrics.get("workflow.async.jobs.tenant.tenantA.rejected").longValue());
+        Assert.assertEquals(3L, metrics.get("workflow.async.jobs.tenant.tenantB.executed").longValue());
+        Assert.assertEquals(0, metrics.get("workflow.async.jobs.queued").intValue());
+        Assert.assertEquals(0, metrics.get("workflow.async.jobs.running").intValue());
+
+        // pool without queue, its size bounds the jobs run at once : the thread of a finished job runs the next ones
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+        try {
+            TenantJobScheduler poolScheduler = new TenantJobScheduler(8, 1, 0, "");
+            poolScheduler.setTaskExecutor(pool);
+            Assert.assertEquals(1, poolScheduler.getMaxConcurrency());
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(3);
+            poolScheduler.offer("tenantA", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+            poolScheduler.offer("tenantA", done::countDown);
+            poolScheduler.offer("tenantB", done::countDown);
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+
+        // the engine's pool does not refuse nor block a job handed over while all its threads are busy : the job waits in its queue
+        AsyncJobTaskExecutor jobPool = new AsyncJobTaskExecutor(1, 1, 60);
+        jobPool.initialize();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(2);
+            jobPool.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+            long start = System.currentTimeMillis();
+            jobPool.execute(done::countDown);
+            Assert.assertTrue(System.currentTimeMillis() - start < 100);
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            jobPool.shutdown();
+        }
+
+        // the engine's async executor is tenant-fair
+        Assert.assertTrue(((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getAsyncExecutor() instanceof TenantRoutingAsyncExecutor);
+    }
+
+    @Test
+    public void testAcquireTenantJobs() {
+
+        TenantRoutingAsyncExecutor asyncExecutor = (TenantRoutingAsyncExecutor)
+                ((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getAsyncExecutor();
+        int pageSize = asyncExecutor.getMaxAsyncJobsDuePerAcquisition();
+
+        // jobs inserted and acquired in a rolled back transaction, never seen by the async executor
+        List<String> acquired = new TransactionTemplate(transactionManager).execute(status -> {
+            status.setRollbackOnly();
+            return managementService.executeCommand((Command<List<String>>) commandContext -> {
+                // backlog of a listed tenant, larger than a page and ordered before the job of an unlisted tenant
+                for (int i = 0; i < 2 * pageSize; i++){
+                    insertJob(commandContext, String.format("acq-a-%04d", i), "acqListed");
+                }
+                insertJob(commandContext, "acq-z", "acqOther");
+                commandContext.getDbSqlSession().flush();
+
+                // the listed tenant has no room left : its backlog does not hide the other tenant's job
+                List<String> ids = new ArrayList<>();
+                for (JobEntity job : new AcquireTenantJobsCmd(asyncExecutor, Collections.singletonList("acqListed"),
+                        tenantId -> "acqListed".equals(tenantId) ? 0 : pageSize, TenantUtils.DEFAULT_TENANT).execute(commandContext)){
+                    ids.add(job.getId());
+                }
+                return ids;
+            });
+        });
+        Assert.assertEquals(Collections.singletonList("acq-z"), acquired);
+    }
+
+    private void insertJob(CommandContext commandContext, String id, String tenantId){
+        JobEntity job = commandContext.getJobEntityManager().create();
+        job.setId(id);
+        job.setJobType(Job.JOB_TYPE_MESSAGE);
+        job.setJobHandlerType("acquisition-test");
+        job.setTenantId(tenantId);
+        commandContext.getJobEntityManager().insert(job, false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAsyncExecutorMonitor() {
+
+        Map<String, Object> status = asyncExecutorEndpoint.invoke();
+        Assert.assertEquals(Boolean.TRUE, status.get("active"));
+        Assert.assertEquals(asyncJobTaskExecutor.getMaxPoolSize(), ((Map<String, Object>) status.get("pool")).get("maxPoolSize"));
+        Assert.assertTrue(((Map<String, Object>) status.get("jobs")).containsKey("acquisitionLockFailures"));
+
+        int corePoolSize = asyncJobTaskExecutor.getCorePoolSize();
+        int maxPoolSize = asyncJobTaskExecutor.getMaxPoolSize();
+        int queueCapacity = (Integer) ((Map<String, Object>) status.get("queue")).get("capacity");
+        int pageSize = (Integer) status.get("acquisitionPageSize");
+        try {
+            // tuned at runtime, unchanged settings are kept
+            asyncExecutorMonitor.tune(3, 12, 40, 5);
+            Assert.assertEquals(3, asyncJobTaskExecutor.getCorePoolSize());
+            Assert.assertEquals(12, asyncJobTaskExecutor.getMaxPoolSize());
+            asyncExecutorMonitor.tune(1, 2, null, null);
+            Assert.assertEquals(1, asyncJobTaskExecutor.getCorePoolSize());
+            Assert.assertEquals(2, asyncJobTaskExecutor.getMaxPoolSize());
+
+            status = asyncExecutorEndpoint.invoke();
+            Map<String, Object> queue = (Map<String, Object>) status.get("queue");
+            Assert.assertEquals(40, queue.get("capacity"));
+            Assert.assertEquals(2, queue.get("maxConcurrency"));
+            Assert.assertEquals(5, status.get("acquisitionPageSize"));
+
+            Map<String, Number> metrics = new HashMap<>();
+            for (Metric<?> metric : asyncExecutorMonitor.metrics()){
+                metrics.put(metric.getName(), metric.getValue());
+            }
+            Assert.assertEquals(2, metrics.get("workflow.async.executor.pool.max-size").intValue());
+            Assert.assertEquals(5, metrics.get("workflow.async.executor.acquisition-page-size").intValue());
+
+            // invalid settings are refused
+            try {
+                asyncExecutorMonitor.tune(4, null, null, null);
+                Assert.fail("core pool size greater than max pool size");
+            } catch (ActivitiIllegalArgumentException e){
+                Assert.assertEquals(2, asyncJobTaskExecutor.getMaxPoolSize());
+            }
+        } finally {
+            asyncExecutorMonitor.tune(corePoolSize, maxPoolSize, queueCapacity, pageSize);
+        }
+    }
+
     //@Test
     public void testApi() {
 
@@ -0,0 +1,204 @@
+package be.civadis.workflow;
+
+import be.civadis.workflow.activiti.EngineFacade;
+import be.civadis.workflow.activiti.TenantImportResult;
+import be.civadis.workflow.activiti.TenantProvisioner;
+import be.civadis.workflow.activiti.async.ProcessStartQueue;
+import be.civadis.workflow.activiti.async.TenantRoutingAsyncExecutor;
+import be.civadis.workflow.activiti.cache.TaskCountCache;
+import be.civadis.workflow.activiti.cache.TaskInboxCache;
+import be.civadis.workflow.activiti.datasource.TenantSchemaDataSource;
+import be.civadis.workflow.activiti.resource.ResourceContentStore;
+import be.civadis.workflow.model.Applicant;
+import be.civadis.workflow.rest.EngineFacadeResource;
+import be.civadis.workflow.security.TenantUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.TaskService;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.rest.service.api.RestResponseFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mode schéma par tenant (workflow.tenancy.mode=schema), dans sa propre base H2
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = MyApp.class, properties = {
+        "workflow.tenancy.mode=schema",
+        "workflow.tenancy.tenants=public,tenantA",
+        "spring.datasource.url=jdbc:h2:mem:schematenancy;DB_CLOSE_DELAY=-1"})
+public class SchemaTenancyTest {
+
+    @Autowired
+    private EngineFacade engineFacade;
+
+    @Autowired
+    private RuntimeService runtimeService;
+
+    @Autowired
+    private TaskService taskService;
+
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private ProcessEngine processEngine;
+
+    @Autowired
+    private TenantProvisioner tenantProvisioner;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private RestResponseFactory restResponseFactory;
+
+    @Autowired
+    private TaskInboxCache taskInboxCache;
+
+    @Autowired
+    private ProcessStartQueue processStartQueue;
+
+    @Autowired
+    private TaskCountCache taskCountCache;
+
+    @Autowired
+    private ResourceContentStore resourceContentStore;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        //l'état des tenants est statique, partagé avec les contextes des autres tests
+        TenantUtils.setTenants(Arrays.asList(TenantUtils.DEFAULT_TENANT, "tenantA"));
+        TenantUtils.setSchemaPerTenant(true);
+    }
+
+    @After
+    public void tearDown() {
+        TenantUtils.clearCurrentTenant();
+        TenantUtils.setTenants(Collections.singletonList(TenantUtils.DEFAULT_TENANT));
+        TenantUtils.setSchemaPerTenant(false);
+    }
+
+    @Test
+    public void testSchemaPerTenant() {
+
+        Assert.assertTrue(dataSource instanceof TenantSchemaDataSource);
+
+        //processus importés au démarrage dans le schéma de chaque tenant
+        Assert.assertEquals(1, TenantUtils.callAs("tenantA", () -> repositoryService.createProcessDefinitionQuery()
+                .processDefinitionKey("hireProcessWithJpa").processDefinitionTenantId("tenantA").count()).longValue());
+        Assert.assertEquals(0, repositoryService.createProcessDefinitionQuery().processDefinitionTenantId("tenantA").count());
+        Assert.assertEquals(0, TenantUtils.callAs("tenantA", () -> repositoryService.createProcessDefinitionQuery()
+                .processDefinitionTenantId(TenantUtils.DEFAULT_TENANT).count()).longValue());
+
+        //tables du moteur propres au schéma du tenant
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(1, jdbcTemplate.queryForObject("select count(*) from INFORMATION_SCHEMA.TABLES"
+                + " where TABLE_SCHEMA = 'TENANTA' and TABLE_NAME = 'ACT_RU_EXECUTION'", Integer.class).intValue());
+
+        //instance démarrée pour le tenant courant, visible uniquement dans son schéma
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = TenantUtils.callAs("tenantA", () -> engineFacade.startProcess("hireProcessWithJpa", variables));
+        Assert.assertEquals("tenantA", processInstance.getTenantId());
+        Assert.assertEquals(36, processInstance.getId().length());
+        Assert.assertEquals(1, TenantUtils.callAs("tenantA", () -> runtimeService.createProcessInstanceQuery()
+                .processInstanceId(processInstance.getId()).count()).longValue());
+        Assert.assertEquals(1, TenantUtils.callAs("tenantA", () -> taskService.createTaskQuery()
+                .processInstanceId(processInstance.getId()).count()).longValue());
+        Assert.assertEquals(0, runtimeService.createProcessInstanceQuery().processInstanceId(processInstance.getId()).count());
+        Assert.assertEquals(0, taskService.createTaskQuery().processInstanceId(processInstance.getId()).count());
+    }
+
+    @Test
+    public void testAddTenant() {
+
+        TenantImportResult result = tenantProvisioner.addTenant("tenantB");
+        Assert.assertFalse(result.isFailed());
+        Assert.assertTrue(TenantUtils.getTenants().contains("tenantB"));
+
+        //schéma créé, processus importés dans ce schéma et acquisition de ses jobs démarrée
+        Assert.assertEquals(1, TenantUtils.callAs("tenantB", () -> repositoryService.createProcessDefinitionQuery()
+                .processDefinitionKey("hireProcessWithJpa").processDefinitionTenantId("tenantB").count()).longValue());
+        Assert.assertEquals(0, repositoryService.createDeploymentQuery().deploymentTenantId("tenantB").count());
+        TenantRoutingAsyncExecutor asyncExecutor = (TenantRoutingAsyncExecutor)
+                ((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration()).getAsyncExecutor();
+        Assert.assertTrue(asyncExecutor.getTenantIds().containsAll(Arrays.asList(TenantUtils.DEFAULT_TENANT, "tenantA", "tenantB")));
+
+        //ajout répété sans effet, rien n'est redéployé
+        Assert.assertEquals(0, tenantProvisioner.addTenant("tenantB").getDeployed());
+    }
+
+    @Test
+    public void testExportTasks() throws Exception {
+
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("applicant", new Applicant("John Doe", "john@workflow.org", "12344"));
+        ProcessInstance processInstance = TenantUtils.callAs("tenantA", () -> engineFacade.startProcess("hireProcessWithJpa", variables));
+
+        //flux préparé dans la requête du tenant, écrit par un autre thread (sans tenant) comme en asynchrone
+        EngineFacadeResource resource = new EngineFacadeResource(engineFacade, restResponseFactory, taskInboxCache, processStartQueue, taskCountCache, objectMapper);
+        ReflectionTestUtils.setField(resource, "exportChunkSize", 2);
+        StreamingResponseBody body = TenantUtils.callAs("tenantA", () ->
+                resource.exportClaimableTasks(null, null, null, processInstance.getId(), "id,name").getBody());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread writer = new Thread(() -> {
+            try {
+                body.writeTo(out);
+            } catch (Exception e){
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        writer.join();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals(1, lines.length);
+        Assert.assertTrue(lines[0].contains("Telephone interview"));
+    }
+
+    @Test
+    public void testResourceStorePurge() throws Exception {
+
+        //contenu propre au schéma du tenant, absent du schéma par défaut
+        String deploymentId = TenantUtils.callAs("tenantA", () -> repositoryService.createDeployment()
+                .addString("purge-check.txt", "tenantA only").tenantId("tenantA").deploy().getId());
+        resourceContentStore.collapseDuplicates();
+
+        //contenus hors délai de grâce : seuls les contenus référencés par aucun schéma sont purgés
+        new JdbcTemplate(dataSource).update("update " + ResourceContentStore.TABLE + " set CREATED_ = ?",
+                new Timestamp(System.currentTimeMillis() - 7200000L));
+        resourceContentStore.collapseDuplicates();
+
+        InputStream content = TenantUtils.callAs("tenantA", () -> repositoryService.getResourceAsStream(deploymentId, "purge-check.txt"));
+        Assert.assertEquals("tenantA only", StreamUtils.copyToString(content, StandardCharsets.UTF_8));
+    }
+
+}